@@ -19,27 +19,21 @@
  *
  *      Author: alexey
  */
+#include <string.h>
 #include "cspProvider.h"
 #include "org_company_security_csp_NativeCrypto.h"
 
 /*
- * Class:     org_company_security_csp_NativeCrypto
- * Method:    encryptDecrypt
- * Signature: ([BIJJZ)[B
+ * Зашифровать или расшифровать данные в буфере pData на месте.
+ * dwBufLen - размер буфера, *pdwDataLen - размер данных, на выходе размер результата.
  */
-JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_encryptDecrypt(
-		JNIEnv *env, jclass clazz,
-		jbyteArray jData, jint jDataOffset, jint jDataSize,
-		jlong hKey, jboolean doEncrypt, jboolean doFinal,
-		jint jPaddingLength) {
-	jbyteArray result = NULL;
-	jbyte* pData = NULL;
-	DWORD dwDataLen = (DWORD) jDataSize;
-	DWORD dwBufLen = dwDataLen;
-	DWORD i;
-	BYTE tmp;
+static BOOL EncryptDecryptBuffer(JNIEnv *env, HCRYPTKEY hKey,
+		jboolean doEncrypt, jboolean doFinal,
+		jbyte* pData, DWORD *pdwDataLen, DWORD dwBufLen) {
+
 	HCRYPTKEY hDuplicateKey = (HCRYPTKEY) NULL;
-	DWORD dwOffset;
+	DWORD dwDataLen = *pdwDataLen;
+	BOOL result = FALSE;
 
 	{
 		if (! CryptDuplicateKey(hKey, NULL, 0, &hDuplicateKey)) {
@@ -50,17 +44,6 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_encryptD
 			goto _m_leave;
 		}
 
-		if(jPaddingLength <= 0)
-			jPaddingLength = 512;
-
-		dwOffset = dwDataLen % jPaddingLength;
-		if(dwOffset)
-			dwBufLen = dwDataLen - dwOffset + jPaddingLength;
-
-		// Copy data from Java buffer to native buffer
-		pData = (jbyte*) malloc(dwBufLen);
-		(*env)->GetByteArrayRegion(env, jData, jDataOffset, jDataSize, pData);
-
 		if (doEncrypt == JNI_TRUE) {
 			// encrypt
 			if (! CryptEncrypt((HCRYPTKEY) hDuplicateKey, 0, doFinal, 0, (BYTE *)pData,
@@ -75,18 +58,10 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_encryptD
 			dwBufLen = dwDataLen;
 
 			// convert from little-endian
-			for (i = 0; i < dwBufLen / 2; i++) {
-				tmp = pData[i];
-				pData[i] = pData[dwBufLen - i -1];
-				pData[dwBufLen - i - 1] = tmp;
-			}
+			ReverseBytes((BYTE*) pData, dwBufLen);
 		} else {
 			// convert to little-endian
-			for (i = 0; i < dwBufLen / 2; i++) {
-				tmp = pData[i];
-				pData[i] = pData[dwBufLen - i -1];
-				pData[dwBufLen - i - 1] = tmp;
-			}
+			ReverseBytes((BYTE*) pData, dwBufLen);
 
 			// decrypt
 			if (! CryptDecrypt((HCRYPTKEY) hKey, 0, TRUE, 0, (BYTE *)pData, &dwBufLen)) {
@@ -98,23 +73,295 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_encryptD
 				goto _m_leave;
 			}
 		}
+		*pdwDataLen = dwBufLen;
+		result = TRUE;
+	}
+	_m_leave:
+	{
+		if (hDuplicateKey)
+			CryptDestroyKey(hDuplicateKey);
+	}
+	return result;
+}
+
+/*
+ * Размер буфера под результат: данные, дополненные до размера блока
+ */
+static DWORD GetCipherBufferLength(DWORD dwDataLen, jint jPaddingLength) {
+	DWORD dwOffset;
+
+	if(jPaddingLength <= 0)
+		jPaddingLength = 512;
+
+	dwOffset = dwDataLen % jPaddingLength;
+	if(dwOffset)
+		return dwDataLen - dwOffset + jPaddingLength;
+	return dwDataLen;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    encryptDecrypt
+ * Signature: ([BIIJZZI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_encryptDecrypt(
+		JNIEnv *env, jclass clazz,
+		jbyteArray jData, jint jDataOffset, jint jDataSize,
+		jlong hKey, jboolean doEncrypt, jboolean doFinal,
+		jint jPaddingLength) {
+	jbyteArray result = NULL;
+	jbyte scratch[SCRATCH_BUFFER_SIZE];
+	jbyte* pData = NULL;
+	DWORD dwDataLen = (DWORD) jDataSize;
+	DWORD dwBufLen = GetCipherBufferLength(dwDataLen, jPaddingLength);
+
+	{
+		// Copy data from Java buffer to native buffer
+		pData = dwBufLen <= sizeof(scratch) ? scratch : (jbyte*) malloc(dwBufLen);
+		(*env)->GetByteArrayRegion(env, jData, jDataOffset, jDataSize, pData);
+
+		if(! EncryptDecryptBuffer(env, (HCRYPTKEY) hKey, doEncrypt, doFinal,
+				pData, &dwDataLen, dwBufLen)) {
+			goto _m_leave;
+		}
 
 		// Create new byte array
-		result = (*env)->NewByteArray(env, dwBufLen);
+		result = (*env)->NewByteArray(env, dwDataLen);
 
 		// Copy data from native buffer to Java buffer
-		(*env)->SetByteArrayRegion(env, result, 0, dwBufLen, (jbyte*) pData);
+		(*env)->SetByteArrayRegion(env, result, 0, dwDataLen, (jbyte*) pData);
 	}
 	_m_leave:
 	{
-		if (pData)
+		if (pData && pData != scratch)
 			free(pData);
+	}
 
-		if (hDuplicateKey)
-			CryptDestroyKey(hDuplicateKey);
+	return result;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    encryptDecryptTo
+ * Signature: ([BIIJZZI[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_encryptDecryptTo(
+		JNIEnv *env, jclass clazz,
+		jbyteArray jData, jint jDataOffset, jint jDataSize,
+		jlong hKey, jboolean doEncrypt, jboolean doFinal,
+		jint jPaddingLength,
+		jbyteArray jOutput, jint jOutputOffset, jint jOutputSize) {
+	jint result = -1;
+	jbyte scratch[SCRATCH_BUFFER_SIZE];
+	jbyte* pData = NULL;
+	DWORD dwDataLen = (DWORD) jDataSize;
+	DWORD dwBufLen = GetCipherBufferLength(dwDataLen, jPaddingLength);
+
+	{
+		pData = dwBufLen <= sizeof(scratch) ? scratch : (jbyte*) malloc(dwBufLen);
+		(*env)->GetByteArrayRegion(env, jData, jDataOffset, jDataSize, pData);
+
+		if(! EncryptDecryptBuffer(env, (HCRYPTKEY) hKey, doEncrypt, doFinal,
+				pData, &dwDataLen, dwBufLen)) {
+			goto _m_leave;
+		}
+
+		if(dwDataLen > (DWORD) jOutputSize) {
+			ThrowException(env, INVALID_KEY_EXCEPTION, (DWORD) NTE_BAD_LEN);
+			goto _m_leave;
+		}
+
+		// результат пишется сразу в массив вызывающего
+		(*env)->SetByteArrayRegion(env, jOutput, jOutputOffset, dwDataLen, (jbyte*) pData);
+		result = (jint) dwDataLen;
+	}
+	_m_leave:
+	{
+		if (pData && pData != scratch)
+			free(pData);
 	}
 
 	return result;
 }
 
+/*
+ * Размер порции потокового шифрования. Кратен размеру блока ГОСТ 28147-89.
+ */
+#define CIPHER_CHUNK_SIZE   (64 * 1024)
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    cipherInit
+ * Signature: (JJI[B)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_cipherInit(
+		JNIEnv *env, jclass clazz,
+		jlong hProv, jlong hKey, jint jMode, jbyteArray jIV) {
+	HCRYPTKEY hSessionKey = (HCRYPTKEY) NULL;
+	jbyte iv[SCRATCH_BUFFER_SIZE / 16];
+	jsize ivLength;
+	DWORD dwMode = (DWORD) jMode;
+
+	{
+		// один дубликат ключа на всю операцию, состояние цепочки хранится в нем
+		if(! CryptDuplicateKey((HCRYPTKEY) hKey, NULL, 0, &hSessionKey)) {
+			ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		if(jMode > 0 && ! CryptSetKeyParam(hSessionKey, KP_MODE, (BYTE*) &dwMode, 0)) {
+			ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		if(jIV) {
+			ivLength = (*env)->GetArrayLength(env, jIV);
+			if(ivLength > (jsize) sizeof(iv)) {
+				ThrowException(env, INVALID_KEY_EXCEPTION, NTE_BAD_LEN);
+				goto _m_leave;
+			}
+			(*env)->GetByteArrayRegion(env, jIV, 0, ivLength, iv);
+
+			if(! CryptSetKeyParam(hSessionKey, KP_IV, (BYTE*) iv, 0)) {
+				ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+				goto _m_leave;
+			}
+		}
+
+		// дубликат удерживает контекст провайдера до keyDestroy, как и копия ключа
+		if(hProv && ! CryptContextAddRef((HCRYPTPROV) hProv, NULL, 0)) {
+			ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+		return (jlong) hSessionKey;
+	}
+	_m_leave:
+	{
+		if(hSessionKey)
+			CryptDestroyKey(hSessionKey);
+	}
+	return 0;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    cipherGetIV
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_cipherGetIV(
+		JNIEnv *env, jclass clazz, jlong hKey) {
+	BYTE iv[SCRATCH_BUFFER_SIZE / 16];
+	DWORD dwLen = sizeof(iv);
+	jbyteArray jIV;
+
+	if(! CryptGetKeyParam((HCRYPTKEY) hKey, KP_IV, iv, &dwLen, 0)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		return NULL;
+	}
+
+	jIV = (*env)->NewByteArray(env, dwLen);
+	if(jIV)
+		(*env)->SetByteArrayRegion(env, jIV, 0, dwLen, (jbyte*) iv);
+	return jIV;
+}
+
+/*
+ * Зашифровать или расшифровать данные на месте ключом сессии.
+ * Для всех порций, кроме последней при doFinal, длина кратна размеру блока.
+ */
+static BOOL CipherBuffer(JNIEnv *env, HCRYPTKEY hSessionKey,
+		jboolean doEncrypt, BOOL bFinal, BYTE* pbData, DWORD dwDataLen) {
+	DWORD dwLen = dwDataLen;
+	BOOL result;
+
+	if(doEncrypt == JNI_TRUE)
+		result = CryptEncrypt(hSessionKey, 0, bFinal, 0, pbData, &dwLen, dwDataLen);
+	else
+		result = CryptDecrypt(hSessionKey, 0, bFinal, 0, pbData, &dwLen);
+
+	if(! result)
+		ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+	return result;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    cipherUpdate
+ * Signature: (JZZ[BII[BI)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_cipherUpdate(
+		JNIEnv *env, jclass clazz,
+		jlong hSessionKey, jboolean doEncrypt, jboolean doFinal,
+		jbyteArray jInput, jint jInputOffset, jint jInputLength,
+		jbyteArray jOutput, jint jOutputOffset) {
+	jbyte scratch[SCRATCH_BUFFER_SIZE];
+	jbyte* pChunk = NULL;
+	DWORD dwChunkSize;
+	jint processed = 0;
+	jint result = -1;
+
+	{
+		dwChunkSize = jInputLength <= (jint) sizeof(scratch) ? sizeof(scratch) : CIPHER_CHUNK_SIZE;
+		pChunk = dwChunkSize == sizeof(scratch) ? scratch : (jbyte*) malloc(dwChunkSize);
+		if(! pChunk) {
+			ThrowException(env, PROVIDER_EXCEPTION, NTE_NO_MEMORY);
+			goto _m_leave;
+		}
+
+		// порциями: копия в нативный буфер, шифрование на месте, копия в результат
+		do {
+			jint length = jInputLength - processed;
+			BOOL bFinal;
+
+			if(length > (jint) dwChunkSize)
+				length = (jint) dwChunkSize;
+			bFinal = doFinal == JNI_TRUE && processed + length == jInputLength;
+
+			(*env)->GetByteArrayRegion(env, jInput, jInputOffset + processed, length, pChunk);
+
+			if(! CipherBuffer(env, (HCRYPTKEY) hSessionKey, doEncrypt, bFinal, (BYTE*) pChunk, length))
+				goto _m_leave;
+
+			(*env)->SetByteArrayRegion(env, jOutput, jOutputOffset + processed, length, pChunk);
+			processed += length;
+		} while(processed < jInputLength);
+
+		result = processed;
+	}
+	_m_leave:
+	{
+		if(pChunk && pChunk != scratch)
+			free(pChunk);
+	}
+	return result;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    cipherUpdateDirect
+ * Signature: (JZZLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_cipherUpdateDirect(
+		JNIEnv *env, jclass clazz,
+		jlong hSessionKey, jboolean doEncrypt, jboolean doFinal,
+		jobject jInput, jint jInputOffset, jint jInputLength,
+		jobject jOutput, jint jOutputOffset) {
+	BYTE* pbInput = (BYTE*) (*env)->GetDirectBufferAddress(env, jInput);
+	BYTE* pbOutput = (BYTE*) (*env)->GetDirectBufferAddress(env, jOutput);
+
+	if(! pbInput || ! pbOutput) {
+		ThrowException(env, PROVIDER_EXCEPTION, NTE_BAD_DATA);
+		return -1;
+	}
+
+	// данные шифруются на месте в выходном буфере без копий через JNI
+	pbOutput += jOutputOffset;
+	if(pbOutput != pbInput + jInputOffset)
+		memmove(pbOutput, pbInput + jInputOffset, jInputLength);
+
+	if(! CipherBuffer(env, (HCRYPTKEY) hSessionKey, doEncrypt, doFinal == JNI_TRUE,
+			pbOutput, (DWORD) jInputLength))
+		return -1;
+
+	return jInputLength;
+}
@@ -38,8 +38,6 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestInit(
 	{
 		ALG_ID algId = MapHashAlgorithm(env, jHashAlgorithm);
 		DWORD dwProvId;
-		jclass clazzCSPDigest;
-		jmethodID mCSPPublicKeyInit;
 
 		if(! FindProviderByAlg(env, NULL, algId, &dwProvId, &dwBlockSize)) {
 			goto _m_leave;
@@ -56,15 +54,8 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestInit(
 			goto _m_leave;
 		}
 
-		// Get the method ID for the CSPPublicKey constructor
-		clazzCSPDigest =
-				(*env)->FindClass(env, "org/company/security/csp/CSPDigest");
-
-		mCSPPublicKeyInit =
-				(*env)->GetMethodID(env, clazzCSPDigest, "initDigest", "(JJI)V");
-
-		// Create a new CSP public key
-		(*env)->CallVoidMethod(env, jMessageDigest, mCSPPublicKeyInit,
+		// передаем дескрипторы в CSPDigest
+		(*env)->CallVoidMethod(env, jMessageDigest, g_jni.mCSPDigestInitDigest,
 				(jlong) hCryptProv, (jlong) hCryptHash, (jint) dwBlockSize);
 
 		result = TRUE;
@@ -95,6 +86,49 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestDestroy(
 		CryptReleaseContext((HCRYPTPROV) hCryptProv, 0);
 }
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    digestCreateHash
+ * Signature: (JLjava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_digestCreateHash(
+		JNIEnv *env, jclass clazz, jlong hCryptProv, jstring jHashAlgorithm) {
+
+	HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+	ALG_ID algId = MapHashAlgorithm(env, jHashAlgorithm);
+
+	// выделяем контекст хеш функции на открытом провайдере
+	if(! CryptCreateHash((HCRYPTPROV) hCryptProv, algId, 0, 0, &hCryptHash)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		return 0;
+	}
+	return (jlong) hCryptHash;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    digestDuplicate
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_digestDuplicate(
+		JNIEnv *env, jclass clazz, jlong hCryptProv, jlong hCryptHash) {
+
+	HCRYPTHASH hDuplicateHash = (HCRYPTHASH) NULL;
+
+	if(! CryptDuplicateHash((HCRYPTHASH) hCryptHash, NULL, 0, &hDuplicateHash)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	// копия хеша освобождает контекст провайдера независимо от оригинала
+	if(! CryptContextAddRef((HCRYPTPROV) hCryptProv, NULL, 0)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		CryptDestroyHash(hDuplicateHash);
+		return 0;
+	}
+	return (jlong) hDuplicateHash;
+}
+
 /*
  * Class:     org_company_security_csp_NativeCrypto
  * Method:    digestEngineUpdateByte
@@ -122,14 +156,45 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestEngineUp
 		JNIEnv *env, jclass clazz, jlong hCryptHash, jbyteArray jBytes, jint offset, jint len) {
 
 	if(hCryptHash) {
-		jbyte *buffer = (jbyte*) malloc(len * sizeof(jbyte));
-		(*env)->GetByteArrayRegion(env, jBytes, offset, len, buffer);
+		jbyte buffer[SCRATCH_BUFFER_SIZE];
+
+		// хешируем порциями через буфер на стеке
+		while(len > 0) {
+			jint chunk = len < SCRATCH_BUFFER_SIZE ? len : SCRATCH_BUFFER_SIZE;
+
+			(*env)->GetByteArrayRegion(env, jBytes, offset, chunk, buffer);
+			if((*env)->ExceptionCheck(env))
+				return;
+
+			if(!CryptHashData((HCRYPTHASH) hCryptHash, (BYTE*) buffer, chunk, 0)) {
+				ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+				return;
+			}
+			offset += chunk;
+			len -= chunk;
+		}
+	}
+}
 
-		if(!CryptHashData((HCRYPTHASH) hCryptHash, (BYTE*) buffer, len, 0)) {
-			ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    digestEngineUpdateDirect
+ * Signature: (JLjava/nio/ByteBuffer;II)V
+ */
+JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestEngineUpdateDirect(
+		JNIEnv *env, jclass clazz, jlong hCryptHash, jobject jBuffer, jint offset, jint len) {
+
+	if(hCryptHash) {
+		BYTE *buffer = (BYTE*) (*env)->GetDirectBufferAddress(env, jBuffer);
+
+		if(! buffer) {
+			ThrowException(env, DIGEST_EXCEPTION, (DWORD) NTE_BAD_DATA);
+			return;
 		}
 
-		free(buffer);
+		if(!CryptHashData((HCRYPTHASH) hCryptHash, buffer + offset, len, 0)) {
+			ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		}
 	}
 }
 
@@ -142,6 +207,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_digestEn
 		JNIEnv *env, jclass clazz, jlong hCryptHash) {
 
 	jbyteArray buffer = NULL;
+	BYTE hashScratch[SCRATCH_BUFFER_SIZE / 4];
 	BYTE *rgbHash = NULL;
 
 	{
@@ -153,7 +219,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_digestEn
 			goto _m_leave;
 		}
 
-		rgbHash = (BYTE*) malloc(cbSize);
+		rgbHash = cbSize <= sizeof(hashScratch) ? hashScratch : (BYTE*) malloc(cbSize);
 
 		if(! CryptGetHashParam((HCRYPTHASH) hCryptHash, HP_HASHVAL, rgbHash, &cbSize, 0)) {
 			ThrowException(env, DIGEST_EXCEPTION, GetLastError());
@@ -167,24 +233,113 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_digestEn
 	}
 	_m_leave:
 	{
-		if(rgbHash)
+		if(rgbHash && rgbHash != hashScratch)
 			free(rgbHash);
 	}
 	return buffer;
 }
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    digestEngineDigestTo
+ * Signature: (J[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_digestEngineDigestTo(
+		JNIEnv *env, jclass clazz, jlong hCryptHash, jbyteArray jOutput, jint offset, jint len) {
+
+	BYTE rgbHash[SCRATCH_BUFFER_SIZE / 4];
+	DWORD cbSize;
+	DWORD cbSizeLen = sizeof(DWORD);
+
+	if(!CryptGetHashParam((HCRYPTHASH) hCryptHash, HP_HASHSIZE, (BYTE *) &cbSize, &cbSizeLen, 0)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	// результат пишется сразу в массив вызывающего
+	if(cbSize > (DWORD) len || cbSize > sizeof(rgbHash)) {
+		ThrowException(env, DIGEST_EXCEPTION, (DWORD) NTE_BAD_LEN);
+		return 0;
+	}
+
+	if(! CryptGetHashParam((HCRYPTHASH) hCryptHash, HP_HASHVAL, rgbHash, &cbSize, 0)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	(*env)->SetByteArrayRegion(env, jOutput, offset, cbSize, (jbyte *) rgbHash);
+	return (jint) cbSize;
+}
+
 JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_digestSetParameter(
 		JNIEnv *env, jclass clazz, jlong hCryptHash, jint param, jbyteArray jBytes, jint offset, jint len) {
 
 	if(hCryptHash) {
-		jbyte *buffer = (jbyte*) malloc(len * sizeof(jbyte));
+		jbyte scratch[SCRATCH_BUFFER_SIZE / 4];
+		jbyte *buffer = len <= (jint) sizeof(scratch) ? scratch : (jbyte*) malloc(len * sizeof(jbyte));
 		(*env)->GetByteArrayRegion(env, jBytes, offset, len, buffer);
 
 		if(!CryptSetHashParam((HCRYPTHASH) hCryptHash, (DWORD) param, (BYTE*) buffer, 0)) {
 			ThrowException(env, DIGEST_EXCEPTION, GetLastError());
 		}
 
-		free(buffer);
+		if(buffer != scratch)
+			free(buffer);
+	}
+}
+
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    macCreateHash
+ * Signature: (JJLjava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_macCreateHash(
+		JNIEnv *env, jclass clazz, jlong hCryptProv, jlong hCryptKey, jstring jMacAlgorithm) {
+
+	HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+	ALG_ID algId = MapMacHashAlgorithm(env, jMacAlgorithm);
+
+	if(! algId) {
+		ThrowException(env, NOSUCHALGORITHM_EXCEPTION, (DWORD) NTE_BAD_ALGID);
+		return 0;
 	}
+
+	// хеш на ключе в контексте провайдера ключа
+	if(! CryptCreateHash((HCRYPTPROV) hCryptProv, algId, (HCRYPTKEY) hCryptKey, 0, &hCryptHash)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	// хеш удерживает контекст провайдера до digestDestroy независимо от ключа
+	if(hCryptProv && ! CryptContextAddRef((HCRYPTPROV) hCryptProv, NULL, 0)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		CryptDestroyHash(hCryptHash);
+		return 0;
+	}
+	return (jlong) hCryptHash;
 }
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    macDuplicate
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_macDuplicate(
+		JNIEnv *env, jclass clazz, jlong hCryptProv, jlong hCryptHash) {
+
+	HCRYPTHASH hDuplicateHash = (HCRYPTHASH) NULL;
+
+	if(! CryptDuplicateHash((HCRYPTHASH) hCryptHash, NULL, 0, &hDuplicateHash)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	// копия хеша освобождает контекст провайдера независимо от оригинала
+	if(hCryptProv && ! CryptContextAddRef((HCRYPTPROV) hCryptProv, NULL, 0)) {
+		ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+		CryptDestroyHash(hDuplicateHash);
+		return 0;
+	}
+	return (jlong) hDuplicateHash;
+}
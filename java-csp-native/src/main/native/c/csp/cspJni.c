@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * cspJni.c
+ *
+ * Классы и идентификаторы методов Java, вызываемых из нативного кода.
+ * Определяются один раз при загрузке библиотеки.
+ */
+#include "cspProvider.h"
+
+CSP_JNI_CACHE g_jni;
+
+static BOOL CacheClass(JNIEnv *env, jclass *pClazz, const char *pszName) {
+	jclass clazz = (*env)->FindClass(env, pszName);
+
+	if(! clazz) {
+#ifdef DEBUG
+		fprintf(stderr, "java-csp: class not found %s\n", pszName);
+#endif
+		return FALSE;
+	}
+
+	*pClazz = (jclass) (*env)->NewGlobalRef(env, clazz);
+	(*env)->DeleteLocalRef(env, clazz);
+	return *pClazz != NULL;
+}
+
+static BOOL CacheMethod(JNIEnv *env, jmethodID *pMethod, jclass clazz,
+		const char *pszName, const char *pszSignature) {
+	*pMethod = (*env)->GetMethodID(env, clazz, pszName, pszSignature);
+
+	if(! *pMethod) {
+#ifdef DEBUG
+		fprintf(stderr, "java-csp: method not found %s%s\n", pszName, pszSignature);
+#endif
+		return FALSE;
+	}
+	return TRUE;
+}
+
+static void ReleaseJniCache(JNIEnv *env) {
+	jclass *classes[] = {
+			&g_jni.clazzNativeCrypto,
+			&g_jni.clazzCSPDigest,
+			&g_jni.clazzCSPSignature,
+			&g_jni.clazzCSPPublicKey,
+			&g_jni.clazzCSPSecretKey,
+			&g_jni.clazzCSPContainerContext,
+			&g_jni.clazzCSPAlgorithmInfo
+	};
+	size_t i;
+
+	for(i = 0; i < sizeof(classes) / sizeof(classes[0]); i++) {
+		if(*classes[i]) {
+			(*env)->DeleteGlobalRef(env, *classes[i]);
+			*classes[i] = NULL;
+		}
+	}
+	memset(&g_jni, 0, sizeof(g_jni));
+}
+
+static BOOL InitJniCache(JNIEnv *env) {
+	return
+		CacheClass(env, &g_jni.clazzNativeCrypto, "org/company/security/csp/NativeCrypto") &&
+
+		CacheClass(env, &g_jni.clazzCSPDigest, "org/company/security/csp/CSPDigest") &&
+		CacheMethod(env, &g_jni.mCSPDigestInitDigest, g_jni.clazzCSPDigest,
+				"initDigest", "(JJI)V") &&
+
+		CacheClass(env, &g_jni.clazzCSPSignature, "org/company/security/csp/CSPSignature") &&
+		CacheMethod(env, &g_jni.mCSPSignatureInitDigestParameters, g_jni.clazzCSPSignature,
+				"initDigestParameters", "(JJ)V") &&
+
+		CacheClass(env, &g_jni.clazzCSPPublicKey, "org/company/security/csp/CSPPublicKey") &&
+		CacheMethod(env, &g_jni.mCSPPublicKeyInit, g_jni.clazzCSPPublicKey,
+				"<init>", "(JJI[B)V") &&
+
+		CacheClass(env, &g_jni.clazzCSPSecretKey, "org/company/security/csp/CSPSecretKey") &&
+		CacheMethod(env, &g_jni.mCSPSecretKeyInit, g_jni.clazzCSPSecretKey,
+				"<init>", "(JJI)V") &&
+
+		CacheClass(env, &g_jni.clazzCSPContainerContext, "org/company/security/csp/CSPContainerContext") &&
+		CacheMethod(env, &g_jni.mCSPContainerContextInitContext, g_jni.clazzCSPContainerContext,
+				"initContext", "(JJI)V") &&
+
+		CacheClass(env, &g_jni.clazzCSPAlgorithmInfo, "org/company/security/csp/CSPAlgorithmInfo") &&
+		CacheMethod(env, &g_jni.mCSPAlgorithmInfoInit, g_jni.clazzCSPAlgorithmInfo,
+				"<init>", "(IIILjava/lang/String;Ljava/lang/String;)V");
+}
+
+/*
+ * Загрузка библиотеки. Если какой-то класс или метод не найден,
+ * библиотека не загружается, ошибка видна сразу, а не при первом вызове.
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
+
+	if((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK)
+		return JNI_ERR;
+
+	memset(&g_jni, 0, sizeof(g_jni));
+
+	if(! InitJniCache(env)) {
+		ReleaseJniCache(env);
+		return JNI_ERR;
+	}
+	return JNI_VERSION_1_6;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
+
+	if((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK)
+		return;
+
+	ReleaseJniCache(env);
+}
@@ -89,6 +89,30 @@ JNIEnv *env, jclass clazz, jlong hCryptProv, jlong hCryptKey) {
 		CryptReleaseContext((HCRYPTPROV) hCryptProv, 0);
 }
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    keyDuplicate
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_org_company_security_csp_NativeCrypto_keyDuplicate(
+		JNIEnv *env, jclass clazz, jlong hCryptProv, jlong hCryptKey) {
+
+	HCRYPTKEY hDuplicateKey = (HCRYPTKEY) NULL;
+
+	if(! CryptDuplicateKey((HCRYPTKEY) hCryptKey, NULL, 0, &hDuplicateKey)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		return 0;
+	}
+
+	// копия ключа освобождает контекст провайдера независимо от оригинала
+	if(hCryptProv && ! CryptContextAddRef((HCRYPTPROV) hCryptProv, NULL, 0)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		CryptDestroyKey(hDuplicateKey);
+		return 0;
+	}
+	return (jlong) hDuplicateKey;
+}
+
 /*
  * Class:     org_company_security_csp_NativeCrypto
  * Method:    initPublicKey
@@ -105,8 +129,6 @@ JNIEXPORT jobject JNICALL Java_org_company_security_csp_NativeCrypto_initPublicK
 	jobject publicKey = NULL;
 	CERT_PUBLIC_KEY_INFO *pKeyInfo = NULL;
 	DWORD keyInfoSize;
-	jclass clazzCSPPublicKey;
-	jmethodID mNewCSPPublicKey;
 
 	pbEncoding = (BYTE *) (*env)->GetByteArrayElements(env, jKeyEncoding, 0);
 
@@ -154,15 +176,8 @@ JNIEXPORT jobject JNICALL Java_org_company_security_csp_NativeCrypto_initPublicK
 			goto _m_leave;
 		}
 
-		// Get the method ID for the CSPPublicKey constructor
-		clazzCSPPublicKey =
-				(*env)->FindClass(env, "org/company/security/csp/CSPPublicKey");
-
-		mNewCSPPublicKey =
-				(*env)->GetMethodID(env, clazzCSPPublicKey, "<init>", "(JJI[B)V");
-
 		// Create a new CSP public key
-		publicKey = (*env)->NewObject(env, clazzCSPPublicKey, mNewCSPPublicKey,
+		publicKey = (*env)->NewObject(env, g_jni.clazzCSPPublicKey, g_jni.mCSPPublicKeyInit,
 				(jlong) hCryptProv, (jlong) hPublicKey, (jint) dwKeySize, jKeyEncoding);
 	}
 	_m_leave:
@@ -185,6 +200,92 @@ JNIEXPORT jobject JNICALL Java_org_company_security_csp_NativeCrypto_initPublicK
 	return publicKey;
 }
 
+/*
+ * Открыть контейнер и получить ключ dwKeySpec. Если dwKeySpec == 0, берется
+ * ключ подписи, а при его отсутствии ключ обмена.
+ */
+static void AcquireContainer(JNIEnv *env, jobject jContext, jint jProviderId, jstring jContainer,
+		DWORD dwKeySpec) {
+
+	const char* pszContainer = NULL;
+	HCRYPTPROV hCryptProv = (HCRYPTPROV) NULL;
+	HCRYPTKEY hCryptKey = (HCRYPTKEY) NULL;
+	BOOL result = FALSE;
+
+	{
+		if(! jContainer) {
+			ThrowException(env, PROVIDER_EXCEPTION, NTE_BAD_KEYSET_PARAM);
+			goto _m_leave;
+		}
+
+		// название контейнера закрытого ключа
+		pszContainer = (*env)->GetStringUTFChars(env, jContainer, NULL);
+
+		if(! CryptAcquireContext(&hCryptProv, pszContainer, NULL, jProviderId, 0)) {
+			ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		if(dwKeySpec) {
+			// ключ, указанный в сертификате
+			if(! CryptGetUserKey(hCryptProv, dwKeySpec, &hCryptKey)) {
+				ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+				goto _m_leave;
+			}
+		}
+		else if(! CryptGetUserKey(hCryptProv, AT_SIGNATURE, &hCryptKey)) {
+			// нет ключа подписи, берем ключ обмена
+			if(! CryptGetUserKey(hCryptProv, AT_KEYEXCHANGE, &hCryptKey)) {
+				ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+				goto _m_leave;
+			}
+			dwKeySpec = AT_KEYEXCHANGE;
+		}
+		else
+			dwKeySpec = AT_SIGNATURE;
+
+		(*env)->CallVoidMethod(env, jContext, g_jni.mCSPContainerContextInitContext,
+				(jlong) hCryptProv, (jlong) hCryptKey, (jint) dwKeySpec);
+
+		result = ! (*env)->ExceptionCheck(env);
+	}
+	_m_leave:
+	{
+		if (pszContainer)
+			(*env)->ReleaseStringUTFChars(env, jContainer, pszContainer);
+
+		if(! result) {
+			if(hCryptKey)
+				CryptDestroyKey(hCryptKey);
+
+			if(hCryptProv)
+				CryptReleaseContext(hCryptProv, 0);
+		}
+	}
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    containerAcquire
+ * Signature: (Lorg/company/security/csp/CSPContainerContext;ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_containerAcquire(
+		JNIEnv *env, jclass clazz, jobject jContext, jint jProviderId, jstring jContainer) {
+
+	AcquireContainer(env, jContext, jProviderId, jContainer, 0);
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    containerAcquireKey
+ * Signature: (Lorg/company/security/csp/CSPContainerContext;ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_containerAcquireKey(
+		JNIEnv *env, jclass clazz, jobject jContext, jint jProviderId, jstring jContainer, jint jKeySpec) {
+
+	AcquireContainer(env, jContext, jProviderId, jContainer, (DWORD) jKeySpec);
+}
+
 JNIEXPORT jstring JNICALL Java_org_company_security_csp_NativeCrypto_getContainerName(
 		JNIEnv *env, jclass clazz, jlong hCryptProv) {
 	DWORD cbData = 1024;
@@ -214,3 +315,58 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_getPubli
 
 	return NULL;
 }
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    secretKeyGenerate
+ * Signature: (Ljava/lang/String;)Lorg/company/security/csp/CSPSecretKey;
+ */
+JNIEXPORT jobject JNICALL Java_org_company_security_csp_NativeCrypto_secretKeyGenerate(
+		JNIEnv *env, jclass clazz, jstring jAlgorithm) {
+
+	HCRYPTPROV hCryptProv = (HCRYPTPROV) NULL;
+	HCRYPTKEY hSecretKey = (HCRYPTKEY) NULL;
+	DWORD dwProvId;
+	DWORD dwBitLen;
+	ALG_ID algId;
+	jobject secretKey = NULL;
+
+	{
+		algId = MapEncryptAlgorithm(env, jAlgorithm);
+		if(! algId) {
+			ThrowException(env, NOSUCHALGORITHM_EXCEPTION, NTE_BAD_ALGID);
+			goto _m_leave;
+		}
+
+		// тип провайдера берем из таблицы алгоритмов
+		if(! FindProviderByAlg(env, NULL, algId, &dwProvId, &dwBitLen)) {
+			goto _m_leave;
+		}
+
+		// сессионный ключ не хранится в контейнере
+		if(! CryptAcquireContext(&hCryptProv, NULL, NULL, dwProvId, CRYPT_VERIFYCONTEXT)) {
+			ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		if(! CryptGenKey(hCryptProv, algId, CRYPT_EXPORTABLE, &hSecretKey)) {
+			ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		secretKey = (*env)->NewObject(env, g_jni.clazzCSPSecretKey, g_jni.mCSPSecretKeyInit,
+				(jlong) hCryptProv, (jlong) hSecretKey, (jint) dwBitLen);
+	}
+	_m_leave:
+	{
+		if(! secretKey) {
+			if(hSecretKey)
+				CryptDestroyKey(hSecretKey);
+
+			if(hCryptProv)
+				CryptReleaseContext(hCryptProv, 0);
+		}
+	}
+
+	return secretKey;
+}
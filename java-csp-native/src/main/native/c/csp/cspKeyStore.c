@@ -122,34 +122,235 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_closeKeyStore(
 }
 */
 
-/**
- * Загрузить цепочку сертификатов
+/*
+ * Открыть системное хранилище или хранилище в файле
  */
-JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_loadKeysOrCertificateChains(
-		JNIEnv *env, jclass clazz, jobject jKeyStore, jstring jCertStoreName,
-		jobject jCollections, jboolean jSystem, jint jProviderId) {
+static HCERTSTORE OpenCertStoreByName(const char* pszCertStoreName, jboolean jSystem, HCRYPTPROV hStoreProv) {
+	if(jSystem == JNI_TRUE) {
+#ifdef DEBUG
+		fprintf(stderr, "CertOpenSystemStore %s\n", pszCertStoreName);
+#endif
+		return CertOpenSystemStore(hStoreProv, pszCertStoreName);
+	}
+	else {
+		LPCSTR lpszStoreProvider = CERT_STORE_PROV_FILENAME_A;
+		DWORD dwMsgAndCertEncodingType = X509_ASN_ENCODING | PKCS_7_ASN_ENCODING;
+		DWORD dwFlags =
+				CERT_STORE_NO_CRYPT_RELEASE_FLAG |
+				CERT_STORE_SET_LOCALIZED_NAME_FLAG |
+				CERT_STORE_READONLY_FLAG;
+
+#ifdef DEBUG
+		fprintf(stderr, "CertOpenStore %s\n", pszCertStoreName);
+#endif
+		return CertOpenStore(
+				lpszStoreProvider,
+				dwMsgAndCertEncodingType,
+				hStoreProv,
+				dwFlags,
+				pszCertStoreName);
+	}
+}
+
+/*
+ * Сведения о закрытом ключе из свойства сертификата CERT_KEY_PROV_INFO_PROP_ID.
+ * Контейнер при этом не открывается.
+ */
+static BOOL GetKeyProviderInfo(PCCERT_CONTEXT pCertContext, char *szContainer, DWORD cbContainer,
+		DWORD *pdwProviderId, DWORD *pdwKeySpec) {
+	PCRYPT_KEY_PROV_INFO pKeyProvInfo = NULL;
+	DWORD cbKeyProvInfo = 0;
+	BOOL result = FALSE;
+
+	if(! CertGetCertificateContextProperty(pCertContext, CERT_KEY_PROV_INFO_PROP_ID, NULL, &cbKeyProvInfo))
+		return FALSE;
+
+	pKeyProvInfo = (PCRYPT_KEY_PROV_INFO) malloc(cbKeyProvInfo);
+
+	if(pKeyProvInfo
+			&& CertGetCertificateContextProperty(pCertContext, CERT_KEY_PROV_INFO_PROP_ID, pKeyProvInfo, &cbKeyProvInfo)
+			&& pKeyProvInfo->pwszContainerName
+			&& wcstombs(szContainer, pKeyProvInfo->pwszContainerName, cbContainer) < cbContainer) {
+
+		*pdwProviderId = pKeyProvInfo->dwProvType;
+		*pdwKeySpec = pKeyProvInfo->dwKeySpec;
+		result = *szContainer != '\0';
+	}
+
+	if(pKeyProvInfo)
+		free(pKeyProvInfo);
+	return result;
+}
+
+/*
+ * Буфер упакованных записей хранилища, растет по мере заполнения.
+ * Числа записываются в порядке байт платформы.
+ */
+typedef struct {
+	BYTE* pbData;
+	DWORD cbData;
+	DWORD cbAlloc;
+	BOOL bFailed;
+} PACKED_BUFFER;
+
+static void PackBytes(PACKED_BUFFER *pBuffer, const void *pbData, DWORD cbData) {
+	if(pBuffer->bFailed)
+		return;
+
+	if(pBuffer->cbData + cbData > pBuffer->cbAlloc) {
+		DWORD cbAlloc = pBuffer->cbAlloc ? pBuffer->cbAlloc : 64 * 1024;
+		BYTE* pbRealloc;
+
+		while(pBuffer->cbData + cbData > cbAlloc)
+			cbAlloc *= 2;
+
+		pbRealloc = (BYTE*) realloc(pBuffer->pbData, cbAlloc);
+		if(! pbRealloc) {
+			pBuffer->bFailed = TRUE;
+			return;
+		}
+		pBuffer->pbData = pbRealloc;
+		pBuffer->cbAlloc = cbAlloc;
+	}
+	memcpy(pBuffer->pbData + pBuffer->cbData, pbData, cbData);
+	pBuffer->cbData += cbData;
+}
+
+static void PackInt(PACKED_BUFFER *pBuffer, jint value) {
+	PackBytes(pBuffer, &value, sizeof(value));
+}
+
+static void PackLong(PACKED_BUFFER *pBuffer, jlong value) {
+	PackBytes(pBuffer, &value, sizeof(value));
+}
+
+/*
+ * Длина и байты строки, для NULL длина -1
+ */
+static void PackString(PACKED_BUFFER *pBuffer, const char *psz) {
+	if(! psz) {
+		PackInt(pBuffer, -1);
+		return;
+	}
+	PackInt(pBuffer, (jint) strlen(psz));
+	PackBytes(pBuffer, psz, (DWORD) strlen(psz));
+}
+
+/*
+ * Освободить ключи первых count записей буфера, если буфер не передан в Java
+ */
+static void ReleasePackedKeys(PACKED_BUFFER *pBuffer, jint count) {
+	DWORD offset = sizeof(jint);
+	jint i, j;
+
+	for(i = 0; i < count; i++) {
+		jint type, length, certificates;
+		jlong hCryptProv, hCryptKey;
+
+		memcpy(&type, pBuffer->pbData + offset, sizeof(jint));
+		offset += 4 * sizeof(jint);
+		memcpy(&hCryptProv, pBuffer->pbData + offset, sizeof(jlong));
+		memcpy(&hCryptKey, pBuffer->pbData + offset + sizeof(jlong), sizeof(jlong));
+		offset += 2 * sizeof(jlong);
+
+		if(type == 1) {
+			if(hCryptKey)
+				CryptDestroyKey((HCRYPTKEY) hCryptKey);
+			if(hCryptProv)
+				CryptReleaseContext((HCRYPTPROV) hCryptProv, 0);
+		}
+
+		// псевдоним и контейнер
+		for(j = 0; j < 2; j++) {
+			memcpy(&length, pBuffer->pbData + offset, sizeof(jint));
+			offset += sizeof(jint) + (length > 0 ? length : 0);
+		}
+
+		memcpy(&certificates, pBuffer->pbData + offset, sizeof(jint));
+		offset += sizeof(jint);
+		for(j = 0; j < certificates; j++) {
+			memcpy(&length, pBuffer->pbData + offset, sizeof(jint));
+			offset += sizeof(jint) + length;
+		}
+	}
+}
+
+/*
+ * Дружественное имя сертификата в UTF-8 или NULL. Освобождается через free.
+ */
+static char* GetFriendlyName(PCCERT_CONTEXT pc) {
+	char* pszNameString = NULL;
+	DWORD cchNameString;
+
+	if ((cchNameString = CertGetNameString(pc,
+			CERT_NAME_FRIENDLY_DISPLAY_TYPE, 0, NULL,
+			NULL, 0)) > 1) {
+
+		pszNameString = malloc(cchNameString);
+		if(! pszNameString)
+			return NULL;
+
+		CertGetNameString(pc,
+				CERT_NAME_FRIENDLY_DISPLAY_TYPE, 0,
+				NULL, pszNameString, cchNameString);
+
+#if defined(_MSC_VER) && _MSC_VER > 1310
+		// переводим текст из текущей локали в Unicode и далее в UTF-8
+		if(*pszNameString) {
+			char unicode[2048];
+			char szUtf8[1024];
+
+			MultiByteToWideChar(CP_ACP, 0, pszNameString, -1, (LPCWSTR) unicode, 1024);
+			WideCharToMultiByte(CP_UTF8, 0, (LPCWSTR) unicode, -1, szUtf8, 1024, NULL, NULL);
+
+			if(*szUtf8) {
+				char* pszUtf8 = malloc(strlen(szUtf8) + 1);
+
+				if(pszUtf8) {
+					strcpy(pszUtf8, szUtf8);
+					free(pszNameString);
+					pszNameString = pszUtf8;
+				}
+			}
+		}
+#endif
+	}
+	return pszNameString;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    loadKeyStoreEntries
+ * Signature: (Ljava/lang/String;ZIZ)[B
+ *
+ * Перечислить хранилище за один вызов без обращений к Java на каждый сертификат.
+ * Результат - упакованные записи (формат разбирает CSPKeyStoreReader):
+ *   int число записей, далее для каждой цепочки
+ *   int тип (0 - только сертификаты, 1 - открытый ключ, 2 - ключ не открыт),
+ *   int providerId, int keySpec, int длина ключа, long HCRYPTPROV, long HCRYPTKEY,
+ *   строка псевдонима, строка контейнера, int число сертификатов,
+ *   для каждого int длина и DER кодировка.
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_loadKeyStoreEntries(
+		JNIEnv *env, jclass clazz, jstring jCertStoreName,
+		jboolean jSystem, jint jProviderId, jboolean jLazyKeys) {
 
 	const char* pszCertStoreName = NULL;
 	HCERTSTORE hCertStore = NULL;
 	PCCERT_CONTEXT pCertContext = NULL;
-	char* pszNameString = NULL; // certificate's friendly name
-	DWORD cchNameString = 0;
 	HCRYPTPROV hStoreProv = (HCRYPTPROV) NULL;
+	PACKED_BUFFER buffer;
+	jint count = 0;
+	jbyteArray jResult = NULL;
 
-	{
-		jclass clazzArrayList;
-		jmethodID mNewArrayList;
-		jmethodID mGenCert;
-		jmethodID mGenCertChain;
-		jmethodID mGenCSPKeyAndCertChain;
+	memset(&buffer, 0, sizeof(buffer));
 
-		// нет названия хранилища - выход
+	{
 		if(!jCertStoreName) {
 			ThrowException(env, KEYSTORE_EXCEPTION, ERROR_FILE_NOT_FOUND);
 			goto _m_leave;
 		}
 
-		// Open a system certificate store.
 		pszCertStoreName = (*env)->GetStringUTFChars(env, jCertStoreName, NULL );
 
 		if(jProviderId) {
@@ -159,264 +360,144 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_loadKeysOrCert
 			}
 		}
 
-		if(jSystem == JNI_TRUE) {
-#ifdef DEBUG
-			fprintf(stderr, "CertOpenSystemStore %s\n", pszCertStoreName);
-#endif
-			hCertStore = CertOpenSystemStore(hStoreProv, pszCertStoreName);
-		}
-		else {
-			LPCSTR lpszStoreProvider = CERT_STORE_PROV_FILENAME_A;
-			DWORD dwMsgAndCertEncodingType = X509_ASN_ENCODING | PKCS_7_ASN_ENCODING;
-			DWORD dwFlags =
-					CERT_STORE_NO_CRYPT_RELEASE_FLAG |
-					CERT_STORE_SET_LOCALIZED_NAME_FLAG |
-					CERT_STORE_READONLY_FLAG;
-
-#ifdef DEBUG
-			fprintf(stderr, "CertOpenStore %s\n", pszCertStoreName);
-#endif
-			hCertStore = CertOpenStore(
-					lpszStoreProvider,
-					dwMsgAndCertEncodingType,
-					hStoreProv,
-					dwFlags,
-					pszCertStoreName);
-		}
+		hCertStore = OpenCertStoreByName(pszCertStoreName, jSystem, hStoreProv);
 		if(hCertStore == NULL) {
 			ThrowException(env, KEYSTORE_EXCEPTION, GetLastError());
 			goto _m_leave;
 		}
 
-		// Determine clazz and method ID to generate certificate
-		clazzArrayList = (*env)->FindClass(env, "java/util/ArrayList");
+		// место под число записей
+		PackInt(&buffer, 0);
 
-		mNewArrayList = (*env)->GetMethodID(env, clazzArrayList,
-				"<init>", "()V");
-
-		mGenCert = (*env)->GetMethodID(env,
-				(*env)->GetObjectClass(env, jKeyStore), "generateCertificate",
-				"([BLjava/util/Collection;)V");
-
-		// Determine method ID to generate certificate chain
-		mGenCertChain =
-				(*env)->GetMethodID(env, (*env)->GetObjectClass(env, jKeyStore),
-						"generateCertificateChain",
-						"(Ljava/lang/String;Ljava/util/Collection;Ljava/util/Collection;)V");
-
-		// Determine method ID to generate RSA certificate chain
-		mGenCSPKeyAndCertChain =
-				(*env)->GetMethodID(env, (*env)->GetObjectClass(env, jKeyStore),
-						"generateCSPKeyAndCertificateChain",
-						"(Ljava/lang/String;Ljava/lang/String;IJJILjava/util/Collection;Ljava/util/Collection;)V");
-
-		// Use CertEnumCertificatesInStore to get the certificates
-		// from the open store. pCertContext must be reset to
-		// NULL to retrieve the first certificate in the store.
 		while ((pCertContext = CertEnumCertificatesInStore(hCertStore, pCertContext)) != NULL) {
-			// Check if private key available - client authentication certificate
-			// must have private key available.
 			HCRYPTPROV hCryptProv = (HCRYPTPROV) NULL;
-			DWORD dwKeySpec = 0;
 			HCRYPTKEY hUserKey = (HCRYPTKEY) NULL;
-			DWORD dwKeyId = 0;
-			BOOL bCallerFreeProv = FALSE;
-			BOOL bHasNoPrivateKey = FALSE;
+			DWORD dwKeySpec = 0;
+			DWORD dwProviderId = 0;
 			DWORD dwPublicKeyLength = 0;
-			char szContainer[1024];			// название контейнера закрытого ключа
-			DWORD cbContainerLen = 1024l;	// максимальный размер буфера названия контейнера
-			char szUniqueContainer[1024];		// название контейнера закрытого ключа для CryptAcquireContext
-			DWORD cbUniqueContainerLen = 1024l;	// максимальный размер буфера названия контейнера
-			DWORD dwProviderId;
+			BOOL bCallerFreeProv = FALSE;
+			jint type = 0;
+			char szContainer[1024];			// название контейнера для псевдонима
+			DWORD cbContainerLen = sizeof(szContainer);
+			char szUniqueContainer[1024];		// название контейнера для CryptAcquireContext
+			DWORD cbUniqueContainerLen = sizeof(szUniqueContainer);
 			DWORD cbProviderIdLen = sizeof(DWORD);
 			PCCERT_CHAIN_CONTEXT pCertChainContext = NULL;
+			char* pszNameString = NULL;
+			unsigned int i, j;
 
 			szContainer[0] = '\0';
-
-#ifdef DEBUG
-			{
-				CERT_PUBLIC_KEY_INFO publicKeyInfo =((PCCERT_CONTEXT) pCertContext)->pCertInfo->SubjectPublicKeyInfo;
-
-				fprintf(stderr, "loadKeysOrCertificateChains algId: %s publicKey.size: %d\n",
-						publicKeyInfo.Algorithm.pszObjId,
-						publicKeyInfo.PublicKey.cbData
-						);
-			}
-#endif
+			szUniqueContainer[0] = '\0';
 
 			// определяем наличие приватного ключа
-			if (CryptAcquireCertificatePrivateKey(pCertContext, 0, NULL,
-					&hCryptProv, &dwKeySpec, &bCallerFreeProv) == FALSE) {
-				bHasNoPrivateKey = TRUE;
-			}
-			else {
-				BOOL bGetUserKey;
-
-				// получаем название контейнера закрытого ключа для псевдонима ключа
-				if(! CryptGetProvParam((HCRYPTPROV) hCryptProv, PP_CONTAINER, (BYTE*) szContainer, &cbContainerLen, 0)) {
-					ThrowException(env, KEYSTORE_EXCEPTION, GetLastError());
-					goto _m_leave;
+			if (jLazyKeys == JNI_TRUE) {
+				if (GetKeyProviderInfo(pCertContext, szContainer, sizeof(szContainer),
+						&dwProviderId, &dwKeySpec)) {
+					type = 2;
+					strcpy(szUniqueContainer, szContainer);
 				}
-
-				// получаем название контейнера закрытого ключа для CryptAcquireContext
-				if(! CryptGetProvParam((HCRYPTPROV) hCryptProv, PP_UNIQUE_CONTAINER, (BYTE*) szUniqueContainer, &cbUniqueContainerLen, 0)) {
-					ThrowException(env, KEYSTORE_EXCEPTION, GetLastError());
-					goto _m_leave;
+				else {
+					szContainer[0] = '\0';
 				}
+			}
+			else if (CryptAcquireCertificatePrivateKey(pCertContext, 0, NULL,
+					&hCryptProv, &dwKeySpec, &bCallerFreeProv)) {
 
-				// получаем идентификатор провайдера
-				if(! CryptGetProvParam((HCRYPTPROV) hCryptProv, PP_PROVTYPE, (BYTE*) &dwProviderId, &cbProviderIdLen, 0)) {
-					ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+				if(! CryptGetProvParam(hCryptProv, PP_CONTAINER, (BYTE*) szContainer, &cbContainerLen, 0)
+						|| ! CryptGetProvParam(hCryptProv, PP_UNIQUE_CONTAINER, (BYTE*) szUniqueContainer, &cbUniqueContainerLen, 0)
+						|| ! CryptGetProvParam(hCryptProv, PP_PROVTYPE, (BYTE*) &dwProviderId, &cbProviderIdLen, 0)) {
+					ThrowException(env, KEYSTORE_EXCEPTION, GetLastError());
+					CryptReleaseContext(hCryptProv, 0);
 					goto _m_leave;
 				}
 
-				// присутствует закрытый ключ
-				bGetUserKey = CryptGetUserKey(hCryptProv, dwKeySpec, &hUserKey);
+				CryptGetUserKey(hCryptProv, dwKeySpec, &hUserKey);
+				type = 1;
+			}
 
+			if (type != 0) {
 				dwPublicKeyLength = CertGetPublicKeyLength(
 						X509_ASN_ENCODING | PKCS_7_ASN_ENCODING,
 						&(pCertContext->pCertInfo->SubjectPublicKeyInfo));
-
-#ifdef DEBUG
-				if(bGetUserKey) {
-					DWORD cbSize = sizeof(DWORD);
-					DWORD algId;
-					const char* alg = "N/A";
-
-					CryptGetKeyParam(hUserKey, KP_ALGID, (BYTE*)&dwKeyId, &cbSize, 0);
-					algId = dwKeyId;
-
-					if(algId == CALG_G28147) alg = "CALG_G28147";
-					else if(algId == CALG_GR3410EL) alg = "CALG_GR3410EL";
-					else if(algId == CALG_DH_EL_SF) alg = "CALG_DH_EL_SF";
-					else if(algId == CALG_DH_EL_EPHEM) alg = "CALG_DH_EL_EPHEM";
-
-					fprintf(stderr, "loadKeysOrCertificateChains read key ALG_ID = %x (%s) OID: %s\n", dwKeyId, alg, CertAlgIdToOID(dwKeyId));
-				}
-				fprintf(stderr, "loadKeysOrCertificateChains container: %s  uniqueContainer: %s\n", szContainer, szUniqueContainer);
-#endif
 			}
 
-			// Build certificate chain by using system certificate store.
-			// Add cert chain into collection for any key usage.
-			//
 			if (GetCertificateChain(OID_EKU_ANY, pCertContext, &pCertChainContext)) {
-				unsigned int i, j;
-#ifdef DEBUG
-				fprintf(stderr, "CertificateChain.size=%d\n", pCertChainContext->cChain);
-#endif
 				for (i = 0; i < pCertChainContext->cChain; i++) {
-					// Found cert chain
 					PCERT_SIMPLE_CHAIN rgpChain = pCertChainContext->rgpChain[i];
 
-					// Create ArrayList to store certs in each chain
-					jobject jArrayList = (*env)->NewObject(env, clazzArrayList, mNewArrayList);
+					if (rgpChain->cElement == 0)
+						continue;
 
-#ifdef DEBUG
-					fprintf(stderr, "CertificateChain element[%d] have elements %d\n", i, rgpChain->cElement);
-#endif
-					for (j = 0; j < rgpChain->cElement; j++) {
-						BYTE* pbCertEncoded;
-						DWORD cbCertEncoded;
-						jbyteArray byteArray;
-
-						PCERT_CHAIN_ELEMENT rgpElement = rgpChain->rgpElement[j];
-						PCCERT_CONTEXT pc = rgpElement->pCertContext;
-
-						// Retrieve the friendly name of the first certificate
-						// in the chain
-						if (j == 0) {
-
-							// If the cert's name cannot be retrieved then
-							// pszNameString remains set to NULL.
-							// (An alias name will be generated automatically
-							// when storing this cert in the keystore.)
-
-							// Get length of friendly name
-							if ((cchNameString = CertGetNameString(pc,
-									CERT_NAME_FRIENDLY_DISPLAY_TYPE, 0, NULL,
-									NULL, 0)) > 1) {
-
-								// Found friendly name
-								pszNameString = malloc(cchNameString);
-								CertGetNameString(pc,
-										CERT_NAME_FRIENDLY_DISPLAY_TYPE, 0,
-										NULL, pszNameString, cchNameString);
-
-#if defined(_MSC_VER) && _MSC_VER > 1310
-								// переводим текст из текущей локали в Unicode и далее в UTF-8
-								if(pszNameString && *pszNameString) {
-									char unicode[2048];
-									char szUtf8[1024];
-
-									MultiByteToWideChar(CP_ACP, 0, pszNameString, -1, (LPCWSTR) unicode, 1024);
-									WideCharToMultiByte(CP_UTF8, 0, (LPCWSTR) unicode, -1, szUtf8, 1024, NULL, NULL);
-
-									if(*szUtf8) {
-										cchNameString = strlen(szUtf8) + 1;
-
-										free(pszNameString);
-										pszNameString = malloc(cchNameString);
-
-										strcpy(pszNameString, szUtf8);
-									}
-								}
-#endif
-							}
-
-							// нет названия сертификата, берем его из названия контейнера
-							if(pszNameString == NULL && !bHasNoPrivateKey) {
-								pszNameString = malloc(cbContainerLen);
-								strcpy(pszNameString, szContainer);
-							}
-						}
+					if (! pszNameString) {
+						pszNameString = GetFriendlyName(rgpChain->rgpElement[0]->pCertContext);
+					}
 
-						pbCertEncoded = pc->pbCertEncoded;
-						cbCertEncoded = pc->cbCertEncoded;
+					PackInt(&buffer, type);
+					PackInt(&buffer, (jint) dwProviderId);
+					PackInt(&buffer, (jint) dwKeySpec);
+					PackInt(&buffer, (jint) dwPublicKeyLength);
+					PackLong(&buffer, (jlong) hCryptProv);
+					PackLong(&buffer, (jlong) hUserKey);
+					// нет названия сертификата, берем его из названия контейнера
+					PackString(&buffer, pszNameString ? pszNameString : (type != 0 ? szContainer : NULL));
+					PackString(&buffer, type != 0 ? szUniqueContainer : NULL);
+					PackInt(&buffer, (jint) rgpChain->cElement);
 
-						// Allocate and populate byte array
-						byteArray = (*env)->NewByteArray(env, cbCertEncoded);
-						(*env)->SetByteArrayRegion(env, byteArray, 0, cbCertEncoded, (jbyte*) pbCertEncoded);
+					for (j = 0; j < rgpChain->cElement; j++) {
+						PCCERT_CONTEXT pc = rgpChain->rgpElement[j]->pCertContext;
 
-						// Generate certificate from byte array and store into
-						// cert collection
-						(*env)->CallVoidMethod(env, jKeyStore, mGenCert, byteArray, jArrayList);
+						PackInt(&buffer, (jint) pc->cbCertEncoded);
+						PackBytes(&buffer, pc->pbCertEncoded, pc->cbCertEncoded);
 					}
-					if (bHasNoPrivateKey) {
-#ifdef DEBUG
-						fprintf(stderr, "call generateCertificateChain\n");
-#endif
-						// Generate certificate chain and store into cert chain
-						// collection
-						(*env)->CallVoidMethod(env, jKeyStore, mGenCertChain,
-								(*env)->NewStringUTF(env, pszNameString),
-								jArrayList, jCollections);
-					} else {
-#ifdef DEBUG
-						fprintf(stderr, "call generateCSPKeyAndCertificateChain\n");
-#endif
-						(*env)->CallVoidMethod(env, jKeyStore, mGenCSPKeyAndCertChain,
-								(*env)->NewStringUTF(env, pszNameString),
-								(*env)->NewStringUTF(env, szUniqueContainer),
-								dwProviderId,
-								(jlong) hCryptProv, (jlong) hUserKey,
-								dwPublicKeyLength, jArrayList, jCollections);
+
+					// недописанная запись не считается, ее ключ освобождается ниже
+					if (buffer.bFailed)
+						break;
+					count++;
+
+					if (type == 1) {
+						// дескрипторы принадлежат первой записи, остальные цепочки
+						// того же сертификата откроют контейнер сами
+						type = 2;
+						hCryptProv = (HCRYPTPROV) NULL;
+						hUserKey = (HCRYPTKEY) NULL;
 					}
 				}
 
-				// Free cert chain
-				if (pCertChainContext)
-					CertFreeCertificateChain(pCertChainContext);
+				CertFreeCertificateChain(pCertChainContext);
 			}
-#ifdef DEBUG
-			else {
-				fprintf(stderr, "GetCertificateChain return false\n");
+
+			// цепочка не построена, ключ никому не передан
+			if (type == 1) {
+				if (hUserKey)
+					CryptDestroyKey(hUserKey);
+				CryptReleaseContext(hCryptProv, 0);
+			}
+
+			if (pszNameString)
+				free(pszNameString);
+
+			if (buffer.bFailed) {
+				ThrowException(env, KEYSTORE_EXCEPTION, NTE_NO_MEMORY);
+				goto _m_leave;
 			}
-#endif
 		}
+
+		memcpy(buffer.pbData, &count, sizeof(count));
+
+		jResult = (*env)->NewByteArray(env, buffer.cbData);
+		if (jResult)
+			(*env)->SetByteArrayRegion(env, jResult, 0, buffer.cbData, (jbyte*) buffer.pbData);
 	}
 	_m_leave:
 	{
+		// записи не дошли до Java, их ключи освобождаются здесь
+		if (! jResult && buffer.pbData)
+			ReleasePackedKeys(&buffer, count);
+
+		if (pCertContext)
+			CertFreeCertificateContext(pCertContext);
+
 		if (hCertStore)
 			CertCloseStore(hCertStore, 0);
 
@@ -426,9 +507,10 @@ JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_loadKeysOrCert
 		if (pszCertStoreName)
 			(*env)->ReleaseStringUTFChars(env, jCertStoreName, pszCertStoreName);
 
-		if (pszNameString)
-			free(pszNameString);
+		if (buffer.pbData)
+			free(buffer.pbData);
 	}
+	return jResult;
 }
 
 /*
@@ -45,6 +45,13 @@
 
 #define OID_EKU_ANY         "2.5.29.37.0"
 
+/*
+ * Size of the stack buffer used by the JNI hot paths instead of malloc.
+ * Larger data is processed in chunks of this size, or, where the
+ * CryptoAPI call needs the whole data at once, in a heap buffer.
+ */
+#define SCRATCH_BUFFER_SIZE 4096
+
 #define CERTIFICATE_PARSING_EXCEPTION \
                             "java/security/cert/CertificateParsingException"
 #define DIGEST_EXCEPTION    "java/security/DigestException"
@@ -59,6 +66,34 @@
 #define NOSUCHALGORITHM_EXCEPTION \
                             "java/security/NoSuchAlgorithmException"
 
+/*
+ * Java classes and method IDs used by the native code.
+ * Resolved once in JNI_OnLoad and held as global references.
+ */
+typedef struct _CSP_JNI_CACHE {
+	jclass      clazzNativeCrypto;
+
+	jclass      clazzCSPDigest;
+	jmethodID   mCSPDigestInitDigest;
+
+	jclass      clazzCSPSignature;
+	jmethodID   mCSPSignatureInitDigestParameters;
+
+	jclass      clazzCSPPublicKey;
+	jmethodID   mCSPPublicKeyInit;
+
+	jclass      clazzCSPSecretKey;
+	jmethodID   mCSPSecretKeyInit;
+
+	jclass      clazzCSPContainerContext;
+	jmethodID   mCSPContainerContextInitContext;
+
+	jclass      clazzCSPAlgorithmInfo;
+	jmethodID   mCSPAlgorithmInfoInit;
+} CSP_JNI_CACHE;
+
+extern CSP_JNI_CACHE g_jni;
+
 /*
  * Throws an arbitrary Java exception.
  * The exception message is a Windows system error message.
@@ -76,6 +111,21 @@ ALG_ID MapEncryptAlgorithm(JNIEnv *env, jstring jAlgorithm);
 
 ALG_ID MapExchangeAlgorithm(JNIEnv *env, jstring jAlgorithm);
 
+/*
+ * Maps the name of a MAC algorithm to a keyed hash algorithm identifier.
+ */
+ALG_ID MapMacHashAlgorithm(JNIEnv *env, jstring jAlgorithm);
+
 BOOL FindProviderByAlg(JNIEnv *env, const char* pszAlgOID, ALG_ID algId, DWORD *pdwProvId, DWORD *pdwBitLen);
 
+/*
+ * Determines the key spec (AT_SIGNATURE/AT_KEYEXCHANGE) by the key algorithm.
+ */
+BOOL GetKeySpec(JNIEnv *env, HCRYPTKEY hCryptKey, DWORD *pdwKeySpec);
+
+/*
+ * Reverses the byte order of the buffer in place (little endian <-> big endian).
+ */
+void ReverseBytes(BYTE *pbData, DWORD cbData);
+
 #endif /* CSPPROVIDER_H_ */
@@ -23,60 +23,72 @@
 #include "org_company_security_csp_NativeCrypto.h"
 
 /*
- * Class:     org_company_security_csp_NativeCrypto
- * Method:    signHash
- * Signature: (Z[BILjava/lang/String;Ljava/lang/String;JJ)[B
+ * Вернуть подпись из нативного буфера в Java. Подпись переводится в big endian
+ * на месте и записывается в jOut начиная с jOutOffset, если jOut задан,
+ * иначе в новый массив *pjSignedHash.
+ * Возвращает длину подписи или -1 при ошибке.
  */
-JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_sign(
-		JNIEnv *env, jclass clazz, jobject jSignature,
+static jint ReturnSignature(JNIEnv *env, BYTE* pbSignature, DWORD dwSignatureLen,
+		jbyteArray jOut, jint jOutOffset, jint jOutLength,
+		jbyteArray *pjSignedHash) {
+
+	ReverseBytes(pbSignature, dwSignatureLen);
+
+	if(jOut) {
+		if((jint) dwSignatureLen > jOutLength) {
+			ThrowException(env, SIGNATURE_EXCEPTION, NTE_BAD_LEN);
+			return -1;
+		}
+		(*env)->SetByteArrayRegion(env, jOut, jOutOffset, dwSignatureLen, (jbyte*) pbSignature);
+	}
+	else {
+		*pjSignedHash = (*env)->NewByteArray(env, dwSignatureLen);
+		if(! *pjSignedHash)
+			return -1;
+
+		(*env)->SetByteArrayRegion(env, *pjSignedHash, 0, dwSignatureLen, (jbyte*) pbSignature);
+	}
+	return (jint) dwSignatureLen;
+}
+
+/*
+ * Назначение ключа: переданное из Java (контекст контейнера уже знает его),
+ * либо определенное по алгоритму ключа, если jKeySpec == 0.
+ */
+static BOOL ResolveKeySpec(JNIEnv *env, HCRYPTKEY hCryptKey, jint jKeySpec, DWORD *pdwKeySpec) {
+	if(jKeySpec) {
+		*pdwKeySpec = (DWORD) jKeySpec;
+		return TRUE;
+	}
+	return GetKeySpec(env, hCryptKey, pdwKeySpec);
+}
+
+/*
+ * Подписать значение хеш функции ключом открытого контекста.
+ * Контекст и ключ не закрываются.
+ * Подпись возвращается через ReturnSignature.
+ */
+static jint SignHashValue(JNIEnv *env, jobject jSignature,
 		jboolean noHashOID,
 		jbyteArray jHash, jint jHashSize,
 		jstring jHashAlgorithm,
-		jint jProviderId,
-		jstring jContainer) {
+		HCRYPTPROV hCryptProv, DWORD dwKeySpec,
+		jbyteArray jOut, jint jOutOffset, jint jOutLength,
+		jbyteArray *pjSignedHash) {
 
-	const char* pszContainer = NULL; // certificate's friendly name
-	HCRYPTPROV hCryptProv = (HCRYPTPROV) NULL;
-	HCRYPTKEY hCryptKey = (HCRYPTKEY) NULL;
 	HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+	jbyte hashScratch[SCRATCH_BUFFER_SIZE / 4];
+	jbyte signScratch[SCRATCH_BUFFER_SIZE / 4];
 	jbyte* pHashBuffer = NULL;
-	jbyteArray jSignedHash = NULL;
 	jbyte* pSignedHashBuffer = NULL;
 	DWORD dwBufLen = sizeof(DWORD);
-	DWORD dwProviderImpl;
+	jint result = -1;
 
 	{
 		ALG_ID hashAlgId;
 		DWORD cbHash;
 		DWORD cbHashLen;
 		DWORD dwFlags;
-		jclass clazzCSPSignature;
-		jmethodID mCSPInitDigestParameters;
-
-		// название контейнера закрытого ключа
-		pszContainer = (*env)->GetStringUTFChars(env, jContainer, NULL );
-
-#ifdef DEBUG
-		fprintf(stderr, "init context \"%s\"\n", pszContainer);
-#endif
-
-		if(! CryptAcquireContext(&hCryptProv,
-				pszContainer,
-				NULL, jProviderId, 0)) {
-			ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
-			goto _m_leave;
-		}
-
-		if(! CryptGetUserKey(hCryptProv, AT_SIGNATURE, &hCryptKey)) {
-			// нет ключа подписи, берем ключ обмена
-			if(! CryptGetUserKey(hCryptProv, AT_KEYEXCHANGE, &hCryptKey)) {
-				ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
-				goto _m_leave;
-			}
-			dwProviderImpl = AT_KEYEXCHANGE;
-		}
-		else
-			dwProviderImpl = AT_SIGNATURE;
 
 		// получаем идентификатор алгоритма хеш функции
 		hashAlgId = MapHashAlgorithm(env, jHashAlgorithm);
@@ -89,15 +101,8 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_sign(
 			goto _m_leave;
 		}
 
-		// Get the method ID for the CSPPublicKey constructor
-		clazzCSPSignature =
-				(*env)->FindClass(env, "org/company/security/csp/CSPSignature");
-
-		mCSPInitDigestParameters =
-				(*env)->GetMethodID(env, clazzCSPSignature, "initDigestParameters", "(JJ)V");
-
-		// Create a new CSP public key
-		(*env)->CallVoidMethod(env, jSignature, mCSPInitDigestParameters,
+		// параметры хеш функции устанавливает CSPSignature
+		(*env)->CallVoidMethod(env, jSignature, g_jni.mCSPSignatureInitDigestParameters,
 				(jlong) hCryptProv, (jlong) hCryptHash);
 
 
@@ -108,7 +113,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_sign(
 		}
 
 		// копируем хеш из Java в нативный буфер
-		pHashBuffer = (jbyte*) malloc(jHashSize);
+		pHashBuffer = jHashSize <= (jint) sizeof(hashScratch) ? hashScratch : (jbyte*) malloc(jHashSize);
 		(*env)->GetByteArrayRegion(env, jHash, 0, jHashSize, pHashBuffer);
 
 		// устанавливаем значение хеш функции
@@ -125,43 +130,434 @@ JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_sign(
 		}
 
 		// Определяем размер подписи
-		if(! CryptSignHash(hCryptHash, dwProviderImpl, NULL, dwFlags, NULL, &dwBufLen)) {
+		if(! CryptSignHash(hCryptHash, dwKeySpec, NULL, dwFlags, NULL, &dwBufLen)) {
 			ThrowException(env, SIGNATURE_EXCEPTION, GetLastError());
 			goto _m_leave;
 		}
 
-		pSignedHashBuffer = (jbyte*) malloc(dwBufLen);
-		if(! CryptSignHash(hCryptHash, dwProviderImpl, NULL, dwFlags, (BYTE*)pSignedHashBuffer, &dwBufLen)) {
+		pSignedHashBuffer = dwBufLen <= sizeof(signScratch) ? signScratch : (jbyte*) malloc(dwBufLen);
+		if(! CryptSignHash(hCryptHash, dwKeySpec, NULL, dwFlags, (BYTE*)pSignedHashBuffer, &dwBufLen)) {
 			ThrowException(env, SIGNATURE_EXCEPTION, GetLastError());
 			goto _m_leave;
 		}
 
-		// Create new byte array
-		jSignedHash = (*env)->NewByteArray(env, dwBufLen);
-
-		// Копируем данные из нативного буфера
-		(*env)->SetByteArrayRegion(env, jSignedHash, 0, dwBufLen, pSignedHashBuffer);
+		// подпись переворачивается на месте в буфере, который копируется в Java
+		result = ReturnSignature(env, (BYTE*) pSignedHashBuffer, dwBufLen,
+				jOut, jOutOffset, jOutLength, pjSignedHash);
 	}
 	_m_leave:
 	{
-		if (pSignedHashBuffer)
+		if (pSignedHashBuffer && pSignedHashBuffer != signScratch)
 			free(pSignedHashBuffer);
 
+		if (pHashBuffer && pHashBuffer != hashScratch)
+			free(pHashBuffer);
+
+		if(hCryptHash)
+			CryptDestroyHash(hCryptHash);
+	}
+	return result;
+}
+
+/*
+ * Хешировать и подписать сообщение ключом открытого контекста.
+ * Контекст и ключ не закрываются.
+ * Подпись возвращается через ReturnSignature.
+ */
+static jint HashAndSignValue(JNIEnv *env, jobject jSignature,
+		jbyteArray jData, jint jOffset, jint jLength,
+		jstring jHashAlgorithm,
+		HCRYPTPROV hCryptProv, HCRYPTKEY hCryptKey, jint jKeySpec,
+		jbyteArray jOut, jint jOutOffset, jint jOutLength,
+		jbyteArray *pjSignedHash) {
+
+	HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+	jbyte dataScratch[SCRATCH_BUFFER_SIZE];
+	jbyte signScratch[SCRATCH_BUFFER_SIZE / 4];
+	jbyte* pDataBuffer = NULL;
+	DWORD dwBufLen = sizeof(signScratch);
+	DWORD dwKeySpec;
+	ALG_ID hashAlgId;
+	jint result = -1;
+
+	{
+		if(! ResolveKeySpec(env, hCryptKey, jKeySpec, &dwKeySpec)) {
+			goto _m_leave;
+		}
+
+		hashAlgId = MapHashAlgorithm(env, jHashAlgorithm);
+
+		if(! CryptCreateHash(hCryptProv, hashAlgId, 0, 0, &hCryptHash)) {
+			ThrowException(env, SIGNATURE_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		// параметры хеш функции устанавливает CSPSignature
+		(*env)->CallVoidMethod(env, jSignature, g_jni.mCSPSignatureInitDigestParameters,
+				(jlong) hCryptProv, (jlong) hCryptHash);
+		if((*env)->ExceptionCheck(env))
+			goto _m_leave;
+
+		// сообщение короткое, копируем его в стековый буфер
+		pDataBuffer = jLength <= (jint) sizeof(dataScratch) ? dataScratch : (jbyte*) malloc(jLength);
+		if(! pDataBuffer) {
+			ThrowException(env, SIGNATURE_EXCEPTION, NTE_NO_MEMORY);
+			goto _m_leave;
+		}
+		(*env)->GetByteArrayRegion(env, jData, jOffset, jLength, pDataBuffer);
+
+		if(! CryptHashData(hCryptHash, (BYTE*) pDataBuffer, jLength, 0)) {
+			ThrowException(env, DIGEST_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		// подпись ГОСТ Р 34.10 помещается в стековый буфер, размер не запрашиваем
+		if(! CryptSignHash(hCryptHash, dwKeySpec, NULL, 0, (BYTE*) signScratch, &dwBufLen)) {
+			ThrowException(env, SIGNATURE_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		result = ReturnSignature(env, (BYTE*) signScratch, dwBufLen,
+				jOut, jOutOffset, jOutLength, pjSignedHash);
+	}
+	_m_leave:
+	{
+		if (pDataBuffer && pDataBuffer != dataScratch)
+			free(pDataBuffer);
+
+		if(hCryptHash)
+			CryptDestroyHash(hCryptHash);
+	}
+	return result;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    sign
+ * Signature: (Lorg/company/security/csp/CSPSignature;Z[BILjava/lang/String;ILjava/lang/String;)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_sign(
+		JNIEnv *env, jclass clazz, jobject jSignature,
+		jboolean noHashOID,
+		jbyteArray jHash, jint jHashSize,
+		jstring jHashAlgorithm,
+		jint jProviderId,
+		jstring jContainer) {
+
+	const char* pszContainer = NULL; // certificate's friendly name
+	HCRYPTPROV hCryptProv = (HCRYPTPROV) NULL;
+	HCRYPTKEY hCryptKey = (HCRYPTKEY) NULL;
+	jbyteArray jSignedHash = NULL;
+	DWORD dwProviderImpl;
+
+	{
+		// название контейнера закрытого ключа
+		pszContainer = (*env)->GetStringUTFChars(env, jContainer, NULL );
+
+#ifdef DEBUG
+		fprintf(stderr, "init context \"%s\"\n", pszContainer);
+#endif
+
+		if(! CryptAcquireContext(&hCryptProv,
+				pszContainer,
+				NULL, jProviderId, 0)) {
+			ThrowException(env, PROVIDER_EXCEPTION, GetLastError());
+			goto _m_leave;
+		}
+
+		if(! CryptGetUserKey(hCryptProv, AT_SIGNATURE, &hCryptKey)) {
+			// нет ключа подписи, берем ключ обмена
+			if(! CryptGetUserKey(hCryptProv, AT_KEYEXCHANGE, &hCryptKey)) {
+				ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+				goto _m_leave;
+			}
+			dwProviderImpl = AT_KEYEXCHANGE;
+		}
+		else
+			dwProviderImpl = AT_SIGNATURE;
+
+		SignHashValue(env, jSignature, noHashOID,
+				jHash, jHashSize, jHashAlgorithm,
+				hCryptProv, dwProviderImpl,
+				NULL, 0, 0, &jSignedHash);
+	}
+	_m_leave:
+	{
 		if (pszContainer)
 			(*env)->ReleaseStringUTFChars(env, jContainer, pszContainer);
 
 		if(hCryptKey)
 			CryptDestroyKey(hCryptKey);
 
-		if(hCryptHash)
-			CryptDestroyHash(hCryptHash);
-
 		if(hCryptProv)
 			CryptReleaseContext(hCryptProv, 0);
 	}
 	return jSignedHash;
 }
 
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    signHash
+ * Signature: (Lorg/company/security/csp/CSPSignature;Z[BILjava/lang/String;JJI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_signHash(
+		JNIEnv *env, jclass clazz, jobject jSignature,
+		jboolean noHashOID,
+		jbyteArray jHash, jint jHashSize,
+		jstring jHashAlgorithm,
+		jlong hCryptProv, jlong hCryptKey, jint jKeySpec) {
+
+	DWORD dwKeySpec;
+	jbyteArray jSignedHash = NULL;
+
+	if(! ResolveKeySpec(env, (HCRYPTKEY) hCryptKey, jKeySpec, &dwKeySpec)) {
+		return NULL;
+	}
+
+	SignHashValue(env, jSignature, noHashOID,
+			jHash, jHashSize, jHashAlgorithm,
+			(HCRYPTPROV) hCryptProv, dwKeySpec,
+			NULL, 0, 0, &jSignedHash);
+	return jSignedHash;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    signHashTo
+ * Signature: (Lorg/company/security/csp/CSPSignature;Z[BILjava/lang/String;JJI[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_signHashTo(
+		JNIEnv *env, jclass clazz, jobject jSignature,
+		jboolean noHashOID,
+		jbyteArray jHash, jint jHashSize,
+		jstring jHashAlgorithm,
+		jlong hCryptProv, jlong hCryptKey, jint jKeySpec,
+		jbyteArray jOut, jint jOutOffset, jint jOutLength) {
+
+	DWORD dwKeySpec;
+
+	if(! ResolveKeySpec(env, (HCRYPTKEY) hCryptKey, jKeySpec, &dwKeySpec)) {
+		return -1;
+	}
+
+	return SignHashValue(env, jSignature, noHashOID,
+			jHash, jHashSize, jHashAlgorithm,
+			(HCRYPTPROV) hCryptProv, dwKeySpec,
+			jOut, jOutOffset, jOutLength, NULL);
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    hashAndSign
+ * Signature: (Lorg/company/security/csp/CSPSignature;[BIILjava/lang/String;JJI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_company_security_csp_NativeCrypto_hashAndSign(
+		JNIEnv *env, jclass clazz, jobject jSignature,
+		jbyteArray jData, jint jOffset, jint jLength,
+		jstring jHashAlgorithm,
+		jlong hCryptProv, jlong hCryptKey, jint jKeySpec) {
+
+	jbyteArray jSignedHash = NULL;
+
+	HashAndSignValue(env, jSignature, jData, jOffset, jLength, jHashAlgorithm,
+			(HCRYPTPROV) hCryptProv, (HCRYPTKEY) hCryptKey, jKeySpec,
+			NULL, 0, 0, &jSignedHash);
+	return jSignedHash;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    hashAndSignTo
+ * Signature: (Lorg/company/security/csp/CSPSignature;[BIILjava/lang/String;JJI[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_company_security_csp_NativeCrypto_hashAndSignTo(
+		JNIEnv *env, jclass clazz, jobject jSignature,
+		jbyteArray jData, jint jOffset, jint jLength,
+		jstring jHashAlgorithm,
+		jlong hCryptProv, jlong hCryptKey, jint jKeySpec,
+		jbyteArray jOut, jint jOutOffset, jint jOutLength) {
+
+	return HashAndSignValue(env, jSignature, jData, jOffset, jLength, jHashAlgorithm,
+			(HCRYPTPROV) hCryptProv, (HCRYPTKEY) hCryptKey, jKeySpec,
+			jOut, jOutOffset, jOutLength, NULL);
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    signHashes
+ * Signature: ([[BLjava/lang/String;JJI[[B[I)V
+ */
+JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_signHashes(
+		JNIEnv *env, jclass clazz,
+		jobjectArray jHashes, jstring jHashAlgorithm,
+		jlong hCryptProv, jlong hCryptKey, jint jKeySpec,
+		jobjectArray jSignatures, jintArray jErrors) {
+
+	jint* pErrors = NULL;
+	jsize count;
+	jsize i;
+	DWORD dwKeySpec;
+	ALG_ID hashAlgId;
+
+	{
+		count = (*env)->GetArrayLength(env, jHashes);
+
+		// назначение ключа определяем один раз на весь пакет
+		if(! ResolveKeySpec(env, (HCRYPTKEY) hCryptKey, jKeySpec, &dwKeySpec)) {
+			goto _m_leave;
+		}
+
+		hashAlgId = MapHashAlgorithm(env, jHashAlgorithm);
+		pErrors = (jint*) calloc(count > 0 ? count : 1, sizeof(jint));
+
+		for(i = 0; i < count; i++) {
+			HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+			jbyteArray jHash = (jbyteArray) (*env)->GetObjectArrayElement(env, jHashes, i);
+			jbyteArray jSignedHash;
+			jbyte hashBuffer[SCRATCH_BUFFER_SIZE / 4];
+			jbyte signBuffer[SCRATCH_BUFFER_SIZE / 4];
+			DWORD dwBufLen = sizeof(signBuffer);
+			jsize hashSize;
+
+			// ошибка одного элемента не прерывает обработку остальных
+			if(! jHash) {
+				pErrors[i] = (jint) NTE_BAD_HASH;
+				continue;
+			}
+
+			hashSize = (*env)->GetArrayLength(env, jHash);
+			if(hashSize > (jsize) sizeof(hashBuffer)) {
+				pErrors[i] = (jint) NTE_BAD_HASH;
+				(*env)->DeleteLocalRef(env, jHash);
+				continue;
+			}
+			(*env)->GetByteArrayRegion(env, jHash, 0, hashSize, hashBuffer);
+			(*env)->DeleteLocalRef(env, jHash);
+
+			if(! CryptCreateHash((HCRYPTPROV) hCryptProv, hashAlgId, 0, 0, &hCryptHash)
+					|| ! CryptSetHashParam(hCryptHash, HP_HASHVAL, (BYTE*) hashBuffer, 0)
+					|| ! CryptSignHash(hCryptHash, dwKeySpec, NULL, CRYPT_NOHASHOID, (BYTE*) signBuffer, &dwBufLen)) {
+				pErrors[i] = (jint) GetLastError();
+
+				if(hCryptHash)
+					CryptDestroyHash(hCryptHash);
+				continue;
+			}
+			CryptDestroyHash(hCryptHash);
+
+			// подпись возвращается в big endian
+			ReverseBytes((BYTE*) signBuffer, dwBufLen);
+
+			jSignedHash = (*env)->NewByteArray(env, dwBufLen);
+			if(! jSignedHash)
+				goto _m_leave;
+
+			(*env)->SetByteArrayRegion(env, jSignedHash, 0, dwBufLen, signBuffer);
+			(*env)->SetObjectArrayElement(env, jSignatures, i, jSignedHash);
+			(*env)->DeleteLocalRef(env, jSignedHash);
+		}
+
+		(*env)->SetIntArrayRegion(env, jErrors, 0, count, pErrors);
+	}
+	_m_leave:
+	{
+		if(pErrors)
+			free(pErrors);
+	}
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    verifyHashes
+ * Signature: ([[BLjava/lang/String;[[B[J[J[Z)V
+ */
+JNIEXPORT void JNICALL Java_org_company_security_csp_NativeCrypto_verifyHashes(
+		JNIEnv *env, jclass clazz,
+		jobjectArray jHashes, jstring jHashAlgorithm,
+		jobjectArray jSignatures,
+		jlongArray jCryptProviders, jlongArray jCryptKeys,
+		jbooleanArray jResults) {
+
+	jlong* pProviders = NULL;
+	jlong* pKeys = NULL;
+	jboolean* pResults = NULL;
+	jsize count;
+	jsize i;
+	ALG_ID hashAlgId;
+
+	{
+		count = (*env)->GetArrayLength(env, jHashes);
+		hashAlgId = MapHashAlgorithm(env, jHashAlgorithm);
+
+		pProviders = (jlong*) malloc((count > 0 ? count : 1) * sizeof(jlong));
+		pKeys = (jlong*) malloc((count > 0 ? count : 1) * sizeof(jlong));
+		pResults = (jboolean*) calloc(count > 0 ? count : 1, sizeof(jboolean));
+
+		(*env)->GetLongArrayRegion(env, jCryptProviders, 0, count, pProviders);
+		(*env)->GetLongArrayRegion(env, jCryptKeys, 0, count, pKeys);
+		if((*env)->ExceptionCheck(env))
+			goto _m_leave;
+
+		for(i = 0; i < count; i++) {
+			HCRYPTHASH hCryptHash = (HCRYPTHASH) NULL;
+			jbyteArray jHash;
+			jbyteArray jSignedHash;
+			jbyte hashBuffer[SCRATCH_BUFFER_SIZE / 4];
+			jbyte signBuffer[SCRATCH_BUFFER_SIZE / 4];
+			jsize hashSize;
+			jsize signSize;
+
+			if(! pKeys[i])
+				continue;
+
+			jHash = (jbyteArray) (*env)->GetObjectArrayElement(env, jHashes, i);
+			jSignedHash = (jbyteArray) (*env)->GetObjectArrayElement(env, jSignatures, i);
+
+			hashSize = jHash ? (*env)->GetArrayLength(env, jHash) : 0;
+			signSize = jSignedHash ? (*env)->GetArrayLength(env, jSignedHash) : 0;
+
+			// элемент с некорректными данными считается не прошедшим проверку
+			if(hashSize > 0 && hashSize <= (jsize) sizeof(hashBuffer)
+					&& signSize > 0 && signSize <= (jsize) sizeof(signBuffer)) {
+
+				(*env)->GetByteArrayRegion(env, jHash, 0, hashSize, hashBuffer);
+				(*env)->GetByteArrayRegion(env, jSignedHash, 0, signSize, signBuffer);
+
+				// подпись приходит в big endian
+				ReverseBytes((BYTE*) signBuffer, signSize);
+
+				if(CryptCreateHash((HCRYPTPROV) pProviders[i], hashAlgId, 0, 0, &hCryptHash)
+						&& CryptSetHashParam(hCryptHash, HP_HASHVAL, (BYTE*) hashBuffer, 0)
+						&& CryptVerifySignature(hCryptHash, (BYTE*) signBuffer, signSize,
+								(HCRYPTKEY) pKeys[i], NULL, 0)) {
+					pResults[i] = JNI_TRUE;
+				}
+
+				if(hCryptHash)
+					CryptDestroyHash(hCryptHash);
+			}
+
+			if(jHash)
+				(*env)->DeleteLocalRef(env, jHash);
+			if(jSignedHash)
+				(*env)->DeleteLocalRef(env, jSignedHash);
+		}
+
+		(*env)->SetBooleanArrayRegion(env, jResults, 0, count, pResults);
+	}
+	_m_leave:
+	{
+		if(pResults)
+			free(pResults);
+
+		if(pKeys)
+			free(pKeys);
+
+		if(pProviders)
+			free(pProviders);
+	}
+}
+
 /*
  * Class:     org_company_security_csp_NativeCrypto
  * Method:    verifySignedHash
@@ -172,6 +568,8 @@ JNIEXPORT jboolean JNICALL Java_org_company_security_csp_NativeCrypto_verifySign
 		jstring jHashAlgorithm, jbyteArray jSignedHash, jint jSignedHashSize,
 		jlong hCryptProv, jlong hCryptKey) {
 	HCRYPTHASH hHash = (HCRYPTHASH) NULL;
+	jbyte hashScratch[SCRATCH_BUFFER_SIZE / 4];
+	jbyte signScratch[SCRATCH_BUFFER_SIZE / 4];
 	jbyte* pHashBuffer = NULL;
 	jbyte* pSignedHashBuffer = NULL;
 	DWORD dwSignedHashBufferLen = jSignedHashSize;
@@ -189,12 +587,15 @@ JNIEXPORT jboolean JNICALL Java_org_company_security_csp_NativeCrypto_verifySign
 		}
 
 		// Перенос хеша и подписи в нитивные буфера
-		pHashBuffer = (jbyte*) malloc(jHashSize);
+		pHashBuffer = jHashSize <= (jint) sizeof(hashScratch) ? hashScratch : (jbyte*) malloc(jHashSize);
 		(*env)->GetByteArrayRegion(env, jHash, 0, jHashSize, pHashBuffer);
-		pSignedHashBuffer = (jbyte*) malloc(jSignedHashSize);
+		pSignedHashBuffer = jSignedHashSize <= (jint) sizeof(signScratch) ? signScratch : (jbyte*) malloc(jSignedHashSize);
 		(*env)->GetByteArrayRegion(env, jSignedHash, 0, jSignedHashSize,
 				pSignedHashBuffer);
 
+		// подпись приходит в big endian, CryptoAPI ждет little endian
+		ReverseBytes((BYTE*) pSignedHashBuffer, jSignedHashSize);
+
 		// Устанавливаем значение хеш функции
 		if(! CryptSetHashParam(hHash, HP_HASHVAL, (BYTE*) pHashBuffer, 0)) {
 			ThrowException(env, SIGNATURE_EXCEPTION, GetLastError());
@@ -218,10 +619,10 @@ JNIEXPORT jboolean JNICALL Java_org_company_security_csp_NativeCrypto_verifySign
 		if (hCryptProvAlt)
 			CryptReleaseContext(hCryptProvAlt, 0);
 
-		if (pSignedHashBuffer)
+		if (pSignedHashBuffer && pSignedHashBuffer != signScratch)
 			free(pSignedHashBuffer);
 
-		if (pHashBuffer)
+		if (pHashBuffer && pHashBuffer != hashScratch)
 			free(pHashBuffer);
 	}
 
@@ -20,8 +20,12 @@
  *      Author: alexey
  */
 
+#include <string.h>
 #include "cspProvider.h"
 
+#define SWAP_BYTES_32(x) \
+	((((x) & 0x000000FFu) << 24) | (((x) & 0x0000FF00u) << 8) \
+	| (((x) & 0x00FF0000u) >> 8) | (((x) & 0xFF000000u) >> 24))
 
 /*
  * Throws an arbitrary Java exception.
@@ -158,8 +162,10 @@ ALG_ID MapMacHashAlgorithm(JNIEnv *env, jstring jAlgorithm) {
 
 	pszAlgorithm = (*env)->GetStringUTFChars(env, jAlgorithm, NULL);
 
-	if (strcmp("GOST3410DH", pszAlgorithm) == 0) {
+	if (strcmp("MAC_GOST28147", pszAlgorithm) == 0) {
 		algId = CALG_G28147_MAC;	// 0000801fh Hash HMAC "GOST 28147-89" (32 bits)
+	} else if (strcmp("HMAC_GOSTR3411", pszAlgorithm) == 0) {
+		algId = CALG_GR3411_HMAC;	// 00008027h Hash HMAC "GOST R 34.11-94" (256 bits)
 	}
 
 	if (pszAlgorithm)
@@ -169,19 +175,41 @@ ALG_ID MapMacHashAlgorithm(JNIEnv *env, jstring jAlgorithm) {
 }
 
 
-BOOL FindProviderByAlg(JNIEnv *env, const char* pszAlgOID, ALG_ID algId, DWORD *pdwProvId, DWORD *pdwBitLen) {
+/*
+ * Таблица алгоритмов провайдеров. Заполняется один раз при первом обращении
+ * перечислением всех типов провайдеров, далее поиск идет только по ней.
+ */
+#define ALG_TABLE_SIZE      256
+
+typedef struct _ALG_TABLE_ENTRY {
+	ALG_ID      algId;
+	DWORD       dwProvType;
+	DWORD       dwBitLen;
+	DWORD       dwOrder;        // порядок последнего появления при перечислении
+	LPCSTR      pszOID;
+	char        szName[20];
+} ALG_TABLE_ENTRY;
+
+static ALG_TABLE_ENTRY g_algTable[ALG_TABLE_SIZE];
+static DWORD g_algTableCount = 0;
+static volatile BOOL g_algTableLoaded = FALSE;
+
+/*
+ * Перечисление алгоритмов всех типов провайдеров в таблицу.
+ * Как и при прямом перечислении, для алгоритма запоминается последний тип провайдера.
+ */
+static BOOL FillAlgorithmTable(JNIEnv *env) {
 	HCRYPTPROV    hProv = (HCRYPTPROV) NULL;
 	DWORD         dwIndex;
 	DWORD         dwType;
 	DWORD         cbName;
 	PROV_ENUMALGS provEnumAlgs;
 	DWORD         cbData;
-	DWORD         dwFlags = CRYPT_FIRST;
+	DWORD         dwFlags;
+	DWORD         dwOrder = 0;
 	BOOL          result = TRUE;
 
-	if(pdwProvId) {
-		*pdwProvId = 0;
-	}
+	g_algTableCount = 0;
 
 	{
 		// Цикл по перечисляемым типам провайдеров.
@@ -197,34 +225,40 @@ BOOL FindProviderByAlg(JNIEnv *env, const char* pszAlgOID, ALG_ID algId, DWORD *
 			cbData = sizeof(PROV_ENUMALGS);
 			dwFlags = CRYPT_FIRST;
 			while(CryptGetProvParam(hProv, PP_ENUMALGS, (BYTE*) &provEnumAlgs, &cbData, dwFlags)) {
-				BOOL find;
+				ALG_TABLE_ENTRY *pEntry = NULL;
+				DWORD i;
+
 				dwFlags = CRYPT_NEXT;
 				cbData = sizeof(PROV_ENUMALGS);
 
-				if(pszAlgOID) {
-					// поиск по OID алгоритма
-					const char* pszEnumAlgOID = CertAlgIdToOID(provEnumAlgs.aiAlgid);
-					find = pszEnumAlgOID != NULL && strcmp(pszAlgOID, pszEnumAlgOID) == 0;
-				}
-				else {
-					// поиск по ALG_ID
-					find = provEnumAlgs.aiAlgid == algId;
+				for(i = 0; i < g_algTableCount; i++) {
+					if(g_algTable[i].algId == provEnumAlgs.aiAlgid) {
+						pEntry = &g_algTable[i];
+						break;
+					}
 				}
 
-				if(find) {
-					if(pdwProvId)
-						*pdwProvId = dwType;
-
-					if(pdwBitLen)
-						*pdwBitLen = provEnumAlgs.dwBitLen;
-					break;
+				if(! pEntry) {
+					if(g_algTableCount == ALG_TABLE_SIZE) {
+#ifdef DEBUG
+						fprintf(stderr, "FillAlgorithmTable table is full, skip algId: %x\n", provEnumAlgs.aiAlgid);
+#endif
+						continue;
+					}
+					pEntry = &g_algTable[g_algTableCount++];
+					pEntry->algId = provEnumAlgs.aiAlgid;
+					pEntry->pszOID = CertAlgIdToOID(provEnumAlgs.aiAlgid);
 				}
-			}
 
-			if(hProv) {
-				CryptReleaseContext(hProv, 0);
-				hProv = (HCRYPTPROV) NULL;
+				pEntry->dwProvType = dwType;
+				pEntry->dwBitLen = provEnumAlgs.dwBitLen;
+				pEntry->dwOrder = dwOrder++;
+				strncpy(pEntry->szName, provEnumAlgs.szName, sizeof(pEntry->szName) - 1);
+				pEntry->szName[sizeof(pEntry->szName) - 1] = '\0';
 			}
+
+			CryptReleaseContext(hProv, 0);
+			hProv = (HCRYPTPROV) NULL;
 		}
 	}
 	_m_leave:
@@ -232,13 +266,181 @@ BOOL FindProviderByAlg(JNIEnv *env, const char* pszAlgOID, ALG_ID algId, DWORD *
 		if(hProv)
 			CryptReleaseContext(hProv, 0);
 	}
-	if(result && pdwProvId && *pdwProvId == 0) {
-#ifdef DEBUF
+	return result;
+}
+
+/*
+ * Заполнить таблицу алгоритмов, если она еще не заполнена.
+ * Заполнение выполняется под монитором класса NativeCrypto.
+ */
+static BOOL LoadAlgorithmTable(JNIEnv *env) {
+	BOOL result;
+
+	if(g_algTableLoaded)
+		return TRUE;
+
+	if((*env)->MonitorEnter(env, g_jni.clazzNativeCrypto) != JNI_OK)
+		return FALSE;
+
+	result = g_algTableLoaded;
+	if(! result) {
+		result = FillAlgorithmTable(env);
+		g_algTableLoaded = result;
+	}
+
+	(*env)->MonitorExit(env, g_jni.clazzNativeCrypto);
+	return result;
+}
+
+BOOL FindProviderByAlg(JNIEnv *env, const char* pszAlgOID, ALG_ID algId, DWORD *pdwProvId, DWORD *pdwBitLen) {
+	ALG_TABLE_ENTRY *pFound = NULL;
+	DWORD i;
+
+	if(pdwProvId) {
+		*pdwProvId = 0;
+	}
+
+	if(! LoadAlgorithmTable(env)) {
+		return FALSE;
+	}
+
+	for(i = 0; i < g_algTableCount; i++) {
+		ALG_TABLE_ENTRY *pEntry = &g_algTable[i];
+		BOOL find;
+
+		if(pszAlgOID) {
+			// поиск по OID алгоритма
+			find = pEntry->pszOID != NULL && strcmp(pszAlgOID, pEntry->pszOID) == 0;
+		}
+		else {
+			// поиск по ALG_ID
+			find = pEntry->algId == algId;
+		}
+
+		if(find && (! pFound || pEntry->dwOrder > pFound->dwOrder)) {
+			pFound = pEntry;
+		}
+	}
+
+	if(! pFound) {
+#ifdef DEBUG
 		fprintf(stderr, "FindProviderByAlg not find algoritm OID: %s algId: %x\n", pszAlgOID, algId);
 #endif
 
 		ThrowException(env, NOSUCHALGORITHM_EXCEPTION, NTE_BAD_ALGID);
-		result = FALSE;
+		return FALSE;
+	}
+
+	if(pdwProvId)
+		*pdwProvId = pFound->dwProvType;
+
+	if(pdwBitLen)
+		*pdwBitLen = pFound->dwBitLen;
+
+	return TRUE;
+}
+
+/*
+ * Class:     org_company_security_csp_NativeCrypto
+ * Method:    getResolvedAlgorithms
+ * Signature: ()[Lorg/company/security/csp/CSPAlgorithmInfo;
+ */
+JNIEXPORT jobjectArray JNICALL Java_org_company_security_csp_NativeCrypto_getResolvedAlgorithms(
+		JNIEnv *env, jclass clazz) {
+
+	jobjectArray jAlgorithms = NULL;
+	DWORD i;
+
+	if(! LoadAlgorithmTable(env)) {
+		return NULL;
+	}
+
+	jAlgorithms = (*env)->NewObjectArray(env, (jsize) g_algTableCount, g_jni.clazzCSPAlgorithmInfo, NULL);
+	if(! jAlgorithms)
+		return NULL;
+
+	for(i = 0; i < g_algTableCount; i++) {
+		ALG_TABLE_ENTRY *pEntry = &g_algTable[i];
+		jstring jName = (*env)->NewStringUTF(env, pEntry->szName);
+		jstring jOID = pEntry->pszOID ? (*env)->NewStringUTF(env, pEntry->pszOID) : NULL;
+		jobject jAlgorithm;
+
+		jAlgorithm = (*env)->NewObject(env, g_jni.clazzCSPAlgorithmInfo, g_jni.mCSPAlgorithmInfoInit,
+				(jint) pEntry->algId, (jint) pEntry->dwProvType, (jint) pEntry->dwBitLen,
+				jName, jOID);
+
+		if(! jAlgorithm)
+			return NULL;
+
+		(*env)->SetObjectArrayElement(env, jAlgorithms, (jsize) i, jAlgorithm);
+
+		(*env)->DeleteLocalRef(env, jAlgorithm);
+		(*env)->DeleteLocalRef(env, jName);
+		if(jOID)
+			(*env)->DeleteLocalRef(env, jOID);
+	}
+	return jAlgorithms;
+}
+
+/*
+ * Определить назначение ключа (AT_SIGNATURE/AT_KEYEXCHANGE) по алгоритму ключа.
+ */
+BOOL GetKeySpec(JNIEnv *env, HCRYPTKEY hCryptKey, DWORD *pdwKeySpec) {
+	ALG_ID algId;
+	DWORD cbData = sizeof(ALG_ID);
+
+	if(! CryptGetKeyParam(hCryptKey, KP_ALGID, (BYTE*) &algId, &cbData, 0)) {
+		ThrowException(env, INVALID_KEY_EXCEPTION, GetLastError());
+		return FALSE;
+	}
+
+	switch(algId) {
+	case CALG_GR3410EL:		// ГОСТ Р 34.10-2001
+#ifdef CALG_GR3410_12_256
+	case CALG_GR3410_12_256:	// ГОСТ Р 34.10-2012 (256 бит)
+#endif
+#ifdef CALG_GR3410_12_512
+	case CALG_GR3410_12_512:	// ГОСТ Р 34.10-2012 (512 бит)
+#endif
+	case CALG_RSA_SIGN:
+	case CALG_DSS_SIGN:
+		*pdwKeySpec = AT_SIGNATURE;
+		break;
+
+	default:
+		// ключи обмена ГОСТ (CALG_DH_EL_SF, CALG_DH_EL_EPHEM,
+		// CALG_DH_GR3410_12_256_SF, CALG_DH_GR3410_12_512_SF) тоже подписывают
+		*pdwKeySpec = AT_KEYEXCHANGE;
+		break;
+	}
+	return TRUE;
+}
+
+/*
+ * Перестановка байт буфера в обратном порядке на месте
+ */
+void ReverseBytes(BYTE *pbData, DWORD cbData) {
+	BYTE *pbLow = pbData;
+	BYTE *pbHigh = pbData + cbData;
+	unsigned int low;
+	unsigned int high;
+	BYTE tmp;
+
+	// по четыре байта с каждого конца, пока слова не пересекаются
+	while (pbHigh - pbLow >= 8) {
+		pbHigh -= 4;
+		memcpy(&low, pbLow, 4);
+		memcpy(&high, pbHigh, 4);
+		low = SWAP_BYTES_32(low);
+		high = SWAP_BYTES_32(high);
+		memcpy(pbLow, &high, 4);
+		memcpy(pbHigh, &low, 4);
+		pbLow += 4;
+	}
+
+	while (pbHigh - pbLow > 1) {
+		tmp = *pbLow;
+		*pbLow++ = *--pbHigh;
+		*pbHigh = tmp;
 	}
-	return result;
 }
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+/**
+ * Алгоритм, найденный при перечислении криптопровайдеров,
+ * и тип провайдера, через который он используется.
+ * Список возвращает {@link CSPProvider#getResolvedAlgorithms()}.
+ */
+public final class CSPAlgorithmInfo {
+	private final int algId;
+	private final int providerType;
+	private final int bitLength;
+	private final String name;
+	private final String oid;
+
+	public CSPAlgorithmInfo(int algId, int providerType, int bitLength, String name, String oid) {
+		this.algId = algId;
+		this.providerType = providerType;
+		this.bitLength = bitLength;
+		this.name = name;
+		this.oid = oid;
+	}
+
+	/**
+	 * ALG_ID алгоритма
+	 */
+	public int getAlgId() {
+		return algId;
+	}
+
+	/**
+	 * Тип провайдера (dwProvType), используемый для алгоритма
+	 */
+	public int getProviderType() {
+		return providerType;
+	}
+
+	/**
+	 * Длина ключа или хеша по умолчанию в битах
+	 */
+	public int getBitLength() {
+		return bitLength;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * OID алгоритма или null, если для ALG_ID нет OID
+	 */
+	public String getOid() {
+		return oid;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s [algId=0x%x, oid=%s, providerType=%d, bitLength=%d]",
+				name, algId, oid, providerType, bitLength);
+	}
+}
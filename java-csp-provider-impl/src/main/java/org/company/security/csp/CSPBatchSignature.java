@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Пакетная подпись и проверка подписи заранее вычисленных значений хеш функции.
+ * <p>
+ * Все значения подписываются одним вызовом JNI на одном открытом контексте
+ * контейнера ключа. Подписи возвращаются и принимаются в big endian, как и в
+ * {@link java.security.Signature}.
+ */
+public final class CSPBatchSignature {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPBatchSignature.class);
+
+	public static final String DEFAULT_DIGEST = "GOST3411";
+
+	/**
+	 * Результат пакетной подписи. Ошибка одного элемента не влияет на остальные.
+	 */
+	public static final class SignResult {
+		private final byte[][] signatures;
+		private final int[] errors;
+
+		SignResult(byte[][] signatures, int[] errors) {
+			this.signatures = signatures;
+			this.errors = errors;
+		}
+
+		public int size() {
+			return signatures.length;
+		}
+
+		public boolean isSuccess(int index) {
+			return errors[index] == 0 && signatures[index] != null;
+		}
+
+		/**
+		 * Подпись элемента или null, если подпись не сформирована
+		 */
+		public byte[] getSignature(int index) {
+			return signatures[index];
+		}
+
+		/**
+		 * Код ошибки CryptoAPI для элемента, 0 - без ошибки
+		 */
+		public int getError(int index) {
+			return errors[index];
+		}
+
+		public int getFailedCount() {
+			int count = 0;
+
+			for(int i = 0; i < signatures.length; i++)
+				if(!isSuccess(i))
+					count++;
+			return count;
+		}
+	}
+
+	private CSPBatchSignature() {
+	}
+
+	/**
+	 * Подписать значения хеш функции ГОСТ Р 34.11-94
+	 */
+	public static SignResult sign(PrivateKey key, byte[][] hashes)
+			throws InvalidKeyException {
+		return sign(key, DEFAULT_DIGEST, hashes);
+	}
+
+	/**
+	 * Подписать значения хеш функции
+	 * @param key закрытый ключ провайдера
+	 * @param digestAlgorithm алгоритм, которым вычислены значения
+	 * @param hashes значения хеш функции
+	 */
+	public static SignResult sign(PrivateKey key, String digestAlgorithm, byte[][] hashes)
+			throws InvalidKeyException {
+
+		if(!(key instanceof CSPPrivateKey)) {
+			throw new InvalidKeyException("Key type not supported");
+		}
+		CSPPrivateKey privateKey = (CSPPrivateKey) key;
+		byte[][] signatures = new byte[hashes.length][];
+		int[] errors = new int[hashes.length];
+
+		if(hashes.length == 0)
+			return new SignResult(signatures, errors);
+
+		String container = privateKey.getContainer();
+
+		if(container == null) {
+			NativeCrypto.signHashes(hashes, digestAlgorithm,
+					privateKey.getHCryptProvider(), privateKey.getHCryptKey(), 0,
+					signatures, errors);
+		}
+		else {
+			// весь пакет подписывается на одном контексте из пула
+			CSPContainerPool pool = CSPContainerPool.getDefault();
+			CSPContainerContext context = pool.borrow(privateKey.getProviderId(), container);
+			boolean success = false;
+
+			try {
+				NativeCrypto.signHashes(hashes, digestAlgorithm,
+						context.getHCryptProvider(), context.getHCryptKey(), context.getKeySpec(),
+						signatures, errors);
+				success = true;
+			}
+			finally {
+				if(success)
+					pool.release(context);
+				else
+					pool.invalidate(context);
+			}
+		}
+		return new SignResult(signatures, errors);
+	}
+
+	/**
+	 * Проверить подписи значений хеш функции ГОСТ Р 34.11-94
+	 */
+	public static BitSet verify(byte[][] hashes, byte[][] signatures, PublicKey[] keys) {
+		return verify(DEFAULT_DIGEST, hashes, signatures, keys);
+	}
+
+	/**
+	 * Проверить подписи значений хеш функции. Одинаковые открытые ключи
+	 * импортируются один раз на весь пакет.
+	 * @param digestAlgorithm алгоритм, которым вычислены значения
+	 * @param hashes значения хеш функции
+	 * @param signatures подписи
+	 * @param keys открытые ключи элементов
+	 * @return установленный бит - подпись элемента верна. Бит элемента,
+	 *         ключ которого не удалось импортировать, сброшен.
+	 */
+	public static BitSet verify(String digestAlgorithm, byte[][] hashes, byte[][] signatures, PublicKey[] keys) {
+
+		int count = hashes.length;
+
+		if(signatures.length != count || keys.length != count) {
+			throw new IllegalArgumentException("Hashes, signatures and keys must have the same length");
+		}
+		BitSet result = new BitSet(count);
+
+		if(count == 0)
+			return result;
+
+		long[] hCryptoProviders = new long[count];
+		long[] hCryptoKeys = new long[count];
+		boolean[] verified = new boolean[count];
+		Map<Object, CSPPublicKey> keyMap = new HashMap<Object, CSPPublicKey>();
+		List<CSPPublicKey> imported = new ArrayList<CSPPublicKey>();
+
+		try {
+			for(int i = 0; i < count; i++) {
+				CSPPublicKey publicKey = getPublicKey(keys[i], keyMap, imported);
+
+				if(publicKey != null) {
+					hCryptoProviders[i] = publicKey.getHCryptProvider();
+					hCryptoKeys[i] = publicKey.getHCryptKey();
+				}
+			}
+
+			NativeCrypto.verifyHashes(hashes, digestAlgorithm, signatures,
+					hCryptoProviders, hCryptoKeys, verified);
+		}
+		finally {
+			for(CSPPublicKey publicKey : imported)
+				publicKey.release();
+		}
+
+		for(int i = 0; i < count; i++)
+			if(verified[i])
+				result.set(i);
+		return result;
+	}
+
+	/**
+	 * Ключ провайдера для элемента пакета. Ключи, не принадлежащие провайдеру,
+	 * берутся из кеша по SubjectPublicKeyInfo один раз на пакет.
+	 * @return null, если ключ не задан или не импортируется провайдером
+	 */
+	private static CSPPublicKey getPublicKey(PublicKey key,
+			Map<Object, CSPPublicKey> keyMap, List<CSPPublicKey> imported) {
+
+		if(key == null)
+			return null;
+
+		if(key instanceof CSPPublicKey)
+			return (CSPPublicKey) key;
+
+		byte[] encoded = key.getEncoded();
+
+		if(encoded == null)
+			return null;
+
+		Object id = ByteBuffer.wrap(encoded);
+
+		// неудачный импорт тоже запоминается, чтобы не повторять его в пакете
+		if(keyMap.containsKey(id))
+			return keyMap.get(id);
+
+		CSPPublicKey publicKey = null;
+
+		try {
+			publicKey = CSPPublicKeyCache.getDefault().acquire(encoded);
+			imported.add(publicKey);
+		} catch (InvalidKeyException e) {
+			LOGGER.debug("Key not imported: {}", e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			LOGGER.debug("Key not imported: {}", e.getMessage());
+		}
+		keyMap.put(id, publicKey);
+		return publicKey;
+	}
+}
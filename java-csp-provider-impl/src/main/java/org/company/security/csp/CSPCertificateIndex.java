@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * Индексы сертификатов хранилища: отпечаток SHA-1, издатель и серийный номер,
+ * идентификатор ключа субъекта (SubjectKeyIdentifier). Индекс возвращает
+ * псевдоним записи. Если один сертификат лежит в нескольких записях,
+ * индекс указывает на первую добавленную.
+ * <p>
+ * Индекс изменяется одним потоком до публикации, после нее только читается.
+ * Для изменения опубликованного индекса делается копия.
+ */
+final class CSPCertificateIndex {
+	private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+
+	// MessageDigest не потокобезопасен, у каждого потока свой
+	private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new ProviderException(e);
+			}
+		}
+	};
+
+	private final Map<ByteBuffer, String> byFingerprint;
+	private final Map<IssuerSerial, String> byIssuerSerial;
+	private final Map<ByteBuffer, String> bySubjectKeyId;
+
+	CSPCertificateIndex() {
+		byFingerprint = new HashMap<ByteBuffer, String>();
+		byIssuerSerial = new HashMap<IssuerSerial, String>();
+		bySubjectKeyId = new HashMap<ByteBuffer, String>();
+	}
+
+	/**
+	 * Копия индекса для изменения без влияния на исходный
+	 */
+	CSPCertificateIndex(CSPCertificateIndex other) {
+		byFingerprint = new HashMap<ByteBuffer, String>(other.byFingerprint);
+		byIssuerSerial = new HashMap<IssuerSerial, String>(other.byIssuerSerial);
+		bySubjectKeyId = new HashMap<ByteBuffer, String>(other.bySubjectKeyId);
+	}
+
+	/**
+	 * Добавить сертификат записи, если он еще не проиндексирован
+	 */
+	void add(String alias, X509Certificate certificate) {
+		ByteBuffer fingerprint = fingerprint(certificate);
+
+		if(fingerprint == null || byFingerprint.containsKey(fingerprint))
+			return;
+
+		add(alias, fingerprint, new IssuerSerial(certificate), subjectKeyId(certificate));
+	}
+
+	/**
+	 * Добавить первый сертификат цепочки из компактного хранения без его разбора
+	 */
+	void add(String alias, CSPCertificateSlab.Chain chain) {
+		ByteBuffer fingerprint = chain.getFingerprint();
+
+		if(byFingerprint.containsKey(fingerprint))
+			return;
+
+		add(alias, fingerprint, new IssuerSerial(chain.issuer, chain.serialNumber), chain.subjectKeyId);
+	}
+
+	private void add(String alias, ByteBuffer fingerprint, IssuerSerial issuerSerial, ByteBuffer subjectKeyId) {
+		byFingerprint.put(fingerprint, alias);
+		putIfAbsent(byIssuerSerial, issuerSerial, alias);
+
+		if(subjectKeyId != null)
+			putIfAbsent(bySubjectKeyId, subjectKeyId, alias);
+	}
+
+	/**
+	 * Удалить ссылки индексов на запись
+	 */
+	void remove(String alias) {
+		byFingerprint.values().removeAll(Collections.singleton(alias));
+		byIssuerSerial.values().removeAll(Collections.singleton(alias));
+		bySubjectKeyId.values().removeAll(Collections.singleton(alias));
+	}
+
+	void clear() {
+		byFingerprint.clear();
+		byIssuerSerial.clear();
+		bySubjectKeyId.clear();
+	}
+
+	int size() {
+		return byFingerprint.size();
+	}
+
+	/**
+	 * Псевдоним записи с тем же сертификатом
+	 */
+	String getAlias(Certificate certificate) {
+		if(!(certificate instanceof X509Certificate))
+			return null;
+
+		ByteBuffer fingerprint = fingerprint((X509Certificate) certificate);
+
+		return fingerprint == null ? null : byFingerprint.get(fingerprint);
+	}
+
+	String getAlias(X500Principal issuer, BigInteger serialNumber) {
+		return byIssuerSerial.get(new IssuerSerial(issuer, serialNumber));
+	}
+
+	String getAliasBySubjectKeyId(byte[] subjectKeyId) {
+		return bySubjectKeyId.get(ByteBuffer.wrap(subjectKeyId.clone()));
+	}
+
+	private static <K> void putIfAbsent(Map<K, String> map, K key, String alias) {
+		if(!map.containsKey(key))
+			map.put(key, alias);
+	}
+
+	/**
+	 * SHA-1 данных, можно вызывать из разных потоков
+	 */
+	static byte[] sha1(byte[] data) {
+		return SHA1.get().digest(data);
+	}
+
+	/**
+	 * SHA-1 кодировки сертификата
+	 */
+	static ByteBuffer fingerprint(X509Certificate certificate) {
+		try {
+			return ByteBuffer.wrap(sha1(certificate.getEncoded()));
+		} catch (CertificateEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Значение расширения SubjectKeyIdentifier или null
+	 */
+	static ByteBuffer subjectKeyId(X509Certificate certificate) {
+		byte[] extension = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+
+		if(extension == null)
+			return null;
+
+		try {
+			// значение расширения - OCTET STRING с кодировкой KeyIdentifier внутри
+			byte[] octets = ASN1OctetString.getInstance(extension).getOctets();
+
+			return ByteBuffer.wrap(SubjectKeyIdentifier.getInstance(octets).getKeyIdentifier());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ключ индекса по издателю и серийному номеру
+	 */
+	private static final class IssuerSerial {
+		private final X500Principal issuer;
+		private final BigInteger serialNumber;
+
+		IssuerSerial(X509Certificate certificate) {
+			this(certificate.getIssuerX500Principal(), certificate.getSerialNumber());
+		}
+
+		IssuerSerial(X500Principal issuer, BigInteger serialNumber) {
+			this.issuer = issuer;
+			this.serialNumber = serialNumber;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * issuer.hashCode() + serialNumber.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj)
+				return true;
+			if(!(obj instanceof IssuerSerial))
+				return false;
+
+			IssuerSerial other = (IssuerSerial) obj;
+			return serialNumber.equals(other.serialNumber) && issuer.equals(other.issuer);
+		}
+	}
+}
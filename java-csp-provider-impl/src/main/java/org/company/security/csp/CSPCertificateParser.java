@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.ProviderException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Разбор DER кодировок сертификатов хранилища при загрузке.
+ * <p>
+ * Большие хранилища (ROOT, CA) разбираются параллельно: записи делятся на
+ * части по порядку, каждая часть разбирается в общем пуле потоков своим
+ * экземпляром фабрики, результат записи i всегда лежит на месте i.
+ * Число потоков задается свойством {@value #THREADS_PROP}, по умолчанию
+ * по числу процессоров. Потоки завершаются после простоя.
+ */
+final class CSPCertificateParser {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPCertificateParser.class);
+
+	public static final String THREADS_PROP = "org.company.security.csp.keyStoreLoadThreads";
+
+	// меньше сертификатов разбирается в вызывающем потоке
+	static final int PARALLEL_THRESHOLD = 64;
+	// частей на поток, чтобы выровнять нагрузку
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static ThreadPoolExecutor executor;
+
+	// CertificateFactorySpi не потокобезопасен, у каждого потока свой
+	private static final ThreadLocal<CSPCertificateFactory> FACTORY = new ThreadLocal<CSPCertificateFactory>() {
+
+		@Override
+		protected CSPCertificateFactory initialValue() {
+			return new CSPCertificateFactory();
+		}
+	};
+
+	private CSPCertificateParser() {
+	}
+
+	/**
+	 * Разобрать цепочки сертификатов записей.
+	 * Сертификаты, которые не удалось разобрать, пропускаются.
+	 *
+	 * @return цепочки в порядке записей
+	 */
+	static X509Certificate[][] parseChains(List<CSPKeyStoreReader.Record> records) {
+		X509Certificate[][] chains = new X509Certificate[records.size()][];
+		int certificates = 0;
+
+		for (CSPKeyStoreReader.Record record : records) {
+			certificates += record.certificates.length;
+		}
+
+		int threads = getThreads();
+
+		if (threads <= 1 || certificates < PARALLEL_THRESHOLD) {
+			parse(records, chains, 0, records.size());
+		} else {
+			parseParallel(records, chains, threads);
+		}
+		return chains;
+	}
+
+	private static void parseParallel(final List<CSPKeyStoreReader.Record> records,
+			final X509Certificate[][] chains, int threads) {
+		int chunks = Math.min(records.size(), threads * CHUNKS_PER_THREAD);
+		int chunkSize = (records.size() + chunks - 1) / chunks;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+
+		for (int start = 0; start < records.size(); start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(start + chunkSize, records.size());
+
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					parse(records, chains, from, to);
+					return null;
+				}
+			});
+		}
+
+		List<Future<Void>> futures;
+
+		try {
+			futures = getExecutor(threads).invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProviderException("Interrupted", e);
+		}
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProviderException("Interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new ProviderException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Разобрать записи [from, to)
+	 */
+	private static void parse(List<CSPKeyStoreReader.Record> records, X509Certificate[][] chains, int from, int to) {
+		CSPCertificateFactory factory = FACTORY.get();
+
+		for (int i = from; i < to; i++) {
+			byte[][] encodings = records.get(i).certificates;
+			List<X509Certificate> chain = new ArrayList<X509Certificate>(encodings.length);
+
+			for (byte[] encoded : encodings) {
+				parse(factory, new ByteArrayInputStream(encoded), chain);
+			}
+			chains[i] = chain.toArray(new X509Certificate[chain.size()]);
+		}
+	}
+
+	/**
+	 * Разобрать в вызывающем потоке цепочку из компактного хранения
+	 */
+	static X509Certificate[] parseChain(CSPCertificateSlab slab, int first, int length) {
+		CSPCertificateFactory factory = FACTORY.get();
+		List<X509Certificate> chain = new ArrayList<X509Certificate>(length);
+
+		for (int i = first; i < first + length; i++) {
+			parse(factory, slab.openEncoded(i), chain);
+		}
+		return chain.toArray(new X509Certificate[chain.size()]);
+	}
+
+	private static void parse(CSPCertificateFactory factory, InputStream encoded, List<X509Certificate> chain) {
+		try {
+			for (Certificate certificate : factory.engineGenerateCertificates(encoded)) {
+				chain.add((X509Certificate) certificate);
+			}
+		} catch (Exception e) {
+			// Ignore the exception and skip this certificate
+			LOGGER.error(e.getMessage(), e);
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor(int threads) {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(threads, threads,
+					60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ParserThreadFactory());
+			executor.allowCoreThreadTimeOut(true);
+		} else if (executor.getMaximumPoolSize() != threads) {
+			// порядок важен: core не может превышать maximum
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+		return executor;
+	}
+
+	static int getThreads() {
+		String value = AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(THREADS_PROP);
+			}
+		});
+
+		if (value != null) {
+			try {
+				return Math.max(1, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException e) {
+				LOGGER.warn("Invalid value of {}: {}", THREADS_PROP, value);
+			}
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static final class ParserThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "CSP keystore loader-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
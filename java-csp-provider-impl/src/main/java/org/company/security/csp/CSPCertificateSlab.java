@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * Компактное хранение сертификатов загруженного хранилища: DER кодировки
+ * всех записей лежат подряд в одном массиве, отпечатки SHA-1 - в другом.
+ * Объекты {@link X509Certificate} создаются при обращении к цепочке
+ * ({@link Chain}) и удерживаются мягкой ссылкой, так что память под
+ * разобранные сертификаты растет с числом используемых записей, а не
+ * с размером хранилища.
+ * <p>
+ * Содержимое не меняется после создания и читается из разных потоков.
+ */
+final class CSPCertificateSlab {
+	static final int FINGERPRINT_LENGTH = 20;
+
+	private final byte[] data;
+	// начало кодировки i, offsets[size] - конец последней
+	private final int[] offsets;
+	private final byte[] fingerprints;
+
+	/**
+	 * Упаковать кодировки сертификатов записей по порядку
+	 */
+	CSPCertificateSlab(List<CSPKeyStoreReader.Record> records) {
+		int count = 0;
+		int length = 0;
+
+		for (CSPKeyStoreReader.Record record : records) {
+			for (byte[] certificate : record.certificates) {
+				count++;
+				length += certificate.length;
+			}
+		}
+
+		data = new byte[length];
+		offsets = new int[count + 1];
+		fingerprints = new byte[count * FINGERPRINT_LENGTH];
+
+		int index = 0;
+
+		for (CSPKeyStoreReader.Record record : records) {
+			for (byte[] certificate : record.certificates) {
+				System.arraycopy(certificate, 0, data, offsets[index], certificate.length);
+				System.arraycopy(CSPCertificateIndex.sha1(certificate), 0,
+						fingerprints, index * FINGERPRINT_LENGTH, FINGERPRINT_LENGTH);
+				offsets[index + 1] = offsets[index] + certificate.length;
+				index++;
+			}
+		}
+	}
+
+	/**
+	 * Число сертификатов
+	 */
+	int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Копия кодировки сертификата
+	 */
+	byte[] getEncoded(int index) {
+		byte[] encoded = new byte[offsets[index + 1] - offsets[index]];
+
+		System.arraycopy(data, offsets[index], encoded, 0, encoded.length);
+		return encoded;
+	}
+
+	InputStream openEncoded(int index) {
+		return new ByteArrayInputStream(data, offsets[index], offsets[index + 1] - offsets[index]);
+	}
+
+	/**
+	 * Отпечаток SHA-1 кодировки, буфер только для чтения над общим массивом
+	 */
+	ByteBuffer getFingerprint(int index) {
+		return ByteBuffer.wrap(fingerprints, index * FINGERPRINT_LENGTH, FINGERPRINT_LENGTH)
+				.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Цепочка из сертификатов [first, first + length). Первый сертификат
+	 * разбирается как ASN.1 структура без создания {@link X509Certificate},
+	 * из него берутся издатель, серийный номер и идентификатор ключа для индексов.
+	 *
+	 * @throws CertificateException первый сертификат не разбирается
+	 */
+	Chain chain(int first, int length) throws CertificateException {
+		if (length <= 0) {
+			throw new CertificateException("Empty certificate chain");
+		}
+
+		try {
+			Certificate leaf = Certificate.getInstance(ASN1Primitive.fromByteArray(getEncoded(first)));
+			Extensions extensions = leaf.getTBSCertificate().getExtensions();
+			SubjectKeyIdentifier subjectKeyId = extensions == null ? null : SubjectKeyIdentifier.fromExtensions(extensions);
+
+			return new Chain(this, first, length,
+					new X500Principal(leaf.getIssuer().getEncoded()),
+					leaf.getSerialNumber().getValue(),
+					subjectKeyId == null ? null : ByteBuffer.wrap(subjectKeyId.getKeyIdentifier()));
+		} catch (IOException e) {
+			throw new CertificateException(e.getMessage(), e);
+		} catch (RuntimeException e) {
+			// IllegalArgumentException, ClassCastException на неверной структуре
+			throw new CertificateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Цепочка сертификатов записи хранилища в общем массиве
+	 */
+	static final class Chain {
+		private final CSPCertificateSlab slab;
+		private final int first;
+		private final int length;
+
+		// сведения первого сертификата для индексов хранилища
+		final X500Principal issuer;
+		final BigInteger serialNumber;
+		final ByteBuffer subjectKeyId;
+
+		private volatile SoftReference<X509Certificate[]> certificates;
+
+		private Chain(CSPCertificateSlab slab, int first, int length,
+				X500Principal issuer, BigInteger serialNumber, ByteBuffer subjectKeyId) {
+			this.slab = slab;
+			this.first = first;
+			this.length = length;
+			this.issuer = issuer;
+			this.serialNumber = serialNumber;
+			this.subjectKeyId = subjectKeyId;
+		}
+
+		/**
+		 * Разобранная цепочка. Если сборщик мусора освободил ее, цепочка
+		 * разбирается заново; параллельные вызовы могут получить разные
+		 * экземпляры одних и тех же сертификатов.
+		 */
+		X509Certificate[] getCertificates() {
+			SoftReference<X509Certificate[]> reference = certificates;
+			X509Certificate[] chain = reference == null ? null : reference.get();
+
+			if (chain == null) {
+				chain = CSPCertificateParser.parseChain(slab, first, length);
+				certificates = new SoftReference<X509Certificate[]>(chain);
+			}
+			return chain;
+		}
+
+		/**
+		 * Разобрана ли цепочка и удерживается ли она сейчас
+		 */
+		boolean isMaterialized() {
+			SoftReference<X509Certificate[]> reference = certificates;
+
+			return reference != null && reference.get() != null;
+		}
+
+		byte[] getEncoded() {
+			return slab.getEncoded(first);
+		}
+
+		ByteBuffer getFingerprint() {
+			return slab.getFingerprint(first);
+		}
+
+		int length() {
+			return length;
+		}
+	}
+}
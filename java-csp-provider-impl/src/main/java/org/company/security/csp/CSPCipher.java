@@ -16,6 +16,7 @@
  */
 package org.company.security.csp;
 
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -25,6 +26,8 @@ import java.security.ProviderException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -32,25 +35,58 @@ import javax.crypto.CipherSpi;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
 
+/**
+ * Шифрование ключами провайдера.
+ * <p>
+ * Сессионным ключом {@link CSPSecretKey} шифрование идет потоком: на всю операцию
+ * создается один дубликат ключа, неполный блок переносится между вызовами
+ * {@code update}, а данные передаются в провайдер частями, кратными блоку.
+ * Это позволяет шифровать файлы любого размера, в том числе через
+ * {@link javax.crypto.CipherInputStream}.
+ */
 public class CSPCipher extends CipherSpi {
 
 	private static final int MODE_ENCRYPT = 1;
 	private static final int MODE_DECRYPT = 2;
 	private static final int MODE_SIGN = 3;
 	private static final int MODE_VERIFY = 4;
+	private static final int MODE_STREAM = 5;
 
 	private static final int KP_BLOCKLEN = 8;	// Block size of the cipher
 	private static final int KP_KEYLEN = 9;	// Length of key in bits
 
+	// режимы шифрования KP_MODE
+	private static final int CRYPT_MODE_CBC = 1;
+	private static final int CRYPT_MODE_ECB = 2;
+	private static final int CRYPT_MODE_CNT = 3;
+	private static final int CRYPT_MODE_CFB = 4;
+
+	// размер блока ГОСТ 28147-89
+	private static final int BLOCK_SIZE = 8;
+
 	private int mode;
 	private String paddingType;
 	private int paddingLength = 0;
-	private int outputSize;
 	
 	
 	private CSPKey publicKey;
 	private CSPKey privateKey;
+	// открытый ключ взят из CSPPublicKeyCache и должен быть возвращен
+	private boolean cachedPublicKey = false;
+
+	// потоковое шифрование сессионным ключом
+	private int cipherMode = CRYPT_MODE_CFB;
+	private CSPSecretKey secretKey;
+	private boolean streamEncrypt;
+	private byte[] iv;
+	// дубликат ключа текущей операции, создается при первом update
+	private long hSessionKey = 0;
+	private CSPHandleCleaner.Handles sessionHandles;
+	// неполный блок, перенесенный из предыдущего update
+	private final byte[] partial = new byte[BLOCK_SIZE];
+	private int partialLength = 0;
 
 
 	public CSPCipher() {
@@ -58,27 +94,41 @@ public class CSPCipher extends CipherSpi {
 
 	@Override
 	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
-
+		if("CFB".equalsIgnoreCase(mode))
+			cipherMode = CRYPT_MODE_CFB;
+		else if("CNT".equalsIgnoreCase(mode) || "CTR".equalsIgnoreCase(mode))
+			cipherMode = CRYPT_MODE_CNT;
+		else if("CBC".equalsIgnoreCase(mode))
+			cipherMode = CRYPT_MODE_CBC;
+		else if("ECB".equalsIgnoreCase(mode))
+			cipherMode = CRYPT_MODE_ECB;
+		else
+			throw new NoSuchAlgorithmException("Unsupported mode " + mode);
 	}
 
 	@Override
 	protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+		if(padding != null && !"NoPadding".equalsIgnoreCase(padding))
+			throw new NoSuchPaddingException("Unsupported padding " + padding);
 		paddingType = padding;
 	}
 
 	@Override
 	protected int engineGetBlockSize() {
-		return 0;
+		return mode == MODE_STREAM ? BLOCK_SIZE : 0;
 	}
 
 	@Override
 	protected int engineGetOutputSize(int inputLen) {
-		return outputSize;
+		if(mode == MODE_STREAM)
+			return partialLength + inputLen;
+		// столько же места резервирует нативный буфер; расшифрование результат не увеличивает
+		return getResultLength(inputLen);
 	}
 
 	@Override
 	protected byte[] engineGetIV() {
-		return null;
+		return iv == null ? null : iv.clone();
 	}
 
 	@Override
@@ -88,6 +138,14 @@ public class CSPCipher extends CipherSpi {
 
 	@Override
 	protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+		if(key instanceof CSPSecretKey) {
+			try {
+				initStream(opmode, (CSPSecretKey) key, null, random);
+			} catch (InvalidAlgorithmParameterException e) {
+				throw new InvalidKeyException(e.getMessage(), e);
+			}
+			return;
+		}
 		init(opmode, key);
 	}
 
@@ -97,6 +155,14 @@ public class CSPCipher extends CipherSpi {
 			AlgorithmParameterSpec params, SecureRandom random)
 			throws InvalidKeyException, InvalidAlgorithmParameterException {
 		
+		if(key instanceof CSPSecretKey) {
+			if(params != null && !(params instanceof IvParameterSpec))
+				throw new InvalidAlgorithmParameterException("Only IvParameterSpec supported");
+
+			initStream(opmode, (CSPSecretKey) key,
+					params != null ? ((IvParameterSpec) params).getIV() : null, random);
+			return;
+		}
 		if(params != null)
 			throw new InvalidAlgorithmParameterException("Parameters not supported");
 		init(opmode, key);
@@ -107,13 +173,86 @@ public class CSPCipher extends CipherSpi {
 			SecureRandom random) throws InvalidKeyException,
 			InvalidAlgorithmParameterException {
 
+		if(key instanceof CSPSecretKey) {
+			IvParameterSpec spec = null;
+
+			if(params != null) {
+				try {
+					spec = params.getParameterSpec(IvParameterSpec.class);
+				} catch (InvalidParameterSpecException e) {
+					throw new InvalidAlgorithmParameterException(e.getMessage(), e);
+				}
+			}
+			engineInit(opmode, key, spec, random);
+			return;
+		}
 		if(params != null)
 			throw new InvalidAlgorithmParameterException("Parameters not supported");
 		init(opmode, key);
 	}
 
+	/**
+	 * Начать потоковую операцию сессионным ключом. Дубликат ключа
+	 * создается при первой обработке данных.
+	 */
+	private void initStream(int opmode, CSPSecretKey key, byte[] ivBytes, SecureRandom random)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		boolean encrypt;
+
+		switch(opmode) {
+		case Cipher.ENCRYPT_MODE:
+			encrypt = true;
+			break;
+		case Cipher.DECRYPT_MODE:
+			encrypt = false;
+			break;
+		default:
+			throw new InvalidKeyException("Unsupported mode for secret key: " + opmode);
+		}
+
+		if(key.getHCryptKey() == 0)
+			throw new InvalidKeyException("Key is destroyed");
+
+		if(ivBytes == null && cipherMode != CRYPT_MODE_ECB) {
+			if(!encrypt)
+				throw new InvalidAlgorithmParameterException("IV is required for decryption");
+
+			// синхропосылка ключа одинакова у всех его дубликатов, поэтому каждая операция получает новую
+			ivBytes = new byte[BLOCK_SIZE];
+			(random != null ? random : new SecureRandom()).nextBytes(ivBytes);
+		}
+		if(ivBytes != null && ivBytes.length != BLOCK_SIZE)
+			throw new InvalidAlgorithmParameterException("IV must be " + BLOCK_SIZE + " bytes long");
+
+		releaseKeys();
+		mode = MODE_STREAM;
+		secretKey = key;
+		streamEncrypt = encrypt;
+		iv = ivBytes == null ? null : ivBytes.clone();
+	}
+
+	/**
+	 * Освободить ключи предыдущей операции
+	 */
+	private void releaseKeys() {
+		finishStream();
+
+		if(cachedPublicKey)
+			publicKey.release();
+		cachedPublicKey = false;
+		publicKey = null;
+		privateKey = null;
+		secretKey = null;
+		iv = null;
+	}
+
 	private void init(int opmode, Key key) throws InvalidKeyException {
 		boolean encrypt;
+		boolean cached = false;
+
+		finishStream();
+		secretKey = null;
+		iv = null;
 		
 		switch(opmode) {
 		case Cipher.ENCRYPT_MODE:
@@ -137,6 +276,7 @@ public class CSPCipher extends CipherSpi {
 					throw new InvalidKeyException("Unsupported key type: " + key);
 				}
 				key = publicKey;
+				cached = true;
 			}
 			else {
 				throw new InvalidKeyException("Unsupported key type: " + key);
@@ -146,17 +286,19 @@ public class CSPCipher extends CipherSpi {
 			paddingLength = getPaddingLength(((CSPKey) key).getHCryptKey());
 		}
 
+		if(cachedPublicKey)
+			publicKey.release();
+		cachedPublicKey = cached;
+
 		if(key instanceof PublicKey) {
 			mode = encrypt ? MODE_ENCRYPT : MODE_VERIFY;
 			publicKey = (CSPPublicKey) key;
 			privateKey = null;
-			outputSize = publicKey.length() / 8;
 		}
 		else if(key instanceof java.security.PrivateKey) {
 			mode = encrypt ? MODE_SIGN : MODE_DECRYPT;
 			privateKey = (CSPPrivateKey) key;
 			publicKey = null;
-			outputSize = privateKey.length() / 8;
 		}
 		else {
 			throw new InvalidKeyException("Unsupported key type: " + key);
@@ -166,7 +308,7 @@ public class CSPCipher extends CipherSpi {
 	private CSPPublicKey importPublicKey(Key key) throws InvalidKeyException {
 		byte[] keyEncoded = key.getEncoded();
 		try {
-			return NativeCrypto.initPublicKey(keyEncoded, keyEncoded.length);
+			return CSPPublicKeyCache.getDefault().acquire(keyEncoded);
 		} catch (NoSuchAlgorithmException e) {
 			throw new InvalidKeyException(e.getMessage(), e);
 		}
@@ -182,6 +324,12 @@ public class CSPCipher extends CipherSpi {
 
 	@Override
 	protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+		if(mode == MODE_STREAM) {
+			byte[] output = new byte[getStreamOutputLength(inputLen, false)];
+
+			streamUpdate(input, inputOffset, inputLen, output, 0, false);
+			return output;
+		}
 		return engine(input, inputOffset, inputLen, false);
 	}
 
@@ -189,20 +337,30 @@ public class CSPCipher extends CipherSpi {
 	protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
 			byte[] output, int outputOffset) throws ShortBufferException {
 		
-		byte[] result = engine(input, inputOffset, inputLen, true);
-		int n = result.length;
+		if(mode == MODE_STREAM) {
+			checkOutput(output.length - outputOffset, inputLen, false);
+			return streamUpdate(input, inputOffset, inputLen, output, outputOffset, false);
+		}
+
+		int n = getResultLength(inputLen);
 		
 		if(outputOffset + n > output.length) {
 			throw new ShortBufferException("Data must not be longer than " + (output.length - outputOffset)  + " bytes");
 		}
-		System.arraycopy(result, 0, output, outputOffset, n);
-		return n;
+		return engine(input, inputOffset, inputLen, true, output, outputOffset);
 	}
 
 	@Override
 	protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
 			throws IllegalBlockSizeException, BadPaddingException {
 
+		if(mode == MODE_STREAM) {
+			checkFinalBlock(inputLen);
+			byte[] output = new byte[getStreamOutputLength(inputLen, true)];
+
+			streamUpdate(input, inputOffset, inputLen, output, 0, true);
+			return output;
+		}
 		return engine(input, inputOffset, inputLen, true);
 	}
 
@@ -211,17 +369,261 @@ public class CSPCipher extends CipherSpi {
 			byte[] output, int outputOffset) throws ShortBufferException,
 			IllegalBlockSizeException, BadPaddingException {
 
-		byte[] result = engine(input, inputOffset, inputLen, true);
-		int n = result.length;
+		if(mode == MODE_STREAM) {
+			checkFinalBlock(inputLen);
+			checkOutput(output.length - outputOffset, inputLen, true);
+			return streamUpdate(input, inputOffset, inputLen, output, outputOffset, true);
+		}
+
+		int n = getResultLength(inputLen);
 		
-		if(outputOffset + n > output.length) {
-			if(n > inputLen)
-				throw new BadPaddingException("Data must not be longer (" + n + ") than " + (output.length - outputOffset)  + " bytes");
-			else
-				throw new IllegalBlockSizeException("Data must not be longer than " + (output.length - outputOffset)  + " bytes");
+		// проверяем до нативного вызова, иначе нехватка места придет как ProviderException
+		if(output.length - outputOffset < n) {
+			throw new ShortBufferException("Output buffer must be at least " + n + " bytes");
+		}
+		return engine(input, inputOffset, inputLen, true, output, outputOffset);
+	}
+
+	@Override
+	protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+		if(mode == MODE_STREAM && input.isDirect() && output.isDirect())
+			return streamUpdateDirect(input, output, false);
+		return super.engineUpdate(input, output);
+	}
+
+	@Override
+	protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+
+		if(mode == MODE_STREAM && input.isDirect() && output.isDirect()) {
+			checkFinalBlock(input.remaining());
+			return streamUpdateDirect(input, output, true);
+		}
+		return super.engineDoFinal(input, output);
+	}
+
+	/**
+	 * Размер результата потоковой операции: update возвращает только полные блоки,
+	 * doFinal - все оставшиеся данные
+	 */
+	private int getStreamOutputLength(int inputLen, boolean doFinal) {
+		int total = partialLength + inputLen;
+
+		return doFinal ? total : total - total % BLOCK_SIZE;
+	}
+
+	private void checkOutput(int available, int inputLen, boolean doFinal) throws ShortBufferException {
+		int n = getStreamOutputLength(inputLen, doFinal);
+
+		if(available < n)
+			throw new ShortBufferException("Output buffer must be at least " + n + " bytes");
+	}
+
+	/**
+	 * В режимах простой замены и сцепления данные не дополняются и должны быть кратны блоку
+	 */
+	private void checkFinalBlock(int inputLen) throws IllegalBlockSizeException {
+		if((cipherMode == CRYPT_MODE_CBC || cipherMode == CRYPT_MODE_ECB)
+				&& (partialLength + inputLen) % BLOCK_SIZE != 0) {
+			finishStream();
+			throw new IllegalBlockSizeException("Input length must be multiple of " + BLOCK_SIZE);
+		}
+	}
+
+	/**
+	 * Дубликат ключа текущей операции
+	 */
+	private long getSessionKey() {
+		if(hSessionKey == 0) {
+			try {
+				hSessionKey = NativeCrypto.cipherInit(secretKey.getHCryptProvider(),
+						secretKey.getHCryptKey(), cipherMode, iv);
+			} catch (InvalidKeyException e) {
+				throw new ProviderException(e);
+			}
+
+			if(sessionHandles == null)
+				sessionHandles = CSPHandleCleaner.register(this);
+			// ссылка на контекст освобождается вместе с дубликатом
+			sessionHandles.acquire(secretKey.getHCryptProvider(), hSessionKey);
 		}
-		System.arraycopy(result, 0, output, outputOffset, n);
-		return n;
+		return hSessionKey;
+	}
+
+	/**
+	 * Прервать операцию без обработки неполного блока и освободить дубликат ключа
+	 */
+	void reset() {
+		finishStream();
+	}
+
+	/**
+	 * Завершить операцию. Следующая операция начнется с той же синхропосылкой.
+	 */
+	private void finishStream() {
+		if(hSessionKey != 0) {
+			sessionHandles.release();
+			hSessionKey = 0;
+		}
+		partialLength = 0;
+	}
+
+	private int streamUpdate(byte[] input, int inputOffset, int inputLen,
+			byte[] output, int outputOffset, boolean doFinal) {
+
+		// результат отстает от входа на неполный блок, при записи на место входа копируем вход
+		if(input == output && inputLen > 0
+				&& outputOffset < inputOffset + inputLen && inputOffset < outputOffset + partialLength + inputLen) {
+			input = Arrays.copyOfRange(input, inputOffset, inputOffset + inputLen);
+			inputOffset = 0;
+		}
+
+		long hKey = getSessionKey();
+		int written = 0;
+
+		try {
+			// дополняем неполный блок предыдущего вызова
+			if(partialLength > 0) {
+				int n = Math.min(BLOCK_SIZE - partialLength, inputLen);
+
+				System.arraycopy(input, inputOffset, partial, partialLength, n);
+				partialLength += n;
+				inputOffset += n;
+				inputLen -= n;
+
+				if(partialLength < BLOCK_SIZE && !doFinal)
+					return 0;
+
+				boolean last = doFinal && inputLen == 0;
+
+				written = NativeCrypto.cipherUpdate(hKey, streamEncrypt, last,
+						partial, 0, partialLength, output, outputOffset);
+				partialLength = 0;
+
+				if(last)
+					return written;
+			}
+
+			int aligned = doFinal ? inputLen : inputLen - inputLen % BLOCK_SIZE;
+
+			if(aligned > 0 || doFinal) {
+				written += NativeCrypto.cipherUpdate(hKey, streamEncrypt, doFinal,
+						input, inputOffset, aligned, output, outputOffset + written);
+			}
+
+			if(!doFinal) {
+				partialLength = inputLen - aligned;
+				System.arraycopy(input, inputOffset + aligned, partial, 0, partialLength);
+			}
+			return written;
+		}
+		finally {
+			if(doFinal)
+				finishStream();
+		}
+	}
+
+	private int streamUpdateDirect(ByteBuffer input, ByteBuffer output, boolean doFinal)
+			throws ShortBufferException {
+
+		int inputLen = input.remaining();
+
+		checkOutput(output.remaining(), inputLen, doFinal);
+
+		long hKey = getSessionKey();
+		int written = 0;
+
+		try {
+			if(partialLength > 0) {
+				int n = Math.min(BLOCK_SIZE - partialLength, inputLen);
+
+				input.get(partial, partialLength, n);
+				partialLength += n;
+				inputLen -= n;
+
+				if(partialLength < BLOCK_SIZE && !doFinal)
+					return 0;
+
+				boolean last = doFinal && inputLen == 0;
+
+				written = NativeCrypto.cipherUpdate(hKey, streamEncrypt, last,
+						partial, 0, partialLength, partial, 0);
+				output.put(partial, 0, written);
+				partialLength = 0;
+
+				if(last)
+					return written;
+			}
+
+			int aligned = doFinal ? inputLen : inputLen - inputLen % BLOCK_SIZE;
+
+			if(aligned > 0 || doFinal) {
+				// полные блоки шифруются в памяти direct буферов
+				NativeCrypto.cipherUpdateDirect(hKey, streamEncrypt, doFinal,
+						input, input.position(), aligned, output, output.position());
+				input.position(input.position() + aligned);
+				output.position(output.position() + aligned);
+				written += aligned;
+			}
+
+			if(!doFinal) {
+				partialLength = inputLen - aligned;
+				input.get(partial, 0, partialLength);
+			}
+			return written;
+		}
+		finally {
+			if(doFinal)
+				finishStream();
+		}
+	}
+
+	/**
+	 * Максимальный размер результата: при шифровании данные дополняются до размера блока
+	 */
+	private int getResultLength(int inputLen) {
+		if(mode == MODE_SIGN || mode == MODE_ENCRYPT) {
+			int padding = paddingLength > 0 ? paddingLength : 512;
+			int offset = inputLen % padding;
+			
+			if(offset != 0)
+				return inputLen - offset + padding;
+		}
+		return inputLen;
+	}
+
+	/**
+	 * Результат пишется сразу в массив вызывающего
+	 */
+	private int engine(byte[] input, int inputOffset, int inputLen, boolean doFinal,
+			byte[] output, int outputOffset) {
+		try {
+			return NativeCrypto.encryptDecryptTo(input, inputOffset, inputLen,
+					getHCryptKey(), isEncrypt(), doFinal, paddingLength,
+					output, outputOffset, output.length - outputOffset);
+
+		} catch (InvalidKeyException e) {
+			throw new ProviderException(e);
+		}
+	}
+
+	private long getHCryptKey() {
+		switch (mode) {
+		case MODE_SIGN:
+		case MODE_DECRYPT:
+			return privateKey.getHCryptKey();
+
+		case MODE_VERIFY:
+		case MODE_ENCRYPT:
+			return publicKey.getHCryptKey();
+
+		default:
+			throw new AssertionError("Internal error");
+		}
+	}
+
+	private boolean isEncrypt() {
+		return mode == MODE_SIGN || mode == MODE_ENCRYPT;
 	}
 
 	private byte[] engine(byte[] input, int inputOffset, int inputLen, boolean doFinal) {
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+/**
+ * Открытый контекст контейнера закрытого ключа: HCRYPTPROV и HCRYPTKEY,
+ * полученные через CryptAcquireContext и CryptGetUserKey.
+ * Контексты выдаются и принимаются обратно {@link CSPContainerPool}.
+ */
+public final class CSPContainerContext {
+	private final int providerId;
+	private final String container;
+	private long hCryptoProvider = 0;
+	private long hCryptoKey = 0;
+	private int keySpec;
+	private long lastUsed;
+	// дескрипторы для освобождения, если контекст не вернули в пул
+	private final CSPHandleCleaner.Handles handles;
+
+	CSPContainerContext(int providerId, String container) {
+		this.providerId = providerId;
+		this.container = container;
+		this.lastUsed = System.currentTimeMillis();
+		this.handles = CSPHandleCleaner.register(this);
+	}
+
+	/**
+	 * Вызывается из {@link NativeCrypto#containerAcquire(CSPContainerContext, int, String)}
+	 *
+	 * @param hCryptoProvider нативный крипто провайдер контейнера
+	 * @param hCryptoKey нативный ключ контейнера
+	 * @param keySpec AT_SIGNATURE или AT_KEYEXCHANGE
+	 */
+	public void initContext(long hCryptoProvider, long hCryptoKey, int keySpec) {
+		handles.acquire(hCryptoProvider, hCryptoKey);
+		this.hCryptoProvider = hCryptoProvider;
+		this.hCryptoKey = hCryptoKey;
+		this.keySpec = keySpec;
+	}
+
+	void destroy() {
+		handles.release();
+		hCryptoKey = 0;
+		hCryptoProvider = 0;
+	}
+
+	/**
+	 * Передать дескрипторы контекста закрытому ключу. После этого контекст
+	 * недействителен и в пул не возвращается.
+	 */
+	CSPPrivateKey detachPrivateKey(int keyLength) {
+		CSPPrivateKey privateKey = new CSPPrivateKey(hCryptoProvider, hCryptoKey, keyLength);
+
+		privateKey.setContainer(container);
+		privateKey.setProviderId(providerId);
+
+		handles.disown();
+		hCryptoKey = 0;
+		hCryptoProvider = 0;
+		return privateKey;
+	}
+
+	public int getProviderId() {
+		return providerId;
+	}
+
+	public String getContainer() {
+		return container;
+	}
+
+	/**
+	 * native HCRYPTPROV
+	 */
+	public long getHCryptProvider() {
+		return hCryptoProvider;
+	}
+
+	/**
+	 * native HCRYPTKEY
+	 */
+	public long getHCryptKey() {
+		return hCryptoKey;
+	}
+
+	public int getKeySpec() {
+		return keySpec;
+	}
+
+	boolean isValid() {
+		return hCryptoProvider != 0;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,295 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.Closeable;
+import java.security.AccessController;
+import java.security.InvalidKeyException;
+import java.security.PrivilegedAction;
+import java.security.ProviderException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Пул открытых контекстов контейнеров закрытых ключей.
+ * <p>
+ * Открытие контейнера (CryptAcquireContext + CryptGetUserKey) занимает
+ * большую часть времени подписи, поэтому контексты не закрываются после
+ * операции, а возвращаются в пул по ключу (providerId, container).
+ * <p>
+ * Размер пула (число простаивающих контекстов на один контейнер) и время
+ * простоя до закрытия задаются системными свойствами
+ * {@value #POOL_SIZE_PROP} и {@value #POOL_IDLE_TIMEOUT_PROP} (мс).
+ */
+public class CSPContainerPool implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPContainerPool.class);
+
+	public static final String POOL_SIZE_PROP = "org.company.security.csp.containerPool.size";
+	public static final String POOL_IDLE_TIMEOUT_PROP = "org.company.security.csp.containerPool.idleTimeout";
+
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+	private static CSPContainerPool defaultPool;
+
+	/**
+	 * Простаивающие контексты одного контейнера.
+	 * Последний возвращенный контекст выдается первым, самые старые лежат в конце.
+	 */
+	private static final class Slot {
+		private final Deque<CSPContainerContext> idle = new ArrayDeque<CSPContainerContext>();
+	}
+
+	private final int maxIdle;
+	private final long idleTimeout;
+	private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Общий пул провайдера с параметрами из системных свойств
+	 */
+	public static synchronized CSPContainerPool getDefault() {
+		if(defaultPool == null || defaultPool.closed) {
+			defaultPool = new CSPContainerPool(
+					getIntProperty(POOL_SIZE_PROP, DEFAULT_POOL_SIZE),
+					getLongProperty(POOL_IDLE_TIMEOUT_PROP, DEFAULT_IDLE_TIMEOUT));
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * @param maxIdle максимальное число простаивающих контекстов на контейнер
+	 * @param idleTimeout время простоя контекста до закрытия в миллисекундах
+	 */
+	public CSPContainerPool(int maxIdle, long idleTimeout) {
+		if(maxIdle < 0)
+			throw new IllegalArgumentException("maxIdle must not be negative");
+		this.maxIdle = maxIdle;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Получить открытый контекст контейнера. Если свободного контекста нет,
+	 * контейнер открывается заново.
+	 * Полученный контекст надо вернуть через {@link #release(CSPContainerContext)}
+	 * или, при ошибке операции, через {@link #invalidate(CSPContainerContext)}.
+	 */
+	public CSPContainerContext borrow(int providerId, String container) throws InvalidKeyException {
+		if(closed)
+			throw new IllegalStateException("Container pool is closed");
+
+		Slot slot = getSlot(providerId, container);
+		CSPContainerContext context;
+		long now = System.currentTimeMillis();
+
+		synchronized (slot) {
+			evictExpired(slot, now);
+			context = slot.idle.pollFirst();
+		}
+
+		if(context == null) {
+			context = createContext(providerId, container);
+		}
+		context.touch();
+		return context;
+	}
+
+	/**
+	 * Вернуть контекст в пул после успешной операции
+	 */
+	public void release(CSPContainerContext context) {
+		if(context == null)
+			return;
+
+		if(closed || !context.isValid()) {
+			destroyContext(context);
+			return;
+		}
+		Slot slot = getSlot(context.getProviderId(), context.getContainer());
+		CSPContainerContext evicted = null;
+
+		context.touch();
+		synchronized (slot) {
+			evictExpired(slot, context.getLastUsed());
+			slot.idle.offerFirst(context);
+
+			if(slot.idle.size() > maxIdle)
+				evicted = slot.idle.pollLast();
+		}
+		if(evicted != null)
+			destroyContext(evicted);
+	}
+
+	/**
+	 * Закрыть контекст, на котором произошла ошибка, не возвращая его в пул
+	 */
+	public void invalidate(CSPContainerContext context) {
+		if(context != null)
+			destroyContext(context);
+	}
+
+	/**
+	 * Закрыть все контексты, простаивающие дольше заданного времени
+	 * @return количество закрытых контекстов
+	 */
+	public int evictIdle() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+
+		for(Slot slot : slots.values()) {
+			synchronized (slot) {
+				count += evictExpired(slot, now);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Количество простаивающих контекстов во всем пуле
+	 */
+	public int getIdleCount() {
+		int count = 0;
+
+		for(Slot slot : slots.values()) {
+			synchronized (slot) {
+				count += slot.idle.size();
+			}
+		}
+		return count;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Закрыть все простаивающие контексты. Контексты, выданные до закрытия,
+	 * закрываются при возврате.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		for(Slot slot : slots.values()) {
+			synchronized (slot) {
+				CSPContainerContext context;
+
+				while((context = slot.idle.pollFirst()) != null)
+					destroyContext(context);
+			}
+		}
+		slots.clear();
+	}
+
+	/**
+	 * Открыть контейнер закрытого ключа
+	 */
+	protected CSPContainerContext createContext(int providerId, String container) throws InvalidKeyException {
+		CSPContainerContext context = new CSPContainerContext(providerId, container);
+
+		NativeCrypto.containerAcquire(context, providerId, container);
+
+		if(!context.isValid())
+			throw new ProviderException("Error acquire container " + container);
+		return context;
+	}
+
+	/**
+	 * Закрыть контейнер закрытого ключа
+	 */
+	protected void destroyContext(CSPContainerContext context) {
+		try {
+			context.destroy();
+		}
+		catch(RuntimeException e) {
+			LOGGER.error("Error release container " + context.getContainer(), e);
+		}
+	}
+
+	private Slot getSlot(int providerId, String container) {
+		String key = providerId + ":" + container;
+		Slot slot = slots.get(key);
+
+		if(slot == null) {
+			Slot created = new Slot();
+			slot = slots.putIfAbsent(key, created);
+
+			if(slot == null)
+				slot = created;
+		}
+		return slot;
+	}
+
+	/**
+	 * Удалить устаревшие контексты из конца очереди. Вызывается под блокировкой слота.
+	 */
+	private int evictExpired(Slot slot, long now) {
+		int count = 0;
+		CSPContainerContext context;
+
+		while((context = slot.idle.peekLast()) != null
+				&& now - context.getLastUsed() > idleTimeout) {
+			slot.idle.pollLast();
+			destroyContext(context);
+			count++;
+		}
+		return count;
+	}
+
+	private static int getIntProperty(final String name, int defaultValue) {
+		String value = getProperty(name);
+
+		if(value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch(NumberFormatException e) {
+				LOGGER.warn("Invalid value of {}: {}", name, value);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static long getLongProperty(final String name, long defaultValue) {
+		String value = getProperty(name);
+
+		if(value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch(NumberFormatException e) {
+				LOGGER.warn("Invalid value of {}: {}", name, value);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static String getProperty(final String name) {
+		return AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(name);
+			}
+		});
+	}
+}
@@ -16,12 +16,14 @@
  */
 package org.company.security.csp;
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigestSpi;
 
 
-public abstract class CSPDigest extends MessageDigestSpi {
+public abstract class CSPDigest extends MessageDigestSpi implements Cloneable, Closeable {
 
 	public static class GOST3411 extends CSPDigest {
 
@@ -50,58 +52,75 @@ public abstract class CSPDigest extends MessageDigestSpi {
 	protected long hCryptoHash = 0;
 	protected int length;
 	private boolean init = false;
+	// дескрипторы для освобождения, не ссылаются на объект
+	private CSPHandleCleaner.Handles handles;
 
 	public CSPDigest(String algorithm) {
 		this.algorithm = algorithm;
+		this.handles = CSPHandleCleaner.register(this);
 	}
 
+	/**
+	 * Контекст провайдера открывается один раз на все время жизни объекта.
+	 * После {@link #engineReset()} и {@link #engineDigest()} пересоздается только хеш.
+	 */
 	private void engineInit() {
-		if(!init) {
+		if(!init || hCryptoHash == 0) {
 			synchronized (this) {
-				if(!init) {
-					try {
+				try {
+					if(!init) {
 						NativeCrypto.digestInit(this, algorithm);
-					} catch (GeneralSecurityException e) {
-						throw new IllegalArgumentException(e.getMessage(), e);
 					}
+					else if(hCryptoHash == 0) {
+						long hash = NativeCrypto.digestCreateHash(hCryptoProvider, algorithm);
+						initDigest(hCryptoProvider, hash, length);
+					}
+				} catch (GeneralSecurityException e) {
+					throw new IllegalArgumentException(e.getMessage(), e);
 				}
 			}
 		}
 	}
 
 	/**
-	 * Вызывается из {@link NativeCrypto#digestInit(CSPDigest, String)}
+	 * Вызывается из {@link NativeCrypto#digestInit(CSPDigest, String)},
+	 * а также при пересоздании хеша после сброса и при клонировании.
 	 * 
 	 * @param hCryptoProvider нативный крипто провайдер
 	 * @param hCryptoHash нативный крипто хеш
 	 * @param length размер хеша в битах
 	 */
 	public void initDigest(long hCryptoProvider, long hCryptoHash, int length) {
+		handles.acquire(hCryptoProvider, 0);
+		handles.acquireHash(hCryptoHash);
 		this.hCryptoProvider = hCryptoProvider;
 		this.hCryptoHash = hCryptoHash;
 		this.length = length;
 		this.init = hCryptoHash != 0;
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			synchronized(this) {
-				destroy();
-			}
-		}
-		finally {
-			super.finalize();
-		}
-	}
-
 	public void destroy() {
-		NativeCrypto.digestDestroy(hCryptoProvider, hCryptoHash);
+		handles.release();
 		hCryptoHash = 0;
 		hCryptoProvider = 0;
 		init = false;
 	}
 
+	@Override
+	public void close() {
+		destroy();
+	}
+
+	/**
+	 * Удалить только хеш, контекст провайдера остается открытым
+	 */
+	private void destroyHash() {
+		if(hCryptoHash != 0) {
+			handles.releaseHash();
+			hCryptoHash = 0;
+		}
+	}
+
 	@Override
 	protected void engineUpdate(byte input) {
 		engineInit();
@@ -122,6 +141,39 @@ public abstract class CSPDigest extends MessageDigestSpi {
 		}
 	}
 
+	/**
+	 * Данные direct буфера хешируются по нативному адресу без копирования,
+	 * буфер с массивом хешируется по массиву.
+	 */
+	@Override
+	protected void engineUpdate(ByteBuffer input) {
+		if(!input.hasRemaining())
+			return;
+
+		if(input.isDirect()) {
+			engineInit();
+			int position = input.position();
+			int len = input.remaining();
+
+			try {
+				NativeCrypto.digestEngineUpdateDirect(hCryptoHash, input, position, len);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			input.position(position + len);
+		}
+		else if(input.hasArray()) {
+			int position = input.position();
+			int len = input.remaining();
+
+			engineUpdate(input.array(), input.arrayOffset() + position, len);
+			input.position(position + len);
+		}
+		else {
+			super.engineUpdate(input);
+		}
+	}
+
 	@Override
 	protected byte[] engineDigest() {
 		engineInit();
@@ -130,10 +182,58 @@ public abstract class CSPDigest extends MessageDigestSpi {
 		} catch (DigestException e) {
 			throw new IllegalStateException(e.getMessage(), e);
 		}
+		finally {
+			// после получения значения хеш закрыт для изменений
+			destroyHash();
+		}
+	}
+
+	@Override
+	protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+		engineInit();
+		try {
+			return NativeCrypto.digestEngineDigestTo(hCryptoHash, buf, offset, len);
+		}
+		finally {
+			destroyHash();
+		}
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		engineInit();
+		return length / 8;
 	}
 
 	@Override
 	protected void engineReset() {
-		destroy();
+		destroyHash();
+	}
+
+	/**
+	 * Копия текущего состояния хеша через CryptDuplicateHash.
+	 * Общий префикс данных можно захешировать один раз и продолжить в копиях.
+	 */
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		synchronized (this) {
+			engineInit();
+
+			CSPDigest digest = (CSPDigest) super.clone();
+			digest.hCryptoProvider = 0;
+			digest.hCryptoHash = 0;
+			digest.init = false;
+			digest.handles = CSPHandleCleaner.register(digest);
+
+			try {
+				long hash = NativeCrypto.digestDuplicate(hCryptoProvider, hCryptoHash);
+				digest.initDigest(hCryptoProvider, hash, length);
+			} catch (DigestException e) {
+				CloneNotSupportedException exception = new CloneNotSupportedException(e.getMessage());
+				exception.initCause(e);
+				throw exception;
+			}
+			return digest;
+		}
 	}
 }
@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Освобождение нативных дескрипторов без finalize().
+ * <p>
+ * Дескрипторы объекта хранятся в отдельном {@link Handles}, который не ссылается
+ * на владельца. Владелец освобождает их явно (close/destroy). Если этого не
+ * сделано, после сборки владельца дескрипторы освобождает поток очистки по
+ * {@link PhantomReference}.
+ * <p>
+ * Для поиска утечек ведется счетчик живых дескрипторов каждого типа.
+ */
+public final class CSPHandleCleaner {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPHandleCleaner.class);
+
+	public enum HandleType {
+		/** HCRYPTPROV */
+		PROVIDER,
+		/** HCRYPTKEY */
+		KEY,
+		/** HCRYPTHASH */
+		HASH
+	}
+
+	private static final Map<HandleType, AtomicLong> LIVE = new EnumMap<HandleType, AtomicLong>(HandleType.class);
+	private static final AtomicLong CLEANED = new AtomicLong();
+
+	private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+	private static final Set<HandleReference> REFERENCES =
+			Collections.newSetFromMap(new ConcurrentHashMap<HandleReference, Boolean>());
+	private static Thread cleanerThread;
+
+	static {
+		for(HandleType type : HandleType.values())
+			LIVE.put(type, new AtomicLong());
+	}
+
+	/**
+	 * Нативные дескрипторы одного объекта
+	 */
+	static final class Handles {
+		private long hCryptProvider = 0;
+		private long hCryptKey = 0;
+		private long hCryptHash = 0;
+
+		/**
+		 * Объект стал владельцем провайдера и ключа
+		 */
+		synchronized void acquire(long hCryptProvider, long hCryptKey) {
+			if(hCryptProvider != 0 && this.hCryptProvider != hCryptProvider) {
+				this.hCryptProvider = hCryptProvider;
+				increment(HandleType.PROVIDER);
+			}
+			if(hCryptKey != 0 && this.hCryptKey != hCryptKey) {
+				this.hCryptKey = hCryptKey;
+				increment(HandleType.KEY);
+			}
+		}
+
+		/**
+		 * Объект стал владельцем хеша
+		 */
+		synchronized void acquireHash(long hCryptHash) {
+			if(hCryptHash != 0 && this.hCryptHash != hCryptHash) {
+				this.hCryptHash = hCryptHash;
+				increment(HandleType.HASH);
+			}
+		}
+
+		/**
+		 * Освободить только хеш
+		 */
+		synchronized void releaseHash() {
+			if(hCryptHash != 0) {
+				long hash = hCryptHash;
+
+				hCryptHash = 0;
+				decrement(HandleType.HASH);
+				NativeCrypto.digestDestroy(0, hash);
+			}
+		}
+
+		/**
+		 * Освободить все дескрипторы: хеш и ключ раньше провайдера
+		 */
+		synchronized void release() {
+			releaseHash();
+
+			if(hCryptKey != 0 || hCryptProvider != 0) {
+				long provider = hCryptProvider;
+				long key = hCryptKey;
+
+				if(key != 0)
+					decrement(HandleType.KEY);
+				if(provider != 0)
+					decrement(HandleType.PROVIDER);
+				hCryptKey = 0;
+				hCryptProvider = 0;
+				NativeCrypto.keyDestroy(provider, key);
+			}
+		}
+
+		/**
+		 * Передать провайдер и ключ другому владельцу без освобождения
+		 */
+		synchronized void disown() {
+			if(hCryptKey != 0)
+				decrement(HandleType.KEY);
+			if(hCryptProvider != 0)
+				decrement(HandleType.PROVIDER);
+			hCryptKey = 0;
+			hCryptProvider = 0;
+		}
+
+		synchronized boolean isReleased() {
+			return hCryptProvider == 0 && hCryptKey == 0 && hCryptHash == 0;
+		}
+	}
+
+	private static final class HandleReference extends PhantomReference<Object> {
+		private final Handles handles;
+
+		HandleReference(Object owner, Handles handles) {
+			super(owner, QUEUE);
+			this.handles = handles;
+		}
+	}
+
+	private CSPHandleCleaner() {
+	}
+
+	/**
+	 * Зарегистрировать объект, владеющий нативными дескрипторами.
+	 * Возвращаемый {@link Handles} не должен ссылаться на владельца.
+	 */
+	static Handles register(Object owner) {
+		Handles handles = new Handles();
+
+		REFERENCES.add(new HandleReference(owner, handles));
+		startCleaner();
+		return handles;
+	}
+
+	/**
+	 * Количество живых дескрипторов данного типа
+	 */
+	public static long getLiveHandles(HandleType type) {
+		return LIVE.get(type).get();
+	}
+
+	/**
+	 * Количество живых дескрипторов по типам
+	 */
+	public static Map<HandleType, Long> getLiveHandleCounts() {
+		Map<HandleType, Long> counts = new EnumMap<HandleType, Long>(HandleType.class);
+
+		for(HandleType type : HandleType.values())
+			counts.put(type, getLiveHandles(type));
+		return counts;
+	}
+
+	/**
+	 * Количество объектов, дескрипторы которых освободил поток очистки,
+	 * а не владелец. Рост значения означает, что объекты не закрываются явно.
+	 */
+	public static long getCleanedCount() {
+		return CLEANED.get();
+	}
+
+	private static void increment(HandleType type) {
+		LIVE.get(type).incrementAndGet();
+	}
+
+	private static void decrement(HandleType type) {
+		LIVE.get(type).decrementAndGet();
+	}
+
+	private static synchronized void startCleaner() {
+		if(cleanerThread != null)
+			return;
+
+		cleanerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						HandleReference reference = (HandleReference) QUEUE.remove();
+
+						REFERENCES.remove(reference);
+						if(!reference.handles.isReleased()) {
+							CLEANED.incrementAndGet();
+							reference.handles.release();
+						}
+					}
+					catch(InterruptedException e) {
+						// поток демон, завершается вместе с JVM
+					}
+					catch(Throwable e) {
+						LOGGER.error("Error release native handles", e);
+					}
+				}
+			}
+		}, "CSP native handle cleaner");
+		cleanerThread.setDaemon(true);
+		cleanerThread.start();
+	}
+}
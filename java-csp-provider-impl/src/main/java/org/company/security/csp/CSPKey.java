@@ -16,9 +16,17 @@
  */
 package org.company.security.csp;
 
+import java.io.Closeable;
 import java.security.KeyStoreException;
 
-abstract class CSPKey implements java.security.Key {
+import javax.security.auth.Destroyable;
+
+/**
+ * Ключ провайдера. Нативные дескрипторы освобождаются через {@link #close()}
+ * или {@link #destroy()}, а если ключ не закрыт явно - после его сборки
+ * потоком {@link CSPHandleCleaner}.
+ */
+abstract class CSPKey implements java.security.Key, Destroyable, Closeable {
 	private static final long serialVersionUID = 4852829008747501367L;
 
 	protected long hCryptProvider = 0;
@@ -32,31 +40,63 @@ abstract class CSPKey implements java.security.Key {
 	 * Идентификатор провайдера
 	 */
 	protected int providerId;
+	/**
+	 * Счетчик ссылок на нативные дескрипторы. Начальная ссылка принадлежит создателю ключа.
+	 */
+	private int references = 1;
+	/**
+	 * Дескрипторы для освобождения, не ссылаются на ключ
+	 */
+	private final transient CSPHandleCleaner.Handles handles;
 
 	public CSPKey(long hCryptoProvider, long hCryptoKey, int keyLength) {
 		this.hCryptProvider = hCryptoProvider;
 		this.hCryptKey = hCryptoKey;
 		this.keyLength = keyLength;
+		this.handles = CSPHandleCleaner.register(this);
+		this.handles.acquire(hCryptoProvider, hCryptoKey);
 	}
 
 	@Override
-	protected void finalize() throws Throwable {
-		try {
-			synchronized(this) {
-				destroy();
-			}
-		}
-		finally {
-			super.finalize();
-		}
-	}
-
 	public void destroy() {
-		NativeCrypto.keyDestroy(hCryptProvider, hCryptKey);
+		handles.release();
 		hCryptKey = 0;
 		hCryptProvider = 0;
 	}
 
+	@Override
+	public boolean isDestroyed() {
+		return hCryptKey == 0 && hCryptProvider == 0;
+	}
+
+	/**
+	 * Вернуть ссылку владельца, см. {@link #release()}
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	/**
+	 * Взять ссылку на ключ, общий для нескольких владельцев
+	 * @return false, если нативные дескрипторы уже освобождены
+	 */
+	public synchronized boolean retain() {
+		if(references <= 0 || hCryptKey == 0)
+			return false;
+		references++;
+		return true;
+	}
+
+	/**
+	 * Вернуть ссылку на ключ. Нативные дескрипторы освобождаются
+	 * при возврате последней ссылки.
+	 */
+	public synchronized void release() {
+		if(references > 0 && --references == 0)
+			destroy();
+	}
+
 	public int length() {
 		return keyLength;
 	}
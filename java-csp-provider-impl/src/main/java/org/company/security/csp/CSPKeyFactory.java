@@ -69,7 +69,8 @@ abstract class CSPKeyFactory  extends KeyFactorySpi {
 		if(keySpec instanceof X509EncodedKeySpec) {
 			byte[] encoded = ((X509EncodedKeySpec) keySpec).getEncoded();
 			try {
-				return NativeCrypto.initPublicKey(encoded, encoded.length);
+				// импорт берется из кеша, но вызывающий получает свою копию дескрипторов
+				return CSPPublicKeyCache.getDefault().acquireCopy(encoded);
 			} catch (InvalidKeyException e) {
 				throw new InvalidKeySpecException(e.getMessage(), e);
 			} catch (NoSuchAlgorithmException e) {
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+
+/**
+ * Генерация сессионных ключей в провайдере. Случайные данные берет
+ * датчик провайдера, переданный {@link SecureRandom} не используется.
+ */
+abstract class CSPKeyGenerator extends KeyGeneratorSpi {
+	private final String algorithm;
+	private final int keySize;
+
+	public static class GOST28147 extends CSPKeyGenerator {
+
+		public GOST28147() {
+			super(CSPSecretKey.GOST28147, 256);
+		}
+	}
+
+	public CSPKeyGenerator(String algorithm, int keySize) {
+		this.algorithm = algorithm;
+		this.keySize = keySize;
+	}
+
+	@Override
+	protected void engineInit(SecureRandom random) {
+	}
+
+	@Override
+	protected void engineInit(AlgorithmParameterSpec params, SecureRandom random)
+			throws InvalidAlgorithmParameterException {
+
+		if(params != null)
+			throw new InvalidAlgorithmParameterException("Parameters not supported");
+	}
+
+	@Override
+	protected void engineInit(int keysize, SecureRandom random) {
+		if(keysize != keySize)
+			throw new InvalidParameterException("Key size of " + algorithm + " must be " + keySize);
+	}
+
+	@Override
+	protected SecretKey engineGenerateKey() {
+		try {
+			return NativeCrypto.secretKeyGenerate(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new ProviderException(e);
+		}
+	}
+}
@@ -16,12 +16,12 @@
  */
 package org.company.security.csp;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.security.InvalidKeyException;
@@ -31,24 +31,28 @@ import java.security.KeyStore.PasswordProtection;
 import java.security.KeyStore.ProtectionParameter;
 import java.security.KeyStoreException;
 import java.security.KeyStoreSpi;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.Provider;
+import java.security.ProviderException;
 import java.security.SecurityPermission;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,7 +65,6 @@ import org.slf4j.LoggerFactory;
 public class CSPKeyStore extends KeyStoreSpi {
 	public static int DEFAULT_PROVIDER_ID = 75;	// TODO 75 - CryptoPro providerId in MS Crypto API
 	private static transient Logger LOGGER = LoggerFactory.getLogger(CSPKeyStore.class);
-	private static MessageDigest sha1;
 
 	public static final class MY extends CSPKeyStore {
 		public MY() {
@@ -123,31 +126,63 @@ public class CSPKeyStore extends KeyStoreSpi {
 //	}
 
 	private static byte[] calcHashPropId(byte[] encoded) {
-		byte[] digest = null;
+		return encoded == null ? null : CSPCertificateIndex.sha1(encoded);
+	}
+
+
+	/**
+	 * Сведения о закрытом ключе из свойства сертификата CERT_KEY_PROV_INFO_PROP_ID.
+	 * По ним контейнер открывается при первом обращении к ключу.
+	 */
+	private static final class KeyProvInfo {
+		final String container;
+		final int providerId;
+		final int keySpec;
+		final int keyLength;
+
+		KeyProvInfo(String container, int providerId, int keySpec, int keyLength) {
+			this.container = container;
+			this.providerId = providerId;
+			this.keySpec = keySpec;
+			this.keyLength = keyLength;
+		}
+
+		/**
+		 * Открыть контейнер и получить закрытый ключ
+		 */
+		CSPPrivateKey acquire() throws UnrecoverableKeyException {
+			CSPContainerContext context = new CSPContainerContext(providerId, container);
 
-		if(encoded != null) {
 			try {
-				if(sha1 == null) {
-					sha1 = MessageDigest.getInstance("SHA1");
-				}
-				try {
-					digest = sha1.digest(encoded);
-				}
-				finally {
-					sha1.reset();
-				}
+				NativeCrypto.containerAcquireKey(context, providerId, container, keySpec);
+			} catch (InvalidKeyException e) {
+				throw unrecoverable(e);
+			} catch (ProviderException e) {
+				throw unrecoverable(e);
 			}
-			catch(NoSuchAlgorithmException e) {
+
+			if (!context.isValid()) {
+				throw new UnrecoverableKeyException("Error acquire container " + container);
 			}
+			return context.detachPrivateKey(keyLength);
 		}
-		return digest;
-	}
 
+		private UnrecoverableKeyException unrecoverable(Exception cause) {
+			UnrecoverableKeyException e = new UnrecoverableKeyException(
+					"Error acquire container " + container + ": " + cause.getMessage());
+			e.initCause(cause);
+			return e;
+		}
+	}
 
 	class KeyEntry {
 		private String alias;
-		private CSPKey privateKey;
+		private volatile CSPKey privateKey;
+		// ключ, контейнер которого еще не открыт
+		private KeyProvInfo keyProvInfo;
 		private X509Certificate certChain[];
+		// цепочка в компактном хранении, разбирается при обращении
+		private CSPCertificateSlab.Chain compactChain;
 
 		KeyEntry(String alias, byte[] encoded) {
 			this.alias = alias;
@@ -163,14 +198,33 @@ public class CSPKeyStore extends KeyStoreSpi {
 			this(null, key, chain);
 		}
 
+		KeyEntry(String alias, X509Certificate[] chain, KeyProvInfo keyProvInfo) {
+			this(alias, (CSPKey) null, chain);
+			this.keyProvInfo = keyProvInfo;
+		}
+
+		KeyEntry(String alias, CSPCertificateSlab.Chain chain, KeyProvInfo keyProvInfo) {
+			this(alias, (CSPKey) null, chain);
+			this.keyProvInfo = keyProvInfo;
+		}
+
 		KeyEntry(String alias, CSPKey key, X509Certificate[] chain) {
+			this(alias, key, chain, null);
+		}
+
+		KeyEntry(String alias, CSPKey key, CSPCertificateSlab.Chain chain) {
+			this(alias, key, null, chain);
+		}
+
+		private KeyEntry(String alias, CSPKey key, X509Certificate[] chain, CSPCertificateSlab.Chain compactChain) {
 			this.privateKey = key;
 			this.certChain = chain;
+			this.compactChain = compactChain;
 
 			// использовать только SHA1
 			if(useAliasSHA1) {
 				try {
-					byte[] digest = calcHashPropId(chain[0].getEncoded());
+					byte[] digest = calcHashPropId(getEncodedCertificate());
 					this.alias = new BigInteger(1, digest).toString(16);
 				} catch (CertificateEncodingException ex) {
 					// ошибка получения сведений о сертификате
@@ -188,7 +242,7 @@ public class CSPKeyStore extends KeyStoreSpi {
 					} catch (KeyStoreException e) {
 						// ошибка получения контейнера закрытого ключа
 						try {
-							byte[] digest = calcHashPropId(chain[0].getEncoded());
+							byte[] digest = calcHashPropId(getEncodedCertificate());
 							this.alias = new BigInteger(1, digest).toString(16);
 						} catch (CertificateEncodingException ex) {
 							// ошибка получения сведений о сертификате
@@ -217,10 +271,68 @@ public class CSPKeyStore extends KeyStoreSpi {
 		}
 
 		/**
-		 * Gets the private key for the keystore entry.
+		 * Gets the private key for the keystore entry. Контейнер ключа,
+		 * загруженного без открытия, открывается при первом вызове,
+		 * полученный ключ запоминается в записи.
+		 */
+		CSPKey getPrivateKey() throws UnrecoverableKeyException {
+			CSPKey key = privateKey;
+
+			if (key == null && keyProvInfo != null) {
+				synchronized (this) {
+					key = privateKey;
+
+					if (key == null) {
+						key = keyProvInfo.acquire();
+						privateKey = key;
+					}
+				}
+			}
+			return key;
+		}
+
+		/**
+		 * Открыть контейнер ключа сразу, как при загрузке с открытием
+		 * контейнеров. Если контейнер не открывается, запись становится
+		 * записью сертификата.
+		 */
+		synchronized void acquirePrivateKey() {
+			if (privateKey == null && keyProvInfo != null) {
+				try {
+					privateKey = keyProvInfo.acquire();
+				} catch (UnrecoverableKeyException e) {
+					LOGGER.debug("Skip private key of {}: {}", alias, e.getMessage());
+				}
+				keyProvInfo = null;
+			}
+		}
+
+		/**
+		 * Есть ли у записи закрытый ключ, контейнер при этом не открывается
+		 */
+		boolean hasPrivateKey() {
+			return privateKey != null || keyProvInfo != null;
+		}
+
+		/**
+		 * Название контейнера закрытого ключа для его удаления
 		 */
-		CSPKey getPrivateKey() {
-			return privateKey;
+		String getKeyContainerName() throws KeyStoreException {
+			CSPKey key = privateKey;
+
+			if (key == null && keyProvInfo != null) {
+				return keyProvInfo.container;
+			}
+			return key == null ? null : CSPKey.getContainerName(key.getHCryptProvider());
+		}
+
+		int getKeyProviderId() {
+			CSPKey key = privateKey;
+
+			if (key == null && keyProvInfo != null) {
+				return keyProvInfo.providerId;
+			}
+			return key == null ? 0 : key.getProviderId();
 		}
 
 		/**
@@ -228,13 +340,44 @@ public class CSPKeyStore extends KeyStoreSpi {
 		 */
 		void setPrivateKey(CSPPrivateKey key) throws InvalidKeyException, KeyStoreException {
 			privateKey = key;
+			keyProvInfo = null;
 		}
 
 		/**
 		 * Gets the certificate chain for the keystore entry.
 		 */
 		X509Certificate[] getCertificateChain() {
-			return certChain;
+			CSPCertificateSlab.Chain chain = compactChain;
+
+			return chain == null ? certChain : chain.getCertificates();
+		}
+
+		CSPCertificateSlab.Chain getCompactChain() {
+			return compactChain;
+		}
+
+		/**
+		 * Кодировка первого сертификата цепочки, цепочка при этом не разбирается
+		 */
+		byte[] getEncodedCertificate() throws CertificateEncodingException {
+			CSPCertificateSlab.Chain chain = compactChain;
+
+			if (chain != null) {
+				return chain.getEncoded();
+			}
+			return certChain == null || certChain.length == 0 ? null : certChain[0].getEncoded();
+		}
+
+		/**
+		 * Отпечаток SHA-1 первого сертификата или null
+		 */
+		ByteBuffer getFingerprint() {
+			CSPCertificateSlab.Chain chain = compactChain;
+
+			if (chain != null) {
+				return chain.getFingerprint();
+			}
+			return certChain == null || certChain.length == 0 ? null : CSPCertificateIndex.fingerprint(certChain[0]);
 		}
 
 		/**
@@ -242,6 +385,8 @@ public class CSPKeyStore extends KeyStoreSpi {
 		 */
 		void setCertificateChain(X509Certificate[] chain)
 				throws CertificateException, KeyStoreException {
+			CSPKey privateKey = this.privateKey;
+
 			for (int i = 0; i < chain.length; i++) {
 				byte[] encoding = chain[i].getEncoded();
 				if (i == 0 && privateKey != null) {
@@ -256,15 +401,10 @@ public class CSPKeyStore extends KeyStoreSpi {
 				}
 			}
 			certChain = chain;
+			compactChain = null;
 		}
 	};
 
-	/*
-	 * An X.509 certificate factory. Used to create an X.509 certificate from
-	 * its DER-encoding.
-	 */
-	private CertificateFactory certificateFactory = null;
-
 	/*
 	 * Compatibility mode: for applications that assume keystores are
 	 * stream-based this mode tolerates (but ignores) a non-null stream or
@@ -273,6 +413,29 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 */
 	private static final String KEYSTORE_COMPATIBILITY_MODE_PROP = "org.company.security.csp.keyStoreCompatibilityMode";
 	private final boolean keyStoreCompatibilityMode;
+	/**
+	 * Загрузка без открытия контейнеров закрытых ключей: при загрузке
+	 * запоминаются только сведения о ключе из свойств сертификата, контейнер
+	 * открывается при первом {@link #engineGetKey(String, char[])}.
+	 * По умолчанию выключена.
+	 * <p>
+	 * Записью ключа становится любой сертификат со свойством
+	 * CERT_KEY_PROV_INFO_PROP_ID, в том числе сертификат, контейнер которого
+	 * удален или остался на извлеченном токене. При обычной загрузке такой
+	 * сертификат - запись сертификата, а в этом режиме
+	 * {@link #engineIsKeyEntry(String)} возвращает для него true и
+	 * {@link #engineGetKey(String, char[])} бросает {@link UnrecoverableKeyException}.
+	 */
+	public static final String KEYSTORE_LAZY_KEYS_PROP = "org.company.security.csp.keyStoreLazyKeys";
+	private boolean lazyKeys;
+	/**
+	 * Компактное хранение сертификатов: записи держат DER кодировки в общем
+	 * массиве ({@link CSPCertificateSlab}), сертификаты разбираются при первом
+	 * обращении к записи и могут быть освобождены сборщиком мусора.
+	 * Для больших хранилищ (ROOT, CA, AddressBook). По умолчанию выключено.
+	 */
+	public static final String KEYSTORE_COMPACT_CERTIFICATES_PROP = "org.company.security.csp.keyStoreCompactCertificates";
+	private boolean compactCertificates;
 	/**
 	 * Для совместимости с MS CertStore
 	 * использовать только SHA1
@@ -280,9 +443,13 @@ public class CSPKeyStore extends KeyStoreSpi {
 	private boolean useAliasSHA1 = true;
 
 	/*
-	 * The keystore entries.
+	 * The keystore entries. Читатели берут текущий снимок без блокировок,
+	 * загрузка и изменения строят новый снимок под writeLock и подменяют его.
 	 */
-	private Collection<KeyEntry> entries = new ArrayList<KeyEntry>();
+	private volatile Snapshot snapshot = new Snapshot(new ArrayList<KeyEntry>());
+	private final Object writeLock = new Object();
+	// режим загрузки снимка, под writeLock; обновление его сохраняет
+	private boolean loadedLazyKeys;
 
 	/*
 	 * The keystore name. Case is not significant.
@@ -312,6 +479,26 @@ public class CSPKeyStore extends KeyStoreSpi {
 			keyStoreCompatibilityMode = true;
 		}
 
+		String lazyProp = AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(KEYSTORE_LAZY_KEYS_PROP);
+			}
+		});
+
+		lazyKeys = "true".equalsIgnoreCase(lazyProp);
+
+		String compactProp = AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(KEYSTORE_COMPACT_CERTIFICATES_PROP);
+			}
+		});
+
+		compactCertificates = "true".equalsIgnoreCase(compactProp);
+
 		this.storeName = storeName;
 		this.system = system;
 		this.providerId = providerId;
@@ -326,6 +513,30 @@ public class CSPKeyStore extends KeyStoreSpi {
 		this.keyStoreLocation = keyStoreLocation;
 	}
 
+	public boolean isLazyKeys() {
+		return lazyKeys;
+	}
+
+	/**
+	 * Режим загрузки без открытия контейнеров, действует со следующей загрузки
+	 * @see #KEYSTORE_LAZY_KEYS_PROP
+	 */
+	public void setLazyKeys(boolean lazyKeys) {
+		this.lazyKeys = lazyKeys;
+	}
+
+	public boolean isCompactCertificates() {
+		return compactCertificates;
+	}
+
+	/**
+	 * Режим компактного хранения сертификатов, действует со следующей загрузки
+	 * @see #KEYSTORE_COMPACT_CERTIFICATES_PROP
+	 */
+	public void setCompactCertificates(boolean compactCertificates) {
+		this.compactCertificates = compactCertificates;
+	}
+
 	/**
 	 * Returns the key associated with the given alias.
 	 * <p>
@@ -361,16 +572,9 @@ public class CSPKeyStore extends KeyStoreSpi {
 			throw new UnrecoverableKeyException("Password must be null");
 		}
 
-		if (engineIsKeyEntry(alias) == false)
-			return null;
-
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
-				return entry.getPrivateKey();
-			}
-		}
+		KeyEntry entry = snapshot.get(alias);
 
-		return null;
+		return entry == null ? null : entry.getPrivateKey();
 	}
 
 	/**
@@ -390,15 +594,9 @@ public class CSPKeyStore extends KeyStoreSpi {
 			return null;
 		}
 
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
-				X509Certificate[] certChain = entry.getCertificateChain();
+		KeyEntry entry = snapshot.get(alias);
 
-				return certChain.clone();
-			}
-		}
-
-		return null;
+		return entry == null ? null : entry.getCertificateChain().clone();
 	}
 
 	/**
@@ -422,14 +620,16 @@ public class CSPKeyStore extends KeyStoreSpi {
 			return null;
 		}
 
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
-				X509Certificate[] certChain = entry.getCertificateChain();
-				return certChain[0];
-			}
+		KeyEntry entry = snapshot.get(alias);
+
+		if (entry == null) {
+			return null;
 		}
 
-		return null;
+		// компактная цепочка может не разобраться и оказаться пустой
+		X509Certificate[] chain = entry.getCertificateChain();
+
+		return chain == null || chain.length == 0 ? null : chain[0];
 	}
 
 	/**
@@ -498,35 +698,28 @@ public class CSPKeyStore extends KeyStoreSpi {
 
 		if (key instanceof CSPPrivateKey) {
 
-			KeyEntry entry = null;
-			boolean found = false;
-
-			for (KeyEntry e : entries) {
-				if (alias.equals(e.getAlias())) {
-					found = true;
-					entry = e;
-					break;
-				}
-			}
-
-			if (!found) {
-				entry =
+			synchronized (writeLock) {
+				Snapshot current = snapshot;
+				KeyEntry previous = current.get(alias);
+				// опубликованные записи не меняются, замена - новая запись
+				KeyEntry entry =
 				// TODO new KeyEntry(alias, key, (X509Certificate[]) chain);
 				new KeyEntry(alias, null, (X509Certificate[]) chain);
-				entries.add(entry);
-			}
 
-			entry.setAlias(alias);
+				entry.setAlias(alias);
 
-			try {
-				entry.setPrivateKey((CSPPrivateKey) key);
-				entry.setCertificateChain((X509Certificate[]) chain);
+				try {
+					entry.setPrivateKey((CSPPrivateKey) key);
+					entry.setCertificateChain((X509Certificate[]) chain);
+
+				} catch (CertificateException ce) {
+					throw new KeyStoreException(ce);
 
-			} catch (CertificateException ce) {
-				throw new KeyStoreException(ce);
+				} catch (InvalidKeyException ike) {
+					throw new KeyStoreException(ike);
+				}
 
-			} catch (InvalidKeyException ike) {
-				throw new KeyStoreException(ike);
+				snapshot = previous == null ? current.add(entry) : current.replace(previous, entry);
 			}
 
 		} else {
@@ -596,30 +789,23 @@ public class CSPKeyStore extends KeyStoreSpi {
 
 			// TODO - build CryptoAPI chain?
 			X509Certificate[] chain = new X509Certificate[] { (X509Certificate) cert };
-			KeyEntry entry = null;
-			boolean found = false;
-
-			for (KeyEntry e : entries) {
-				if (alias.equals(e.getAlias())) {
-					found = true;
-					entry = e;
-					break;
-				}
-			}
+			synchronized (writeLock) {
+				Snapshot current = snapshot;
+				KeyEntry previous = current.get(alias);
 
-			if (!found) {
-				entry = new KeyEntry(alias, null, chain);
-				entries.add(entry);
+				if (previous == null || !previous.hasPrivateKey()) { // trusted-cert entry
+					KeyEntry entry = new KeyEntry(alias, null, chain);
 
-			}
-			if (entry.getPrivateKey() == null) { // trusted-cert entry
-				entry.setAlias(alias);
+					entry.setAlias(alias);
 
-				try {
-					entry.setCertificateChain(chain);
+					try {
+						entry.setCertificateChain(chain);
 
-				} catch (CertificateException ce) {
-					throw new KeyStoreException(ce);
+					} catch (CertificateException ce) {
+						throw new KeyStoreException(ce);
+					}
+
+					snapshot = previous == null ? current.add(entry) : current.replace(previous, entry);
 				}
 			}
 
@@ -643,34 +829,33 @@ public class CSPKeyStore extends KeyStoreSpi {
 			throw new KeyStoreException("alias must not be null");
 		}
 
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
+		synchronized (writeLock) {
+			Snapshot current = snapshot;
+			KeyEntry entry = current.get(alias);
 
-				// Get end-entity certificate and remove from system cert store
-				X509Certificate[] certChain = entry.getCertificateChain();
-				if (certChain != null) {
-
-					try {
+			if (entry == null) {
+				return;
+			}
 
-						byte[] encoding = certChain[0].getEncoded();
-						removeCertificate(getName(), alias, encoding,
-								encoding.length);
+			// Get end-entity certificate and remove from system cert store
+			try {
+				byte[] encoding = entry.getEncodedCertificate();
 
-					} catch (CertificateException e) {
-						throw new KeyStoreException("Cannot remove entry: " + e);
-					}
+				if (encoding != null) {
+					removeCertificate(getName(), alias, encoding,
+							encoding.length);
 				}
-				CSPKey privateKey = entry.getPrivateKey();
-				if (privateKey != null) {
-					destroyKeyContainer(
-							privateKey.getProviderId(),
-							storeName,
-							CSPKey.getContainerName(privateKey.getHCryptProvider()));
-				}
-
-				entries.remove(entry);
-				break;
+			} catch (CertificateException e) {
+				throw new KeyStoreException("Cannot remove entry: " + e);
 			}
+			if (entry.hasPrivateKey()) {
+				destroyKeyContainer(
+						entry.getKeyProviderId(),
+						storeName,
+						entry.getKeyContainerName());
+			}
+
+			snapshot = current.remove(entry);
 		}
 	}
 
@@ -681,7 +866,8 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 */
 	public Enumeration<String> engineAliases() {
 
-		final Iterator<KeyEntry> iter = entries.iterator();
+		// перечисление идет по снимку и не меняется при перезагрузке
+		final Iterator<KeyEntry> iter = snapshot.entries.iterator();
 
 		return new Enumeration<String>() {
 			public boolean hasMoreElements() {
@@ -704,13 +890,7 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 * @return true if the alias exists, false otherwise
 	 */
 	public boolean engineContainsAlias(String alias) {
-		for (Enumeration<String> enumerator = engineAliases(); enumerator.hasMoreElements();) {
-			String a = enumerator.nextElement();
-
-			if (a.equals(alias))
-				return true;
-		}
-		return false;
+		return snapshot.get(alias) != null;
 	}
 
 	/**
@@ -719,7 +899,7 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 * @return the number of entries in this keystore
 	 */
 	public int engineSize() {
-		return entries.size();
+		return snapshot.entries.size();
 	}
 
 	/**
@@ -735,13 +915,9 @@ public class CSPKeyStore extends KeyStoreSpi {
 			return false;
 		}
 
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
-				return entry.getPrivateKey() != null;
-			}
-		}
+		KeyEntry entry = snapshot.get(alias);
 
-		return false;
+		return entry != null && entry.hasPrivateKey();
 	}
 
 	/**
@@ -752,13 +928,13 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 *         certificate entry</i>, false otherwise.
 	 */
 	public boolean engineIsCertificateEntry(String alias) {
-		for (KeyEntry entry : entries) {
-			if (alias.equals(entry.getAlias())) {
-				return entry.getPrivateKey() == null;
-			}
+		if (alias == null) {
+			return false;
 		}
 
-		return false;
+		KeyEntry entry = snapshot.get(alias);
+
+		return entry != null && !entry.hasPrivateKey();
 	}
 
 	/**
@@ -780,13 +956,33 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 *         null if no such entry exists in this keystore.
 	 */
 	public String engineGetCertificateAlias(Certificate cert) {
-		for (KeyEntry entry : entries) {
-			if (entry.certChain != null && entry.certChain[0].equals(cert)) {
-				return entry.getAlias();
-			}
+		return snapshot.certificates.getAlias(cert);
+	}
+
+	/**
+	 * Псевдоним первой записи, сертификат которой выпущен издателем
+	 * с данным серийным номером.
+	 *
+	 * @return псевдоним или null, если такой записи нет
+	 */
+	public String getCertificateAlias(X500Principal issuer, BigInteger serialNumber) {
+		if (issuer == null || serialNumber == null) {
+			return null;
 		}
+		return snapshot.certificates.getAlias(issuer, serialNumber);
+	}
 
-		return null;
+	/**
+	 * Псевдоним первой записи, сертификат которой содержит данный
+	 * идентификатор ключа субъекта (SubjectKeyIdentifier).
+	 *
+	 * @return псевдоним или null, если такой записи нет
+	 */
+	public String getCertificateAliasBySubjectKeyId(byte[] subjectKeyId) {
+		if (subjectKeyId == null) {
+			return null;
+		}
+		return snapshot.certificates.getAliasBySubjectKeyId(subjectKeyId);
 	}
 
 	/**
@@ -861,22 +1057,289 @@ public class CSPKeyStore extends KeyStoreSpi {
 			throw new IOException("Keystore password must be null");
 		}
 
-		/*
-		 * Use the same security check as AuthProvider.login
-		 */
+		checkLoadPermission();
+
+		synchronized (writeLock) {
+			// читатели видят прежний снимок, пока загружается новый
+			List<KeyEntry> entries = new ArrayList<KeyEntry>();
+			List<CSPKeyStoreReader.Record> skipped = new ArrayList<CSPKeyStoreReader.Record>();
+
+			try {
+				// файловое хранилище без изменений читается из кеша
+				CSPKeyStoreCache cache = system ? null : CSPKeyStoreCache.forStore(keyStoreLocation);
+				List<CSPKeyStoreReader.Record> records = cache == null ? null : cache.read();
+
+				if (records == null) {
+					// Load keys and/or certificate chains одним нативным вызовом
+					byte[] data = NativeCrypto.loadKeyStoreEntries(getName(), system, providerId, lazyKeys);
+					records = CSPKeyStoreReader.read(data);
+
+					if (cache != null) {
+						cache.write(records);
+					}
+				}
+				KeyEntry[] generated = generateKeyEntries(records);
+
+				for (int i = 0; i < generated.length; i++) {
+					if (generated[i] != null) {
+						entries.add(generated[i]);
+					} else if (records.get(i).certificates.length > 0) {
+						skipped.add(records.get(i));
+					}
+				}
+			} catch (KeyStoreException e) {
+				throw new IOException(e);
+			}
+			snapshot = new Snapshot(entries,
+					CSPKeyStoreChanges.recordIds(skipped, new CSPCertificateSlab(skipped), null));
+			loadedLazyKeys = lazyKeys;
+		}
+	}
+
+	/**
+	 * Обновить записи по текущему содержимому хранилища без полной перезагрузки.
+	 * <p>
+	 * Хранилище перечисляется без открытия контейнеров, записи сравниваются
+	 * с текущими по отпечатку сертификата ({@link CSPKeyStoreChanges}).
+	 * Неизменные записи остаются прежними вместе с открытыми ключами,
+	 * разбираются только новые сертификаты. Ключи новых записей открываются
+	 * в режиме, в котором хранилище загружено: при первом обращении или сразу.
+	 * Признак ключа неизменной записи хранилища, загруженного с открытием
+	 * контейнеров, не перепроверяется. Ключи удаленных записей не закрываются: они могут
+	 * использоваться вызывающим кодом и освобождаются при сборке мусора.
+	 * Записи, пропущенные при загрузке из-за ошибок разбора, сопоставляются
+	 * по своему идентификатору и не считаются новыми при каждом обновлении.
+	 * <p>
+	 * Доступно через {@link KeyStore#load(LoadStoreParameter)} с параметром
+	 * {@link RefreshParameter}.
+	 *
+	 * @return true, если записи изменились
+	 */
+	public boolean refresh() throws IOException {
+		checkLoadPermission();
+
+		synchronized (writeLock) {
+			Snapshot current = snapshot;
+			List<CSPKeyStoreReader.Record> records = new ArrayList<CSPKeyStoreReader.Record>();
+
+			try {
+				for (CSPKeyStoreReader.Record record : CSPKeyStoreReader.read(
+						NativeCrypto.loadKeyStoreEntries(getName(), system, providerId, true))) {
+					// запись без сертификатов не создается ни при загрузке, ни здесь
+					if (record.certificates.length > 0) {
+						records.add(record);
+					}
+				}
+			} catch (KeyStoreException e) {
+				throw new IOException(e);
+			}
+
+			// отпечатки считаются один раз, новые компактные цепочки берутся из того же массива
+			CSPCertificateSlab slab = new CSPCertificateSlab(records);
+			// хранилище загружено с открытием контейнеров: признак ключа
+			// известного сертификата берется из его записи
+			List<ByteBuffer> loadedIds = CSPKeyStoreChanges.recordIds(records, slab,
+					loadedLazyKeys ? null : knownKeys(current));
+
+			List<ByteBuffer> currentIds = new ArrayList<ByteBuffer>(current.entries.size());
+
+			for (KeyEntry entry : current.entries) {
+				// отпечаток компактной цепочки берется без ее разбора
+				ByteBuffer fingerprint = entry.getFingerprint();
+
+				// запись без отпечатка заменяется прочитанной
+				currentIds.add(fingerprint == null ? null : CSPKeyStoreChanges.entryId(fingerprint, entry.hasPrivateKey()));
+			}
+			// пропущенные записи идут после записей снимка
+			currentIds.addAll(current.skipped);
+
+			CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(currentIds, loadedIds);
+
+			if (changes.isEmpty()) {
+				return false;
+			}
+
+			List<CSPKeyStoreReader.Record> added = new ArrayList<CSPKeyStoreReader.Record>(changes.getAdded());
+			int[] addedFirst = new int[changes.getAdded()];
+			int first = 0;
+
+			for (int i = 0; i < records.size(); i++) {
+				if (changes.isNew(i)) {
+					addedFirst[added.size()] = first;
+					added.add(records.get(i));
+				}
+				first += records.get(i).certificates.length;
+			}
+
+			KeyEntry[] generated = compactCertificates
+					? generateKeyEntries(added, slab, addedFirst)
+					: generateKeyEntries(added);
+
+			if (!loadedLazyKeys) {
+				// контейнеры открываются только для новых записей
+				for (KeyEntry entry : generated) {
+					if (entry != null) {
+						entry.acquirePrivateKey();
+					}
+				}
+			}
+			List<KeyEntry> entries = new ArrayList<KeyEntry>(records.size());
+			List<ByteBuffer> skipped = new ArrayList<ByteBuffer>();
+			int next = 0;
+
+			// записи идут в порядке хранилища
+			for (int i = 0; i < records.size(); i++) {
+				KeyEntry entry;
+
+				if (changes.isNew(i)) {
+					entry = generated[next++];
+				} else if (changes.getMatch(i) < current.entries.size()) {
+					entry = current.entries.get(changes.getMatch(i));
+				} else {
+					// пропущенная прежде запись заново не разбирается
+					entry = null;
+				}
+
+				if (entry != null) {
+					entries.add(entry);
+				} else {
+					skipped.add(loadedIds.get(i));
+				}
+			}
+
+			LOGGER.debug("Key store {} refreshed: {} added, {} removed",
+					new Object[] {getName(), changes.getAdded(), changes.getRemoved()});
+			snapshot = new Snapshot(entries, skipped);
+			return true;
+		}
+	}
+
+	/**
+	 * Признак ключа записей снимка и пропущенных записей по отпечатку
+	 * первого сертификата
+	 */
+	private static Map<ByteBuffer, Boolean> knownKeys(Snapshot snapshot) {
+		Map<ByteBuffer, Boolean> keys = new HashMap<ByteBuffer, Boolean>();
+
+		for (KeyEntry entry : snapshot.entries) {
+			ByteBuffer fingerprint = entry.getFingerprint();
+
+			if (fingerprint != null) {
+				keys.put(fingerprint, entry.hasPrivateKey());
+			}
+		}
+		for (ByteBuffer id : snapshot.skipped) {
+			// идентификатор - отпечаток и байт признака ключа
+			ByteBuffer fingerprint = id.duplicate();
+
+			fingerprint.limit(fingerprint.limit() - 1);
+			keys.put(fingerprint, id.get(id.limit() - 1) != 0);
+		}
+		return keys;
+	}
+
+	/*
+	 * Use the same security check as AuthProvider.login
+	 */
+	private static void checkLoadPermission() {
 		SecurityManager sm = System.getSecurityManager();
 		if (sm != null) {
 			sm.checkPermission(new SecurityPermission("authProvider.JavaCSPProvider"));
 		}
+	}
 
-		// Clear all key entries
-		entries.clear();
+	/**
+	 * Неизменяемое состояние хранилища: записи и индексы по псевдониму
+	 * и сертификату. Если псевдоним повторяется, индекс указывает на первую
+	 * запись, как и перебор списка. Добавление копирует список и индексы,
+	 * удаление и замена строят индексы заново по списку записей.
+	 */
+	private static final class Snapshot {
+		final List<KeyEntry> entries;
+		// идентификаторы записей хранилища, для которых запись не создана
+		final List<ByteBuffer> skipped;
+		final Map<String, KeyEntry> aliases;
+		final CSPCertificateIndex certificates;
+
+		Snapshot(List<KeyEntry> entries) {
+			this(entries, Collections.<ByteBuffer>emptyList());
+		}
 
-		try {
-			// Load keys and/or certificate chains
-			loadKeysOrCertificateChains(getName(), entries, system, providerId);
-		} catch (KeyStoreException e) {
-			throw new IOException(e);
+		Snapshot(List<KeyEntry> entries, List<ByteBuffer> skipped) {
+			this(entries, skipped, new HashMap<String, KeyEntry>(), new CSPCertificateIndex());
+
+			for (KeyEntry entry : entries) {
+				index(entry);
+			}
+		}
+
+		private Snapshot(List<KeyEntry> entries, List<ByteBuffer> skipped, Map<String, KeyEntry> aliases,
+				CSPCertificateIndex certificates) {
+			this.entries = Collections.unmodifiableList(entries);
+			this.skipped = Collections.unmodifiableList(skipped);
+			this.aliases = aliases;
+			this.certificates = certificates;
+		}
+
+		KeyEntry get(String alias) {
+			return alias == null ? null : aliases.get(alias);
+		}
+
+		Snapshot add(KeyEntry entry) {
+			List<KeyEntry> list = new ArrayList<KeyEntry>(entries);
+
+			list.add(entry);
+
+			Snapshot snapshot = copy(list);
+			snapshot.index(entry);
+			return snapshot;
+		}
+
+		/**
+		 * Новая запись встает на место прежней
+		 */
+		Snapshot replace(KeyEntry previous, KeyEntry entry) {
+			List<KeyEntry> list = new ArrayList<KeyEntry>(entries);
+
+			list.set(list.indexOf(previous), entry);
+			return new Snapshot(list, skipped);
+		}
+
+		Snapshot remove(KeyEntry entry) {
+			List<KeyEntry> list = new ArrayList<KeyEntry>(entries);
+
+			list.remove(entry);
+			return new Snapshot(list, skipped);
+		}
+
+		private Snapshot copy(List<KeyEntry> list) {
+			return new Snapshot(list, skipped, new HashMap<String, KeyEntry>(aliases),
+					new CSPCertificateIndex(certificates));
+		}
+
+		/**
+		 * Добавить запись в индексы, если ее псевдоним и сертификат еще не заняты
+		 */
+		private void index(KeyEntry entry) {
+			String alias = entry.getAlias();
+
+			if (alias == null) {
+				return;
+			}
+			if (!aliases.containsKey(alias)) {
+				aliases.put(alias, entry);
+			}
+
+			CSPCertificateSlab.Chain compactChain = entry.getCompactChain();
+			if (compactChain != null) {
+				certificates.add(alias, compactChain);
+				return;
+			}
+
+			X509Certificate[] certChain = entry.getCertificateChain();
+			if (certChain != null && certChain.length > 0) {
+				certificates.add(alias, certChain[0]);
+			}
 		}
 	}
 
@@ -887,7 +1350,10 @@ public class CSPKeyStore extends KeyStoreSpi {
 	public void engineLoad(LoadStoreParameter param) throws IOException,
 			NoSuchAlgorithmException, CertificateException {
 		
-		if(param.getProtectionParameter() instanceof KeyStoreProtection) {
+		if(param instanceof RefreshParameter) {
+			refresh();
+		}
+		else if(param.getProtectionParameter() instanceof KeyStoreProtection) {
 			KeyStoreProtection protection = (KeyStoreProtection) param.getProtectionParameter();
 			
 			keyStoreLocation = protection.keyStoreLocation;
@@ -899,94 +1365,118 @@ public class CSPKeyStore extends KeyStoreSpi {
 	}
 
 	/**
-	 * Generates a certificate chain from the collection of certificates and
-	 * stores the result into a key entry.
+	 * Generates key entries from the records of packed key store data.
+	 * Сертификаты разбираются сразу или, в режиме компактного хранения,
+	 * при первом обращении к записи.
+	 *
+	 * @return записи в порядке данных, null на месте пропущенных
 	 */
-	private void generateCertificateChain(String alias,
-			Collection<X509Certificate> certCollection, Collection<KeyEntry> entries) {
-		try {
-			X509Certificate[] certChain = new X509Certificate[certCollection
-					.size()];
+	private KeyEntry[] generateKeyEntries(List<CSPKeyStoreReader.Record> records) {
+		KeyEntry[] entries = new KeyEntry[records.size()];
+
+		if (compactCertificates) {
+			int[] first = new int[records.size()];
 
-			int i = 0;
-			for (Iterator<X509Certificate> iter = certCollection.iterator(); iter.hasNext(); i++) {
-				certChain[i] = iter.next();
+			for (int i = 1; i < first.length; i++) {
+				first[i] = first[i - 1] + records.get(i - 1).certificates.length;
 			}
+			return generateKeyEntries(records, new CSPCertificateSlab(records), first);
+		}
 
-			KeyEntry entry = new KeyEntry(alias, null, certChain);
+		// сертификаты разбираются параллельно, записи идут в порядке хранилища
+		X509Certificate[][] chains;
 
-			// Add cert chain
-			entries.add(entry);
-		} catch (Throwable e) {
-			// Ignore the exception and skip this entry
-			// TODO - throw CertificateException?
-			LOGGER.error(e.getMessage(), e);
+		try {
+			chains = CSPCertificateParser.parseChains(records);
+		} catch (RuntimeException e) {
+			// ключи записей еще не переданы объектам Java
+			for (CSPKeyStoreReader.Record record : records) {
+				if (record.type == CSPKeyStoreReader.TYPE_KEY) {
+					NativeCrypto.keyDestroy(record.hCryptProvider, record.hCryptKey);
+				}
+			}
+			throw e;
 		}
+
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = generateKeyEntry(records.get(i), chains[i], null);
+		}
+		return entries;
 	}
 
 	/**
-	 * Generates CSP key and certificate chain from the private key handle,
-	 * collection of certificates and stores the result into key entries.
+	 * Записи с компактными цепочками из готового общего массива
+	 *
+	 * @param first номер первого сертификата каждой записи в slab
 	 */
-	private void generateCSPKeyAndCertificateChain(String alias, String container,
-			int providerId,
-			long hCryptProv, long hCryptKey, int keyLength,
-			Collection<X509Certificate> certCollection, Collection<KeyEntry> entries) {
-		try {
-			X509Certificate[] certChain = new X509Certificate[certCollection.size()];
-
-			int i = 0;
-			for (Iterator<X509Certificate> iter = certCollection.iterator(); iter.hasNext(); i++) {
-				certChain[i] = iter.next();
-			}
+	private KeyEntry[] generateKeyEntries(List<CSPKeyStoreReader.Record> records,
+			CSPCertificateSlab slab, int[] first) {
+		KeyEntry[] entries = new KeyEntry[records.size()];
 
-			// если псевдоним ключа не задан, берем имя контейнера, как делает JCP
-//			if(alias == null)
-//				alias = container;
+		for (int i = 0; i < entries.length; i++) {
+			CSPKeyStoreReader.Record record = records.get(i);
+			CSPCertificateSlab.Chain chain = null;
 
-			CSPPrivateKey privateKey = new CSPPrivateKey(hCryptProv, hCryptKey, keyLength);
-			privateKey.setContainer(container);
-			privateKey.setProviderId(providerId);
-			
-			KeyEntry entry = new KeyEntry(alias, privateKey, certChain);
-
-			// Add cert chain
-			entries.add(entry);
-		} catch (Throwable e) {
-			// Ignore the exception and skip this entry
-			// TODO - throw CertificateException?
-			LOGGER.error(e.getMessage(), e);
+			if (record.certificates.length > 0) {
+				try {
+					chain = slab.chain(first[i], record.certificates.length);
+				} catch (CertificateException e) {
+					// Ignore the exception and skip this entry
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+			entries[i] = generateKeyEntry(record, null, chain);
 		}
+		return entries;
 	}
 
 	/**
-	 * Generates certificates from byte data and stores into cert collection.
-	 * 
-	 * @param data
-	 *            Byte data.
-	 * @param certCollection
-	 *            Collection of certificates.
+	 * Generates key entry from the record of packed key store data.
+	 * Цепочка задается разобранной или в компактном хранении.
+	 * Запись без сертификатов пропускается, ее ключ освобождается.
+	 *
+	 * @return запись или null, если она пропущена
 	 */
-	private void generateCertificate(byte[] data, Collection<X509Certificate> certCollection) {
-		try {
-			ByteArrayInputStream bis = new ByteArrayInputStream(data);
+	private KeyEntry generateKeyEntry(CSPKeyStoreReader.Record record, X509Certificate[] certChain,
+			CSPCertificateSlab.Chain compactChain) {
+		CSPPrivateKey privateKey = null;
+
+		if (record.type == CSPKeyStoreReader.TYPE_KEY) {
+			// ключ сразу становится владельцем дескрипторов
+			privateKey = new CSPPrivateKey(record.hCryptProvider, record.hCryptKey, record.keyLength);
+			privateKey.setContainer(record.container);
+			privateKey.setProviderId(record.providerId);
+		}
 
-			// Obtain certificate factory
-			if (certificateFactory == null) {
-				certificateFactory = CertificateFactory.getInstance("X.509", CSPProvider.CSP_PROVIDER);
+		if (compactChain == null && (certChain == null || certChain.length == 0)) {
+			LOGGER.error("Skip key store entry {} without certificates", record.alias);
+
+			if (privateKey != null) {
+				privateKey.destroy();
 			}
+			return null;
+		}
+
+		try {
+			if (record.type == CSPKeyStoreReader.TYPE_LAZY_KEY) {
+				KeyProvInfo keyProvInfo = new KeyProvInfo(
+						record.container, record.providerId, record.keySpec, record.keyLength);
 
-			// Generate certificate
-			Collection c = certificateFactory.generateCertificates(bis);
-			certCollection.addAll(c);
-		} catch (CertificateException e) {
-			// Ignore the exception and skip this certificate
-			// TODO - throw CertificateException?
+				return compactChain != null
+						? new KeyEntry(record.alias, compactChain, keyProvInfo)
+						: new KeyEntry(record.alias, certChain, keyProvInfo);
+			}
+			return compactChain != null
+					? new KeyEntry(record.alias, privateKey, compactChain)
+					: new KeyEntry(record.alias, privateKey, certChain);
+		} catch (RuntimeException e) {
+			// Ignore the exception and skip this entry
 			LOGGER.error(e.getMessage(), e);
-		} catch (Throwable te) {
-			// Ignore the exception and skip this certificate
-			// TODO - throw CertificateException?
-			LOGGER.error(te.getMessage(), te);
+
+			if (privateKey != null) {
+				privateKey.destroy();
+			}
+			return null;
 		}
 	}
 
@@ -1001,20 +1491,6 @@ public class CSPKeyStore extends KeyStoreSpi {
 		return location;
 	}
 
-	/**
-	 * Load keys and/or certificates from keystore into Collection.
-	 * 
-	 * @param name
-	 *            Name of keystore.
-	 * @param entries
-	 *            Collection of key/certificate.
-	 * @param providerId2 
-	 * @param system2 
-	 */
-	private void loadKeysOrCertificateChains(String name, Collection<KeyEntry> entries, boolean system, int providerId) throws KeyStoreException {
-		NativeCrypto.loadKeysOrCertificateChains(this, name, entries, system, providerId);
-	}
-
 	/**
 	 * Stores a DER-encoded certificate into the certificate store
 	 * 
@@ -1025,7 +1501,7 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 * @param encoding
 	 *            DER-encoded certificate.
 	 */
-	private void storeCertificate(String name, String alias,
+	protected void storeCertificate(String name, String alias,
 			byte[] encoding, int encodingLength, long hCryptProvider,
 			long hCryptKey) throws CertificateException, KeyStoreException {
 		NativeCrypto.storeCertificate(name, alias, encoding, encodingLength, hCryptProvider, hCryptKey);
@@ -1041,7 +1517,7 @@ public class CSPKeyStore extends KeyStoreSpi {
 	 * @param encoding
 	 *            DER-encoded certificate.
 	 */
-	private void removeCertificate(String name, String alias, byte[] encoding, int encodingLength) 
+	protected void removeCertificate(String name, String alias, byte[] encoding, int encodingLength) 
 			throws CertificateException, KeyStoreException {
 		NativeCrypto.removeCertificate(name, alias, encoding, encodingLength);
 	}
@@ -1202,6 +1678,17 @@ public class CSPKeyStore extends KeyStoreSpi {
 		}
 	}
 
+	/**
+	 * Параметр {@link KeyStore#load(LoadStoreParameter)} для обновления
+	 * загруженного хранилища, см. {@link CSPKeyStore#refresh()}
+	 */
+	public static class RefreshParameter implements LoadStoreParameter {
+
+		public ProtectionParameter getProtectionParameter() {
+			return null;
+		}
+	}
+
 	public static class SimpleLoadStoreParameter implements LoadStoreParameter {
 
 		private final ProtectionParameter protection;
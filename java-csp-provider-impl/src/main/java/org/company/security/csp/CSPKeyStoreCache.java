@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.AccessController;
+import java.security.KeyStoreException;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Файл с разобранным содержимым хранилища {@link CSPKeyStore.FILE} для
+ * быстрого старта: при неизменном файле хранилища записи читаются из кеша
+ * без нативного перечисления.
+ * <p>
+ * Кеш включается свойством {@value #CACHE_PROP}. Файл кеша лежит рядом с
+ * хранилищем (имя хранилища с суффиксом {@value #CACHE_SUFFIX}) или в каталоге
+ * из свойства {@value #CACHE_DIR_PROP}. Кеш действителен, пока совпадают
+ * размер и время изменения файла хранилища, записанные в заголовке.
+ * <p>
+ * Записи хранятся в формате {@link CSPKeyStoreReader}. Дескрипторы ключей
+ * между запусками не сохраняются: ключ записи из кеша открывается при первом
+ * обращении, как в режиме {@link CSPKeyStore#KEYSTORE_LAZY_KEYS_PROP}.
+ */
+final class CSPKeyStoreCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPKeyStoreCache.class);
+
+	public static final String CACHE_PROP = "org.company.security.csp.keyStoreCache";
+	public static final String CACHE_DIR_PROP = "org.company.security.csp.keyStoreCacheDir";
+	static final String CACHE_SUFFIX = ".cache";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// "CSPK" в порядке байт платформы, при другом порядке кеш не читается
+	private static final int MAGIC = 0x4353504B;
+	private static final int VERSION = 1;
+	// magic, version, размер и время изменения хранилища
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	private final File file;
+	private final long storeLength;
+	private final long storeModified;
+
+	/**
+	 * Отметка изменения хранилища снимается при создании, до загрузки.
+	 * Если хранилище изменится во время загрузки, кеш не совпадет при
+	 * следующем старте.
+	 */
+	CSPKeyStoreCache(File store, File file) {
+		this.file = file;
+		this.storeLength = store.length();
+		this.storeModified = store.lastModified();
+	}
+
+	/**
+	 * Кеш файлового хранилища или null, если кеш выключен или хранилища нет
+	 */
+	static CSPKeyStoreCache forStore(String location) {
+		if (location == null || location.isEmpty() || !"true".equalsIgnoreCase(getProperty(CACHE_PROP))) {
+			return null;
+		}
+
+		File store = new File(location).getAbsoluteFile();
+
+		if (!store.isFile()) {
+			return null;
+		}
+
+		String dir = getProperty(CACHE_DIR_PROP);
+		File file;
+
+		if (dir != null && !dir.isEmpty()) {
+			// в общем каталоге имя кеша - SHA-1 пути хранилища
+			byte[] digest = CSPCertificateIndex.sha1(store.getPath().getBytes(UTF8));
+			file = new File(dir, new BigInteger(1, digest).toString(16) + CACHE_SUFFIX);
+		} else {
+			file = new File(store.getPath() + CACHE_SUFFIX);
+		}
+		return new CSPKeyStoreCache(store, file);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Прочитать записи из кеша
+	 * @return null, если кеша нет, он устарел или поврежден
+	 */
+	List<CSPKeyStoreReader.Record> read() {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+
+			try {
+				// заголовок читается без отображения файла, чтобы устаревший
+				// кеш не оставался отображенным и его можно было перезаписать
+				byte[] header = new byte[HEADER_SIZE];
+
+				if (in.length() < HEADER_SIZE) {
+					return null;
+				}
+				in.readFully(header);
+
+				if (!isValid(ByteBuffer.wrap(header).order(ByteOrder.nativeOrder()))) {
+					LOGGER.debug("Key store cache {} is stale", file);
+					return null;
+				}
+
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				buffer.position(HEADER_SIZE);
+				List<CSPKeyStoreReader.Record> records = CSPKeyStoreReader.read(buffer);
+
+				for (CSPKeyStoreReader.Record record : records) {
+					// дескрипторы в кеш не пишутся
+					if (record.type == CSPKeyStoreReader.TYPE_KEY) {
+						throw new KeyStoreException("Key handles in cache");
+					}
+				}
+				return records;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Error read key store cache " + file, e);
+		} catch (KeyStoreException e) {
+			LOGGER.warn("Corrupted key store cache " + file, e);
+		}
+		return null;
+	}
+
+	private boolean isValid(ByteBuffer header) {
+		return header.getInt() == MAGIC
+				&& header.getInt() == VERSION
+				&& header.getLong() == storeLength
+				&& header.getLong() == storeModified;
+	}
+
+	/**
+	 * Записать кеш. Файл пишется во временный и переименовывается,
+	 * ошибки записи не мешают загрузке хранилища.
+	 */
+	void write(List<CSPKeyStoreReader.Record> records) {
+		List<CSPKeyStoreReader.Record> detached = new ArrayList<CSPKeyStoreReader.Record>(records.size());
+
+		for (CSPKeyStoreReader.Record record : records) {
+			detached.add(detach(record));
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + CSPKeyStoreReader.size(detached))
+				.order(ByteOrder.nativeOrder());
+
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(storeLength).putLong(storeModified);
+		CSPKeyStoreReader.write(detached, buffer);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = null;
+
+		try {
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can not create directory " + dir);
+			}
+
+			temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+			FileOutputStream out = new FileOutputStream(temp);
+
+			try {
+				out.write(buffer.array(), 0, buffer.position());
+			} finally {
+				out.close();
+			}
+
+			// на Windows переименование не заменяет существующий файл
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Can not rename " + temp + " to " + file);
+			}
+			temp = null;
+		} catch (IOException e) {
+			LOGGER.warn("Error write key store cache " + file, e);
+		} finally {
+			if (temp != null && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Запись без дескрипторов текущего процесса
+	 */
+	private static CSPKeyStoreReader.Record detach(CSPKeyStoreReader.Record record) {
+		if (record.type != CSPKeyStoreReader.TYPE_KEY) {
+			return record;
+		}
+		return new CSPKeyStoreReader.Record(CSPKeyStoreReader.TYPE_LAZY_KEY,
+				record.providerId, record.keySpec, record.keyLength, 0, 0,
+				record.alias, record.container, record.certificates);
+	}
+
+	private static String getProperty(final String name) {
+		return AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(name);
+			}
+		});
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Сравнение записей хранилища с результатом повторного перечисления.
+ * <p>
+ * Запись определяется отпечатком SHA-1 первого сертификата цепочки и
+ * наличием закрытого ключа: сертификат, к которому добавили ключ, считается
+ * новой записью. Одинаковые записи сопоставляются по порядку, каждая прежняя
+ * запись используется не больше одного раза.
+ */
+final class CSPKeyStoreChanges {
+	private static final int NONE = -1;
+
+	private final int[] matches;
+	private final int added;
+	private final int removed;
+
+	private CSPKeyStoreChanges(int[] matches, int added, int removed) {
+		this.matches = matches;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	/**
+	 * Сопоставить записи
+	 *
+	 * @param current идентификаторы текущих записей, null не совпадает ни с чем
+	 * @param loaded идентификаторы записей, прочитанных из хранилища
+	 */
+	static CSPKeyStoreChanges compare(List<ByteBuffer> current, List<ByteBuffer> loaded) {
+		Map<ByteBuffer, LinkedList<Integer>> positions = new HashMap<ByteBuffer, LinkedList<Integer>>();
+
+		for (int i = 0; i < current.size(); i++) {
+			ByteBuffer id = current.get(i);
+
+			if (id == null) {
+				continue;
+			}
+
+			LinkedList<Integer> list = positions.get(id);
+
+			if (list == null) {
+				list = new LinkedList<Integer>();
+				positions.put(id, list);
+			}
+			list.add(i);
+		}
+
+		int[] matches = new int[loaded.size()];
+		int kept = 0;
+
+		for (int i = 0; i < matches.length; i++) {
+			ByteBuffer id = loaded.get(i);
+			LinkedList<Integer> list = id == null ? null : positions.get(id);
+
+			if (list == null || list.isEmpty()) {
+				matches[i] = NONE;
+			} else {
+				matches[i] = list.removeFirst();
+				kept++;
+			}
+		}
+		return new CSPKeyStoreChanges(matches, matches.length - kept, current.size() - kept);
+	}
+
+	/**
+	 * Идентификатор записи: отпечаток SHA-1 первого сертификата и признак ключа.
+	 * Отпечаток берется готовым ({@link CSPCertificateSlab.Chain#getFingerprint()}),
+	 * кодировка заново не хешируется.
+	 */
+	static ByteBuffer entryId(ByteBuffer fingerprint, boolean privateKey) {
+		ByteBuffer id = ByteBuffer.allocate(fingerprint.remaining() + 1);
+
+		id.put(fingerprint.duplicate()).put((byte) (privateKey ? 1 : 0));
+		id.flip();
+		return id;
+	}
+
+	/**
+	 * Идентификаторы прочитанных записей с сертификатами. Запись со сведениями
+	 * о ключе считается записью ключа, если keys не задает признак для ее
+	 * сертификата. Хранилище, загруженное с открытием контейнеров, передает
+	 * в keys признаки своих записей: сертификат, контейнер которого не открылся,
+	 * остается записью сертификата и не считается измененным.
+	 *
+	 * @param slab сертификаты записей records по порядку
+	 * @param keys признак ключа по отпечатку первого сертификата или null
+	 */
+	static List<ByteBuffer> recordIds(List<CSPKeyStoreReader.Record> records, CSPCertificateSlab slab,
+			Map<ByteBuffer, Boolean> keys) {
+		List<ByteBuffer> ids = new ArrayList<ByteBuffer>(records.size());
+		int first = 0;
+
+		for (CSPKeyStoreReader.Record record : records) {
+			ByteBuffer fingerprint = slab.getFingerprint(first);
+			boolean privateKey = record.type != CSPKeyStoreReader.TYPE_CERTIFICATES;
+
+			if (privateKey && keys != null && keys.containsKey(fingerprint)) {
+				privateKey = keys.get(fingerprint);
+			}
+			ids.add(entryId(fingerprint, privateKey));
+			first += record.certificates.length;
+		}
+		return ids;
+	}
+
+	/**
+	 * Номер прежней записи для прочитанной записи index или -1 для новой
+	 */
+	int getMatch(int index) {
+		return matches[index];
+	}
+
+	boolean isNew(int index) {
+		return matches[index] == NONE;
+	}
+
+	int getAdded() {
+		return added;
+	}
+
+	int getRemoved() {
+		return removed;
+	}
+
+	boolean isEmpty() {
+		return added == 0 && removed == 0;
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Разбор записей хранилища, упакованных
+ * {@link NativeCrypto#loadKeyStoreEntries(String, boolean, int, boolean)}
+ * за один нативный вызов. В том же формате записи лежат в файле
+ * {@link CSPKeyStoreCache}.
+ * <p>
+ * Формат (числа в порядке байт платформы): int число записей, далее для
+ * каждой записи int тип, int providerId, int keySpec, int длина ключа,
+ * long HCRYPTPROV, long HCRYPTKEY, строка псевдонима, строка контейнера,
+ * int число сертификатов и для каждого int длина и DER кодировка.
+ * Строка - int длина (-1 для null) и байты UTF-8.
+ */
+final class CSPKeyStoreReader {
+	/** Только цепочка сертификатов */
+	static final int TYPE_CERTIFICATES = 0;
+	/** Закрытый ключ с открытыми дескрипторами */
+	static final int TYPE_KEY = 1;
+	/** Закрытый ключ, контейнер которого еще не открыт */
+	static final int TYPE_LAZY_KEY = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Запись хранилища: цепочка сертификатов и сведения о закрытом ключе
+	 */
+	static final class Record {
+		final int type;
+		final int providerId;
+		final int keySpec;
+		final int keyLength;
+		final long hCryptProvider;
+		final long hCryptKey;
+		final String alias;
+		final String container;
+		final byte[][] certificates;
+
+		Record(int type, int providerId, int keySpec, int keyLength,
+				long hCryptProvider, long hCryptKey, String alias, String container,
+				byte[][] certificates) {
+			this.type = type;
+			this.providerId = providerId;
+			this.keySpec = keySpec;
+			this.keyLength = keyLength;
+			this.hCryptProvider = hCryptProvider;
+			this.hCryptKey = hCryptKey;
+			this.alias = alias;
+			this.container = container;
+			this.certificates = certificates;
+		}
+	}
+
+	private CSPKeyStoreReader() {
+	}
+
+	/**
+	 * Разобрать упакованные записи
+	 * @throws KeyStoreException данные повреждены
+	 */
+	static List<Record> read(byte[] data) throws KeyStoreException {
+		return read(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Разобрать упакованные записи с текущей позиции буфера
+	 * @throws KeyStoreException данные повреждены
+	 */
+	static List<Record> read(ByteBuffer buffer) throws KeyStoreException {
+		buffer.order(ByteOrder.nativeOrder());
+
+		try {
+			int count = readLength(buffer);
+			List<Record> records = new ArrayList<Record>(count);
+
+			for (int i = 0; i < count; i++) {
+				records.add(readRecord(buffer));
+			}
+			return records;
+		} catch (BufferUnderflowException e) {
+			throw new KeyStoreException("Truncated key store data", e);
+		}
+	}
+
+	private static Record readRecord(ByteBuffer buffer) throws KeyStoreException {
+		int type = buffer.getInt();
+
+		if (type != TYPE_CERTIFICATES && type != TYPE_KEY && type != TYPE_LAZY_KEY) {
+			throw new KeyStoreException("Unknown key store entry type " + type);
+		}
+
+		int providerId = buffer.getInt();
+		int keySpec = buffer.getInt();
+		int keyLength = buffer.getInt();
+		long hCryptProvider = buffer.getLong();
+		long hCryptKey = buffer.getLong();
+		String alias = readString(buffer);
+		String container = readString(buffer);
+		byte[][] certificates = new byte[readLength(buffer)][];
+
+		for (int i = 0; i < certificates.length; i++) {
+			certificates[i] = new byte[readLength(buffer)];
+			buffer.get(certificates[i]);
+		}
+		return new Record(type, providerId, keySpec, keyLength,
+				hCryptProvider, hCryptKey, alias, container, certificates);
+	}
+
+	private static String readString(ByteBuffer buffer) throws KeyStoreException {
+		int length = buffer.getInt();
+
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()) {
+			throw new KeyStoreException("Invalid key store string length " + length);
+		}
+
+		byte[] bytes = new byte[length];
+
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Размер упакованных записей в байтах
+	 */
+	static int size(List<Record> records) {
+		int size = 4;
+
+		for (Record record : records) {
+			size += 4 * 4 + 2 * 8 + 4 + 4 + 4;
+			size += utf8(record.alias).length + utf8(record.container).length;
+
+			for (byte[] certificate : record.certificates) {
+				size += 4 + certificate.length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Упаковать записи в буфер, места в нем должно быть не меньше {@link #size(List)}
+	 */
+	static void write(List<Record> records, ByteBuffer buffer) {
+		buffer.order(ByteOrder.nativeOrder());
+		buffer.putInt(records.size());
+
+		for (Record record : records) {
+			buffer.putInt(record.type)
+				.putInt(record.providerId)
+				.putInt(record.keySpec)
+				.putInt(record.keyLength)
+				.putLong(record.hCryptProvider)
+				.putLong(record.hCryptKey);
+			writeString(buffer, record.alias);
+			writeString(buffer, record.container);
+			buffer.putInt(record.certificates.length);
+
+			for (byte[] certificate : record.certificates) {
+				buffer.putInt(certificate.length).put(certificate);
+			}
+		}
+	}
+
+	private static void writeString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			buffer.putInt(-1);
+			return;
+		}
+
+		byte[] bytes = utf8(value);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static byte[] utf8(String value) {
+		return value == null ? new byte[0] : value.getBytes(UTF8);
+	}
+
+	/**
+	 * Длина или число элементов, не больше оставшихся данных
+	 */
+	private static int readLength(ByteBuffer buffer) throws KeyStoreException {
+		int length = buffer.getInt();
+
+		if (length < 0 || length > buffer.remaining()) {
+			throw new KeyStoreException("Invalid key store length " + length);
+		}
+		return length;
+	}
+}
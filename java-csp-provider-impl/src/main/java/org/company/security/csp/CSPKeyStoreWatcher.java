@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.Closeable;
+import java.security.AccessController;
+import java.security.KeyStore;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Периодическое обновление загруженного хранилища, например для замены
+ * сертификатов в системном хранилище MY без перезапуска.
+ * <p>
+ * Хранилище обновляется вызовом {@link KeyStore#load(KeyStore.LoadStoreParameter)}
+ * с {@link CSPKeyStore.RefreshParameter}, меняются только добавленные и
+ * удаленные записи. Ошибки обновления записываются в журнал, наблюдение
+ * продолжается. Интервал опроса по умолчанию задается свойством
+ * {@value #INTERVAL_PROP} в миллисекундах.
+ */
+public class CSPKeyStoreWatcher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPKeyStoreWatcher.class);
+
+	public static final String INTERVAL_PROP = "org.company.security.csp.keyStoreRefreshInterval";
+	static final long DEFAULT_INTERVAL = 60000L;
+
+	private final KeyStore keyStore;
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Наблюдение с интервалом из свойства {@value #INTERVAL_PROP}
+	 */
+	public CSPKeyStoreWatcher(KeyStore keyStore) {
+		this(keyStore, getInterval());
+	}
+
+	/**
+	 * @param keyStore загруженное хранилище провайдера
+	 * @param interval интервал опроса в миллисекундах
+	 */
+	public CSPKeyStoreWatcher(KeyStore keyStore, long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Invalid refresh interval " + interval);
+		}
+
+		this.keyStore = keyStore;
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "CSP keystore watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh() {
+		try {
+			keyStore.load(new CSPKeyStore.RefreshParameter());
+		} catch (Exception e) {
+			LOGGER.warn("Error refresh key store " + keyStore.getType(), e);
+		}
+	}
+
+	/**
+	 * Остановить наблюдение, начатое обновление завершается
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	static long getInterval() {
+		String value = AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(INTERVAL_PROP);
+			}
+		});
+
+		if (value != null) {
+			try {
+				long interval = Long.parseLong(value.trim());
+
+				if (interval > 0) {
+					return interval;
+				}
+			} catch (NumberFormatException e) {
+				// значение по умолчанию
+			}
+			LOGGER.warn("Invalid value of {}: {}", INTERVAL_PROP, value);
+		}
+		return DEFAULT_INTERVAL;
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.MacSpi;
+
+/**
+ * Имитовставка на сессионном ключе {@link CSPSecretKey}: хеш CryptoAPI,
+ * созданный на ключе (CryptCreateHash с hKey).
+ * <p>
+ * При инициализации создается хеш-образец, в который данные не подаются.
+ * Каждое сообщение считается на его копии (CryptDuplicateHash), поэтому
+ * после {@link #engineReset()} и {@link #engineDoFinal()} ключ заново
+ * в хеш не загружается. Каждый хеш держит свою ссылку на контекст провайдера
+ * ключа, поэтому переживает {@link CSPSecretKey#destroy()}.
+ */
+public abstract class CSPMac extends MacSpi implements Cloneable {
+
+	public static class MAC_GOST28147 extends CSPMac {
+
+		public MAC_GOST28147() {
+			super("MAC_GOST28147", 4);
+		}
+	}
+
+	public static class HMAC_GOSTR3411 extends CSPMac {
+
+		public HMAC_GOSTR3411() {
+			super("HMAC_GOSTR3411", 32);
+		}
+	}
+
+	private final String algorithm;
+	private final int macLength;
+	// ключ держится, пока на нем существуют хеши
+	private CSPSecretKey secretKey;
+	private long hCryptoProvider = 0;
+	private long hTemplateHash = 0;
+	private long hCryptoHash = 0;
+	// дескрипторы для освобождения, не ссылаются на объект
+	private CSPHandleCleaner.Handles templateHandles;
+	private CSPHandleCleaner.Handles handles;
+
+	protected CSPMac(String algorithm, int macLength) {
+		this.algorithm = algorithm;
+		this.macLength = macLength;
+		this.templateHandles = CSPHandleCleaner.register(this);
+		this.handles = CSPHandleCleaner.register(this);
+	}
+
+	@Override
+	protected int engineGetMacLength() {
+		return macLength;
+	}
+
+	@Override
+	protected void engineInit(Key key, AlgorithmParameterSpec params)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+
+		if(params != null)
+			throw new InvalidAlgorithmParameterException("Parameters not supported");
+		if(!(key instanceof CSPSecretKey))
+			throw new InvalidKeyException("Key type not supported");
+
+		CSPSecretKey cspKey = (CSPSecretKey) key;
+
+		if(cspKey.getHCryptKey() == 0)
+			throw new InvalidKeyException("Key is destroyed");
+
+		long hash;
+
+		try {
+			hash = NativeCrypto.macCreateHash(cspKey.getHCryptProvider(), cspKey.getHCryptKey(), algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidKeyException(e.getMessage(), e);
+		}
+
+		handles.release();
+		hCryptoHash = 0;
+		templateHandles.release();
+		templateHandles.acquire(cspKey.getHCryptProvider(), 0);
+		templateHandles.acquireHash(hash);
+		hCryptoProvider = cspKey.getHCryptProvider();
+		hTemplateHash = hash;
+		secretKey = cspKey;
+	}
+
+	/**
+	 * Хеш текущего сообщения, копируется из образца при первых данных
+	 */
+	private long getHash() {
+		if(hCryptoHash == 0) {
+			if(hTemplateHash == 0)
+				throw new IllegalStateException("MAC not initialized");
+
+			try {
+				hCryptoHash = NativeCrypto.macDuplicate(hCryptoProvider, hTemplateHash);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			handles.acquire(hCryptoProvider, 0);
+			handles.acquireHash(hCryptoHash);
+		}
+		return hCryptoHash;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		try {
+			NativeCrypto.digestEngineUpdateByte(getHash(), input);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		try {
+			NativeCrypto.digestEngineUpdateBytes(getHash(), input, offset, len);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Данные direct буфера хешируются по нативному адресу без копирования
+	 */
+	@Override
+	protected void engineUpdate(ByteBuffer input) {
+		if(!input.hasRemaining())
+			return;
+
+		int position = input.position();
+		int len = input.remaining();
+
+		if(input.isDirect()) {
+			try {
+				NativeCrypto.digestEngineUpdateDirect(getHash(), input, position, len);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			input.position(position + len);
+		}
+		else if(input.hasArray()) {
+			engineUpdate(input.array(), input.arrayOffset() + position, len);
+			input.position(position + len);
+		}
+		else {
+			super.engineUpdate(input);
+		}
+	}
+
+	@Override
+	protected byte[] engineDoFinal() {
+		try {
+			return NativeCrypto.digestEngineDigest(getHash());
+		} catch (DigestException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		finally {
+			// после получения значения хеш закрыт для изменений
+			engineReset();
+		}
+	}
+
+	@Override
+	protected void engineReset() {
+		if(hCryptoHash != 0) {
+			// хеш и его ссылка на контекст
+			handles.release();
+			hCryptoHash = 0;
+		}
+	}
+
+	/**
+	 * Копия текущего состояния через CryptDuplicateHash
+	 */
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		CSPMac mac = (CSPMac) super.clone();
+
+		mac.hTemplateHash = 0;
+		mac.hCryptoHash = 0;
+		mac.templateHandles = CSPHandleCleaner.register(mac);
+		mac.handles = CSPHandleCleaner.register(mac);
+
+		try {
+			if(hTemplateHash != 0) {
+				mac.hTemplateHash = NativeCrypto.macDuplicate(hCryptoProvider, hTemplateHash);
+				mac.templateHandles.acquire(hCryptoProvider, 0);
+				mac.templateHandles.acquireHash(mac.hTemplateHash);
+			}
+			if(hCryptoHash != 0) {
+				mac.hCryptoHash = NativeCrypto.macDuplicate(hCryptoProvider, hCryptoHash);
+				mac.handles.acquire(hCryptoProvider, 0);
+				mac.handles.acquireHash(mac.hCryptoHash);
+			}
+		} catch (DigestException e) {
+			mac.templateHandles.release();
+			mac.handles.release();
+			CloneNotSupportedException exception = new CloneNotSupportedException(e.getMessage());
+			exception.initCause(e);
+			throw exception;
+		}
+		return mac;
+	}
+}
@@ -0,0 +1,524 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Шифрование ГОСТ 28147-89 в режиме гаммирования (CNT) на нескольких ядрах.
+ * <p>
+ * Гамма блока i зависит только от ключа, синхропосылки и номера блока:
+ * синхропосылка зашифровывается в простой замене в накопители (N3, N4),
+ * перед каждым блоком к ним прибавляются константы C2 по модулю 2^32 и C1
+ * по модулю 2^32-1, гамма - зашифрованные накопители. Поэтому данные
+ * делятся на сегменты, кратные блоку, и для сегмента, начинающегося с блока k,
+ * накопители (N3 + k*C2, N4 + k*C1) вычисляются сразу, а расшифрованные в
+ * простой замене дают синхропосылку, с которой обычный режим CNT провайдера
+ * продолжает гамму с блока k. Каждый сегмент шифруется своим дубликатом ключа
+ * ({@link CSPCipher}) и дает тот же результат, что и последовательное шифрование.
+ * <p>
+ * Если провайдер меняет ключ в процессе шифрования (key meshing КриптоПро через
+ * каждый килобайт), гамма сегментов не совпадает с последовательной. Это
+ * проверяется на ключе один раз пробным шифрованием, и при расхождении
+ * данные шифруются последовательно.
+ * <p>
+ * Файлы читаются и пишутся сегментами по позиции канала через direct буферы
+ * потока шифрования, сегмент шифруется из буфера в буфер без копирования в Java.
+ * Отображения файлов в память не используются: они освобождаются только
+ * сборщиком мусора и удерживают файлы и адресное пространство.
+ */
+public class CSPParallelCipher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPParallelCipher.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final int BLOCK_SIZE = 8;
+	private static final String TRANSFORMATION_MODE = "CNT";
+
+	// константы генератора гаммы ГОСТ 28147-89
+	private static final long C1 = 0x01010104L;
+	private static final long C2 = 0x01010101L;
+	private static final long MOD_N3 = 0x100000000L;
+	private static final long MOD_N4 = 0xFFFFFFFFL;
+
+	// пробное шифрование захватывает несколько смен ключа КриптоПро
+	private static final int PROBE_SEGMENT_SIZE = 1024;
+	private static final int PROBE_SEGMENTS = 4;
+
+	private final int threads;
+	private final int segmentSize;
+	private final ThreadPoolExecutor executor;
+	private final ThreadLocal<CSPCipher> ciphers = new ThreadLocal<CSPCipher>() {
+
+		@Override
+		protected CSPCipher initialValue() {
+			return newCipher(TRANSFORMATION_MODE);
+		}
+	};
+	// входной и выходной буферы сегмента для файлов, по паре на поток
+	private final ThreadLocal<ByteBuffer[]> buffers = new ThreadLocal<ByteBuffer[]>() {
+
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] {
+					ByteBuffer.allocateDirect(segmentSize),
+					ByteBuffer.allocateDirect(segmentSize) };
+		}
+	};
+	private final AtomicLong parallelSegments = new AtomicLong();
+
+	// результат пробного шифрования по ключам
+	private final Map<CSPSecretKey, Boolean> probed =
+			Collections.synchronizedMap(new WeakHashMap<CSPSecretKey, Boolean>());
+
+	/**
+	 * Число потоков по числу процессоров и сегменты по {@value #DEFAULT_SEGMENT_SIZE} байт
+	 */
+	public CSPParallelCipher() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param threads число потоков шифрования
+	 * @param segmentSize размер сегмента в байтах, кратный 8
+	 */
+	public CSPParallelCipher(int threads, int segmentSize) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		if(segmentSize <= 0 || segmentSize % BLOCK_SIZE != 0)
+			throw new IllegalArgumentException("segmentSize must be a positive multiple of " + BLOCK_SIZE);
+
+		this.threads = threads;
+		this.segmentSize = segmentSize;
+		this.executor = new ThreadPoolExecutor(threads, threads,
+				60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ParallelThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Число сегментов, зашифрованных параллельно с момента создания
+	 */
+	public long getParallelSegmentCount() {
+		return parallelSegments.get();
+	}
+
+	/**
+	 * Зашифровать массив. Гаммирование обратимо, расшифрование - тот же вызов.
+	 * @param iv синхропосылка, 8 байт
+	 */
+	public byte[] process(CSPSecretKey key, byte[] iv, byte[] input) throws GeneralSecurityException {
+		byte[] output = new byte[input.length];
+
+		process(key, iv, input, output);
+		return output;
+	}
+
+	/**
+	 * Зашифровать массив в массив той же длины
+	 */
+	public void process(final CSPSecretKey key, byte[] iv, final byte[] input, final byte[] output)
+			throws GeneralSecurityException {
+
+		if(output.length < input.length)
+			throw new IllegalArgumentException("Output is shorter than input");
+
+		final Counter counter = counter(key, iv);
+
+		if(!isParallel(key, input.length)) {
+			processSegment(key, counter, 0, input, 0, input.length, output);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for(long offset = 0; offset < input.length; offset += segmentSize) {
+			final int from = (int) offset;
+			final int length = Math.min(segmentSize, input.length - from);
+
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					processSegment(key, counter, from, input, from, length, output);
+					parallelSegments.incrementAndGet();
+					return null;
+				}
+			});
+		}
+
+		try {
+			invokeAll(tasks);
+		} catch (IOException e) {
+			// сегменты массива не выполняют ввод-вывод
+			throw new ProviderException(e);
+		}
+	}
+
+	/**
+	 * Зашифровать файл. Выходной файл создается или перезаписывается и имеет длину входного.
+	 * @param iv синхропосылка, 8 байт
+	 */
+	public void process(final CSPSecretKey key, byte[] iv, File input, File output)
+			throws IOException, GeneralSecurityException {
+
+		RandomAccessFile in = new RandomAccessFile(input, "r");
+
+		try {
+			RandomAccessFile out = new RandomAccessFile(output, "rw");
+
+			try {
+				final FileChannel inChannel = in.getChannel();
+				final FileChannel outChannel = out.getChannel();
+				final long length = inChannel.size();
+				final Counter counter = counter(key, iv);
+
+				out.setLength(length);
+
+				if(!isParallel(key, length)) {
+					processSerial(key, counter, inChannel, outChannel, length);
+					return;
+				}
+
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+				for(long offset = 0; offset < length; offset += segmentSize) {
+					final long from = offset;
+					final int size = (int) Math.min(segmentSize, length - from);
+
+					tasks.add(new Callable<Void>() {
+
+						@Override
+						public Void call() throws Exception {
+							ByteBuffer[] buffer = buffers.get();
+							ByteBuffer source = read(inChannel, buffer[0], from, size);
+							ByteBuffer target = buffer[1];
+
+							target.clear();
+							processSegment(key, counter, from, source, target);
+							write(outChannel, target, from);
+							parallelSegments.incrementAndGet();
+							return null;
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Файл одним дубликатом ключа, по сегменту через буферы потока
+	 */
+	private void processSerial(CSPSecretKey key, Counter counter,
+			FileChannel inChannel, FileChannel outChannel, long length)
+			throws IOException, GeneralSecurityException {
+
+		CSPCipher cipher = ciphers.get();
+		ByteBuffer[] buffer = buffers.get();
+
+		cipher.engineInit(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter.iv), null);
+		try {
+			for(long offset = 0; offset < length || offset == 0; offset += segmentSize) {
+				int size = (int) Math.min(segmentSize, length - offset);
+				ByteBuffer source = read(inChannel, buffer[0], offset, size);
+				ByteBuffer target = buffer[1];
+
+				target.clear();
+				if(offset + size < length)
+					cipher.engineUpdate(source, target);
+				else
+					cipher.engineDoFinal(source, target);
+				write(outChannel, target, offset);
+			}
+		}
+		finally {
+			cipher.reset();
+		}
+	}
+
+	private void processSegment(CSPSecretKey key, Counter counter, long offset,
+			byte[] input, int inputOffset, int length, byte[] output) throws GeneralSecurityException {
+
+		CSPCipher cipher = ciphers.get();
+
+		cipher.engineInit(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter.segmentIV(offset)), null);
+		try {
+			cipher.engineDoFinal(input, inputOffset, length, output, inputOffset);
+		}
+		finally {
+			cipher.reset();
+		}
+	}
+
+	private void processSegment(CSPSecretKey key, Counter counter, long offset,
+			ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+
+		CSPCipher cipher = ciphers.get();
+
+		cipher.engineInit(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter.segmentIV(offset)), null);
+		try {
+			cipher.engineDoFinal(input, output);
+		}
+		finally {
+			cipher.reset();
+		}
+	}
+
+	/**
+	 * Прочитать size байт файла с позиции position в начало буфера
+	 * @return буфер, подготовленный для чтения
+	 */
+	private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long position, int size)
+			throws IOException {
+
+		buffer.clear();
+		buffer.limit(size);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("File is shorter than " + (position + size) + " bytes");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Записать заполненную часть буфера в файл с позиции position
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+
+	/**
+	 * Делить ли данные на сегменты
+	 */
+	private boolean isParallel(CSPSecretKey key, long length) throws GeneralSecurityException {
+		if(threads == 1 || length <= segmentSize)
+			return false;
+
+		Boolean supported = probed.get(key);
+
+		if(supported == null) {
+			supported = probe(key);
+			probed.put(key, supported);
+
+			if(!supported)
+				LOGGER.debug("Counter mode gamma of the provider is not seekable, falling back to serial encryption");
+		}
+		return supported;
+	}
+
+	/**
+	 * Сравнить последовательное шифрование с шифрованием по сегментам
+	 */
+	private boolean probe(CSPSecretKey key) throws GeneralSecurityException {
+		byte[] iv = new byte[BLOCK_SIZE];
+		byte[] input = new byte[PROBE_SEGMENT_SIZE * PROBE_SEGMENTS];
+		byte[] serial = new byte[input.length];
+		byte[] segmented = new byte[input.length];
+		Counter counter = counter(key, iv);
+
+		processSegment(key, counter, 0, input, 0, input.length, serial);
+		for(int offset = 0; offset < input.length; offset += PROBE_SEGMENT_SIZE)
+			processSegment(key, counter, offset, input, offset, PROBE_SEGMENT_SIZE, segmented);
+
+		return Arrays.equals(serial, segmented);
+	}
+
+	private Counter counter(CSPSecretKey key, byte[] iv) throws GeneralSecurityException {
+		if(iv == null || iv.length != BLOCK_SIZE)
+			throw new IllegalArgumentException("IV must be " + BLOCK_SIZE + " bytes long");
+
+		return new Counter(key, iv.clone());
+	}
+
+	private void invokeAll(List<Callable<Void>> tasks) throws IOException, GeneralSecurityException {
+		List<Future<Void>> futures;
+
+		try {
+			futures = executor.invokeAll(tasks);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProviderException("Interrupted", e);
+		}
+
+		for(Future<Void> future : futures) {
+			try {
+				future.get();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProviderException("Interrupted", e);
+			}
+			catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if(cause instanceof GeneralSecurityException)
+					throw (GeneralSecurityException) cause;
+				if(cause instanceof IOException)
+					throw (IOException) cause;
+				if(cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if(cause instanceof Error)
+					throw (Error) cause;
+				throw new ProviderException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Остановить потоки шифрования
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	private static CSPCipher newCipher(String mode) {
+		CSPCipher cipher = new CSPCipher();
+
+		try {
+			cipher.engineSetMode(mode);
+		} catch (GeneralSecurityException e) {
+			throw new ProviderException(e);
+		}
+		return cipher;
+	}
+
+	/**
+	 * Накопители генератора гаммы для синхропосылки операции
+	 */
+	private static final class Counter {
+		private final CSPSecretKey key;
+		private final byte[] iv;
+		// накопители N3, N4 после зашифрования синхропосылки
+		private final long n3;
+		private final long n4;
+
+		Counter(CSPSecretKey key, byte[] iv) throws GeneralSecurityException {
+			byte[] s = ecb(key, Cipher.ENCRYPT_MODE, iv);
+
+			this.key = key;
+			this.iv = iv;
+			this.n3 = getInt(s, 0);
+			this.n4 = getInt(s, 4);
+		}
+
+		/**
+		 * Синхропосылка, с которой гамма начинается с блока, содержащего offset
+		 */
+		byte[] segmentIV(long offset) throws GeneralSecurityException {
+			long block = offset / BLOCK_SIZE;
+
+			if(block == 0)
+				return iv;
+
+			byte[] s = new byte[BLOCK_SIZE];
+			long nextN4 = (n4 + (block % MOD_N4) * C1 % MOD_N4) % MOD_N4;
+
+			// сложение по модулю 2^32-1 с переносом не дает 0
+			putInt(s, 0, (n3 + (block % MOD_N3) * C2) % MOD_N3);
+			putInt(s, 4, nextN4 == 0 ? MOD_N4 : nextN4);
+			return ecb(key, Cipher.DECRYPT_MODE, s);
+		}
+
+		private static byte[] ecb(CSPSecretKey key, int opmode, byte[] block) throws GeneralSecurityException {
+			CSPCipher cipher = newCipher("ECB");
+
+			cipher.engineInit(opmode, key, (AlgorithmParameterSpec) null, null);
+			try {
+				// без завершения операции, чтобы провайдер не дополнял блок
+				return cipher.engineUpdate(block, 0, BLOCK_SIZE);
+			}
+			finally {
+				cipher.reset();
+			}
+		}
+
+		private static long getInt(byte[] b, int off) {
+			return (b[off] & 0xFFL) | (b[off + 1] & 0xFFL) << 8
+					| (b[off + 2] & 0xFFL) << 16 | (b[off + 3] & 0xFFL) << 24;
+		}
+
+		private static void putInt(byte[] b, int off, long value) {
+			for(int i = 0; i < 4; i++)
+				b[off + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	private static final class ParallelThreadFactory implements ThreadFactory {
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,
+					"CSP cipher-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -19,6 +19,9 @@ package org.company.security.csp;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.Provider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public final class CSPProvider extends Provider {
 	public static final String CSP_PROVIDER = "CSPProvider";
@@ -52,11 +55,14 @@ public final class CSPProvider extends Provider {
 				put("Alg.Alias.MessageDigest.1.2.643.2.2.9", "GOST3411");		// szOID_CP_GOST_R3411
 				put("Alg.Alias.MessageDigest.OID.1.2.643.2.2.9", "GOST3411");
 
-//				put("Mac.HMAC_GOSTR3411", CSPDigest.HMACGOST3411.class.getName());
-//				put("Alg.Alias.Mac.1.2.643.2.2.10", "HMAC_GOSTR3411");
-//				put("Alg.Alias.Mac.OID.1.2.643.2.2.10", "HMAC_GOSTR3411");
+				/* == Mac == */
+				put("Mac.HMAC_GOSTR3411", CSPMac.HMAC_GOSTR3411.class.getName());
+				put("Mac.HMAC_GOSTR3411 SupportedKeyClasses", CSPSecretKey.class.getName());
+				put("Alg.Alias.Mac.1.2.643.2.2.10", "HMAC_GOSTR3411");			// szOID_CP_GOST_R3411_HMAC
+				put("Alg.Alias.Mac.OID.1.2.643.2.2.10", "HMAC_GOSTR3411");
 //				put("Mac.HMAC34_GOST3411", CSPDigest.HMAC34GOST3411.class.getName());
-//				put("Mac.MAC_GOST28147", CSPDigest.MACGOST28147.class.getName());
+				put("Mac.MAC_GOST28147", CSPMac.MAC_GOST28147.class.getName());
+				put("Mac.MAC_GOST28147 SupportedKeyClasses", CSPSecretKey.class.getName());
 
 //				/* == KeyPairGenerators == */
 //				put("KeyPairGenerator.GOST3410", CSPKeyPairGOST3410.class.getName());
@@ -83,9 +89,17 @@ public final class CSPProvider extends Provider {
 //				put("Alg.Alias.KeyFactory.OID.1.2.643.2.2.98", "GOST3410DHEL");
 
 				/* == Cipher engines == */
-//				put("Cipher.GOST28147", CSPCipher.class.getName());
-//				put("Alg.Alias.Cipher.1.2.643.2.2.21", "GOST28147");			// szOID_CP_GOST_28147 
-//				put("Alg.Alias.Cipher.OID.1.2.643.2.2.21", "GOST28147"); 
+				put("Cipher.GOST28147", CSPCipher.class.getName());
+				put("Cipher.GOST28147 SupportedModes", "CFB|CNT|CBC|ECB");
+				put("Cipher.GOST28147 SupportedPaddings", "NOPADDING");
+				put("Cipher.GOST28147 SupportedKeyClasses", CSPSecretKey.class.getName());
+				put("Alg.Alias.Cipher.1.2.643.2.2.21", "GOST28147");			// szOID_CP_GOST_28147 
+				put("Alg.Alias.Cipher.OID.1.2.643.2.2.21", "GOST28147"); 
+
+				/* == KeyGenerator == */
+				put("KeyGenerator.GOST28147", CSPKeyGenerator.GOST28147.class.getName());
+				put("Alg.Alias.KeyGenerator.1.2.643.2.2.21", "GOST28147");
+				put("Alg.Alias.KeyGenerator.OID.1.2.643.2.2.21", "GOST28147");
 
 				/* == Signatures == */
 //				put("Signature.GOST3411withGOST3410", SignatureGOST3411withGOST3410.class.getName());
@@ -117,4 +131,16 @@ public final class CSPProvider extends Provider {
 			}
 		});
 	}
+
+	/**
+	 * Диагностика: алгоритмы, найденные при перечислении криптопровайдеров,
+	 * и типы провайдеров, выбранные для них.
+	 */
+	public static List<CSPAlgorithmInfo> getResolvedAlgorithms() {
+		CSPAlgorithmInfo[] algorithms = NativeCrypto.getResolvedAlgorithms();
+
+		if(algorithms == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(Arrays.asList(algorithms));
+	}
 }
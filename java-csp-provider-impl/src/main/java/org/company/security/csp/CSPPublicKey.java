@@ -77,6 +77,16 @@ public class CSPPublicKey extends CSPKey implements java.security.PublicKey {
 		return encoding;
 	}
 
+	/**
+	 * Копия ключа со своими дескрипторами: ключ дублируется, а счетчик
+	 * ссылок контекста провайдера увеличивается
+	 */
+	CSPPublicKey duplicate() throws InvalidKeyException {
+		long hDuplicateKey = NativeCrypto.keyDuplicate(hCryptProvider, hCryptKey);
+
+		return new CSPPublicKey(hCryptProvider, hDuplicateKey, keyLength, encoding);
+	}
+
 	protected Object writeObject() throws java.io.ObjectStreamException {
 		return new KeyRep(KeyRep.Type.PUBLIC, getAlgorithm(), getFormat(), getEncoded());
 	}
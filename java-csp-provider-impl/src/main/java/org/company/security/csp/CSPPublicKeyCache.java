@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Кеш импортированных открытых ключей по SubjectPublicKeyInfo.
+ * <p>
+ * Импорт ключа (разбор SPKI, выбор провайдера, CryptImportPublicKeyInfo)
+ * выполняется один раз, дальше все пользователи получают общий {@link CSPPublicKey}.
+ * Ключ выдается со взятой ссылкой ({@link CSPKey#retain()}), пользователь
+ * возвращает ее через {@link CSPKey#release()}. При вытеснении из кеша
+ * возвращается ссылка кеша, и дескрипторы освобождаются, когда ключ
+ * больше никем не используется.
+ * <p>
+ * Размер кеша задается системным свойством {@value #CACHE_SIZE_PROP},
+ * 0 отключает кеширование.
+ */
+public class CSPPublicKeyCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPPublicKeyCache.class);
+
+	public static final String CACHE_SIZE_PROP = "org.company.security.csp.publicKeyCache.size";
+
+	private static final int DEFAULT_CACHE_SIZE = 256;
+
+	private static CSPPublicKeyCache defaultCache;
+
+	private final int maxSize;
+	private final LinkedHashMap<ByteBuffer, CSPPublicKey> keys;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Общий кеш провайдера с размером из системного свойства
+	 */
+	public static synchronized CSPPublicKeyCache getDefault() {
+		if(defaultCache == null) {
+			defaultCache = new CSPPublicKeyCache(getCacheSize());
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * @param maxSize максимальное число ключей в кеше
+	 */
+	public CSPPublicKeyCache(int maxSize) {
+		if(maxSize < 0)
+			throw new IllegalArgumentException("maxSize must not be negative");
+		this.maxSize = maxSize;
+		this.keys = new LinkedHashMap<ByteBuffer, CSPPublicKey>(16, 0.75f, true);
+	}
+
+	/**
+	 * Получить открытый ключ провайдера по SubjectPublicKeyInfo.
+	 * Ключ возвращается со взятой ссылкой, которую надо вернуть через {@link CSPKey#release()}.
+	 * @param encoded SubjectPublicKeyInfo в DER
+	 */
+	public CSPPublicKey acquire(byte[] encoded) throws InvalidKeyException, NoSuchAlgorithmException {
+		ByteBuffer id = ByteBuffer.wrap(encoded.clone());
+
+		synchronized (keys) {
+			CSPPublicKey publicKey = keys.get(id);
+
+			// ключ мог быть освобожден вызовом destroy() пользователя
+			if(publicKey != null) {
+				if(publicKey.retain()) {
+					hits.incrementAndGet();
+					return publicKey;
+				}
+				keys.remove(id);
+			}
+		}
+		misses.incrementAndGet();
+
+		CSPPublicKey publicKey = importPublicKey(encoded);
+
+		if(maxSize == 0)
+			return publicKey;
+
+		List<CSPPublicKey> evicted = new ArrayList<CSPPublicKey>();
+
+		synchronized (keys) {
+			CSPPublicKey cached = keys.get(id);
+
+			// другой поток уже импортировал этот ключ
+			if(cached != null && cached.retain()) {
+				evicted.add(publicKey);
+				publicKey = cached;
+			}
+			else {
+				// ссылку создателя получает кеш, пользователю берется своя
+				publicKey.retain();
+				keys.put(id, publicKey);
+
+				Iterator<CSPPublicKey> iterator = keys.values().iterator();
+				while(keys.size() > maxSize && iterator.hasNext()) {
+					evicted.add(iterator.next());
+					iterator.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+
+		for(CSPPublicKey key : evicted)
+			key.release();
+		return publicKey;
+	}
+
+	/**
+	 * Получить собственную копию ключа для вызывающего вне провайдера.
+	 * Копия имеет свои дескрипторы, ее {@link CSPKey#destroy()} не затрагивает
+	 * ключ в кеше, которым пользуются другие потоки.
+	 * @param encoded SubjectPublicKeyInfo в DER
+	 */
+	public CSPPublicKey acquireCopy(byte[] encoded) throws InvalidKeyException, NoSuchAlgorithmException {
+		CSPPublicKey publicKey = acquire(encoded);
+
+		try {
+			return duplicatePublicKey(publicKey);
+		}
+		finally {
+			publicKey.release();
+		}
+	}
+
+	/**
+	 * Удалить все ключи из кеша
+	 */
+	public void clear() {
+		List<CSPPublicKey> evicted;
+
+		synchronized (keys) {
+			evicted = new ArrayList<CSPPublicKey>(keys.values());
+			keys.clear();
+		}
+
+		for(CSPPublicKey key : evicted)
+			key.release();
+	}
+
+	public int size() {
+		synchronized (keys) {
+			return keys.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Импорт ключа в провайдер
+	 */
+	protected CSPPublicKey importPublicKey(byte[] encoded) throws InvalidKeyException, NoSuchAlgorithmException {
+		return NativeCrypto.initPublicKey(encoded, encoded.length);
+	}
+
+	/**
+	 * Копия дескрипторов ключа
+	 */
+	protected CSPPublicKey duplicatePublicKey(CSPPublicKey publicKey) throws InvalidKeyException {
+		return publicKey.duplicate();
+	}
+
+	private static int getCacheSize() {
+		String value = AccessController.doPrivileged(new PrivilegedAction<String>() {
+
+			@Override
+			public String run() {
+				return System.getProperty(CACHE_SIZE_PROP);
+			}
+		});
+
+		if(value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch(NumberFormatException e) {
+				LOGGER.warn("Invalid value of {}: {}", CACHE_SIZE_PROP, value);
+			}
+		}
+		return DEFAULT_CACHE_SIZE;
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+
+		stats.put("size", (long) size());
+		stats.put("hits", getHitCount());
+		stats.put("misses", getMissCount());
+		stats.put("evictions", getEvictionCount());
+		return "CSPPublicKeyCache " + stats;
+	}
+}
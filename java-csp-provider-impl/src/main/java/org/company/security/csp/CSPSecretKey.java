@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Сессионный ключ ГОСТ 28147-89. Ключ создается в контексте провайдера
+ * без контейнера (CRYPT_VERIFYCONTEXT) и не извлекается из провайдера.
+ */
+public class CSPSecretKey extends CSPKey implements SecretKey {
+	private static final long serialVersionUID = -3472311786054729187L;
+
+	public static final String GOST28147 = "GOST28147";
+
+	/**
+	 * Вызывается из {@link NativeCrypto#secretKeyGenerate(String)}
+	 */
+	public CSPSecretKey(long hCryptoProvider, long hCryptoKey, int keyLength) {
+		super(hCryptoProvider, hCryptoKey, keyLength);
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return GOST28147;
+	}
+
+	/**
+	 * Данный класс не сериализуется
+	 */
+	private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+		throw new java.io.NotSerializableException();
+	}
+}
@@ -17,6 +17,7 @@
 package org.company.security.csp;
 
 import java.nio.ByteBuffer;
+import java.security.AccessController;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
@@ -24,6 +25,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
+import java.security.PrivilegedAction;
 import java.security.ProviderException;
 import java.security.PublicKey;
 import java.security.SignatureException;
@@ -33,8 +35,22 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.company.security.csp.parameter.DigestParameterSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 abstract class CSPSignature extends SignatureSpi {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPSignature.class);
+
+	/**
+	 * Максимальная длина сообщения, которое при подписи накапливается в Java
+	 * и хешируется и подписывается одним нативным вызовом. 0 отключает накопление.
+	 */
+	public static final String ONE_SHOT_LIMIT_PROP = "org.company.security.csp.signature.oneShotLimit";
+
+	// совпадает с размером стекового буфера нативного hashAndSign
+	private static final int DEFAULT_ONE_SHOT_LIMIT = 4096;
+
+	private static final int ONE_SHOT_LIMIT = getOneShotLimit();
 	
 	public static class GOST3411withGOST3410EL extends CSPSignature {
 
@@ -70,8 +86,19 @@ abstract class CSPSignature extends SignatureSpi {
 	// the verification key
 	private CSPKey publicKey = null;
 
+	// the verification key was taken from CSPPublicKeyCache and must be released
+	private boolean cachedPublicKey = false;
+
 	private List<AlgorithmParameterSpec> parameters;
 
+	// короткое сообщение для подписи одним нативным вызовом
+	private byte[] oneShotBuffer = null;
+	private int oneShotLength = 0;
+	// накопление включено для подписи
+	private boolean oneShot = false;
+	// сообщение не поместилось в буфер и хешируется по частям
+	private boolean streaming = true;
+
 	public CSPSignature(String algorithm) {
 		int of = algorithm.indexOf("with");
 		digestName = null;
@@ -196,13 +223,16 @@ abstract class CSPSignature extends SignatureSpi {
 	protected void engineInitVerify(PublicKey key)
 			throws InvalidKeyException {
 
+		boolean cached = false;
+
 		if(!(key instanceof CSPPublicKey)) {
 			// берем данные открытого ключа
 			if(key instanceof PublicKey) {
 				byte[] encoded = key.getEncoded();
 				
 				if(encoded != null) {
-					key = initPublicKey(encoded, encoded.length);
+					key = initPublicKey(encoded);
+					cached = true;
 				}
 			}
 		}
@@ -210,20 +240,33 @@ abstract class CSPSignature extends SignatureSpi {
 		if(!(key instanceof CSPPublicKey)) {
 			throw new InvalidKeyException("Key type not supported");
 		}
+		releasePublicKey();
 		publicKey = (CSPPublicKey) key;
+		cachedPublicKey = cached;
 		privateKey = null;
 		needsReset = true;
 		resetDigest();
+		oneShot = false;
+		streaming = true;
 	}
 
-	private CSPPublicKey initPublicKey(byte[] encoded, int length) throws InvalidKeyException {
+	/**
+	 * Импортированный ключ берется из общего кеша провайдера
+	 */
+	private CSPPublicKey initPublicKey(byte[] encoded) throws InvalidKeyException {
 		try {
-			return NativeCrypto.initPublicKey(encoded, length);
+			return CSPPublicKeyCache.getDefault().acquire(encoded);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalStateException(e.getMessage(), e);
 		}
 	}
 
+	private void releasePublicKey() {
+		if(cachedPublicKey && publicKey != null)
+			publicKey.release();
+		cachedPublicKey = false;
+	}
+
 	@Override
 	protected void engineInitSign(PrivateKey key)
 			throws InvalidKeyException {
@@ -232,9 +275,14 @@ abstract class CSPSignature extends SignatureSpi {
 			throw new InvalidKeyException("Key type not supported");
 		}
 		privateKey = (CSPPrivateKey) key;
+		releasePublicKey();
 		publicKey = null;
 		needsReset = true;
 		resetDigest();
+		// накопление имеет смысл только при подписи; Raw получает готовый хеш
+		// в своем буфере и подписывает его без хеширования
+		oneShot = !(this instanceof Raw) && ONE_SHOT_LIMIT > 0 && messageDigest != null;
+		streaming = !oneShot;
 	}
 
 	protected void resetDigest() {
@@ -242,19 +290,63 @@ abstract class CSPSignature extends SignatureSpi {
 			messageDigest.reset();
 			needsReset = false;
 		}
+		oneShotLength = 0;
 	}
 
 	protected byte[] getDigestValue() throws SignatureException {
+		flushOneShot();
 		needsReset = false;
 		return messageDigest.digest();
 	}
 
+	/**
+	 * Подготовить место в буфере для подписи одним вызовом
+	 * @return false, если данные не помещаются и хешируются по частям
+	 */
+	private boolean reserveOneShot(int len) {
+		if(streaming)
+			return false;
+
+		if(oneShotLength + len > ONE_SHOT_LIMIT) {
+			flushOneShot();
+			return false;
+		}
+		if(oneShotBuffer == null || oneShotLength + len > oneShotBuffer.length) {
+			byte[] buffer = new byte[Math.min(ONE_SHOT_LIMIT,
+					Math.max(oneShotLength + len, 2 * oneShotLength + 64))];
+
+			if(oneShotLength > 0)
+				System.arraycopy(oneShotBuffer, 0, buffer, 0, oneShotLength);
+			oneShotBuffer = buffer;
+		}
+		return true;
+	}
+
+	/**
+	 * Перейти к хешированию по частям до конца текущего сообщения
+	 */
+	private void flushOneShot() {
+		if(streaming)
+			return;
+
+		if(oneShotLength > 0) {
+			messageDigest.update(oneShotBuffer, 0, oneShotLength);
+			needsReset = true;
+			oneShotLength = 0;
+		}
+		streaming = true;
+	}
+
 	protected void setDigestName(String name) {
 		messageDigestAlgorithm = name;
 	}
 
 	@Override
 	protected void engineUpdate(byte b) throws SignatureException {
+		if(reserveOneShot(1)) {
+			oneShotBuffer[oneShotLength++] = b;
+			return;
+		}
 		messageDigest.update(b);
 		needsReset = true;
 	}
@@ -262,40 +354,169 @@ abstract class CSPSignature extends SignatureSpi {
 	@Override
 	protected void engineUpdate(byte[] b, int off, int len)
 			throws SignatureException {
+		if(reserveOneShot(len)) {
+			System.arraycopy(b, off, oneShotBuffer, oneShotLength, len);
+			oneShotLength += len;
+			return;
+		}
 		messageDigest.update(b, off, len);
 		needsReset = true;
 	}
 
 	@Override
 	protected void engineUpdate(ByteBuffer input) {
+		// CSPDigest хеширует direct буфер без копирования
+		flushOneShot();
 		messageDigest.update(input);
 		needsReset = true;
 	}
 
 	@Override
 	protected byte[] engineSign() throws SignatureException {
-		byte[] hash = getDigestValue();
-		boolean noHashOID = this instanceof Raw;
-		byte[] result;
+		try {
+			if(!streaming) {
+				// короткое сообщение целиком в буфере: хеш и подпись одним нативным вызовом
+				final byte[] data = oneShotBuffer != null ? oneShotBuffer : new byte[0];
+				final int length = oneShotLength;
+
+				return withSigningKey(new SignOperation<byte[]>() {
+
+					@Override
+					byte[] sign(long hCryptoProvider, long hCryptoKey, int keySpec) {
+						return NativeCrypto.hashAndSign(CSPSignature.this, data, 0, length,
+								messageDigestAlgorithm, hCryptoProvider, hCryptoKey, keySpec);
+					}
+				});
+			}
 
-		result = signHash(noHashOID, hash, hash.length,
-				messageDigestAlgorithm,
-				privateKey.getProviderId(),
-				privateKey.getContainer());
-		// Convert signature array from little endian to big endian
-		return convertEndianArray(result);
+			final byte[] hash = getDigestValue();
+			final boolean noHashOID = this instanceof Raw;
+
+			return withSigningKey(new SignOperation<byte[]>() {
+
+				@Override
+				byte[] sign(long hCryptoProvider, long hCryptoKey, int keySpec) {
+					return NativeCrypto.signHash(CSPSignature.this, noHashOID, hash, hash.length,
+							messageDigestAlgorithm, hCryptoProvider, hCryptoKey, keySpec);
+				}
+			});
+		}
+		finally {
+			// следующее сообщение снова накапливается
+			oneShotLength = 0;
+			streaming = !oneShot;
+		}
 	}
 
-	@SuppressWarnings("unused")
-	private byte[] signHash(boolean noHashOID, byte[] hash, int hashSize,
-			String messageDigestAlgorithm, 
-			long hCryptoProvider, long hCryptoKey) {
+	/**
+	 * Подпись записывается в массив вызывающего без промежуточного массива
+	 */
+	@Override
+	protected int engineSign(final byte[] outbuf, final int offset, final int len) throws SignatureException {
+		Integer result;
 
-		return NativeCrypto.signHash(this, noHashOID, hash, hashSize,
-				messageDigestAlgorithm, 
-				hCryptoProvider, hCryptoKey);
+		try {
+			// короткий буфер - ошибка вызывающего, до контейнера из пула она не доходит
+			int signatureLength = privateKey.length() / 8;
+
+			if(len < signatureLength)
+				throw new SignatureException("Signature buffer is too short: " + len
+						+ " < " + signatureLength);
+
+			if(!streaming) {
+				final byte[] data = oneShotBuffer != null ? oneShotBuffer : new byte[0];
+				final int length = oneShotLength;
+
+				result = withSigningKey(new SignOperation<Integer>() {
+
+					@Override
+					Integer sign(long hCryptoProvider, long hCryptoKey, int keySpec) {
+						return NativeCrypto.hashAndSignTo(CSPSignature.this, data, 0, length,
+								messageDigestAlgorithm, hCryptoProvider, hCryptoKey, keySpec,
+								outbuf, offset, len);
+					}
+				});
+			}
+			else {
+				final byte[] hash = getDigestValue();
+				final boolean noHashOID = this instanceof Raw;
+
+				result = withSigningKey(new SignOperation<Integer>() {
+
+					@Override
+					Integer sign(long hCryptoProvider, long hCryptoKey, int keySpec) {
+						return NativeCrypto.signHashTo(CSPSignature.this, noHashOID, hash, hash.length,
+								messageDigestAlgorithm, hCryptoProvider, hCryptoKey, keySpec,
+								outbuf, offset, len);
+					}
+				});
+			}
+		}
+		finally {
+			oneShotLength = 0;
+			streaming = !oneShot;
+		}
+		return result;
 	}
-	
+
+	/**
+	 * Нативная подпись на дескрипторах ключа. keySpec равен 0, если
+	 * назначение ключа неизвестно и определяется нативным кодом.
+	 */
+	private abstract static class SignOperation<T> {
+
+		abstract T sign(long hCryptoProvider, long hCryptoKey, int keySpec);
+	}
+
+	/**
+	 * Выполнить подпись на дескрипторах закрытого ключа. Ключ из хранилища
+	 * подписывает на контексте контейнера из пула. Контекст закрывается
+	 * только при ошибке провайдера, ошибка аргументов его не затрагивает.
+	 */
+	private <T> T withSigningKey(SignOperation<T> operation) throws SignatureException {
+		String container = privateKey.getContainer();
+
+		if(container == null) {
+			// ключ не из хранилища, подписываем на его собственных дескрипторах
+			return operation.sign(privateKey.getHCryptProvider(), privateKey.getHCryptKey(), 0);
+		}
+
+		// контейнер не открывается на каждую подпись, а берется из пула
+		CSPContainerPool pool = CSPContainerPool.getDefault();
+		CSPContainerContext context;
+		boolean healthy = false;
+		T result;
+
+		try {
+			context = pool.borrow(privateKey.getProviderId(), container);
+		}
+		catch(InvalidKeyException e) {
+			throw new SignatureException(e);
+		}
+
+		try {
+			// назначение ключа контекст получил при открытии контейнера
+			result = operation.sign(context.getHCryptProvider(), context.getHCryptKey(), context.getKeySpec());
+			healthy = true;
+		}
+		catch(ProviderException e) {
+			throw e;
+		}
+		catch(RuntimeException e) {
+			// границы массива и другие ошибки аргументов
+			healthy = true;
+			throw e;
+		}
+		finally {
+			if(healthy)
+				pool.release(context);
+			else
+				pool.invalidate(context);
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unused")
 	private byte[] signHash(boolean noHashOID, byte[] hash, int hashSize,
 			String messageDigestAlgorithm,
 			int providerId, String context) {
@@ -316,20 +537,24 @@ abstract class CSPSignature extends SignatureSpi {
 				hCryptoProvider, hCryptoKey);
 	}
 
-	/**
-	 * Convert array from big endian to little endian, or vice versa.
-	 */
-	private byte[] convertEndianArray(byte[] byteArray) {
-		if (byteArray == null || byteArray.length == 0)
-			return byteArray;
-
-		byte[] retval = new byte[byteArray.length];
+	private static int getOneShotLimit() {
+		String value = AccessController.doPrivileged(new PrivilegedAction<String>() {
 
-		// make it big endian
-		for (int i = 0; i < byteArray.length; i++)
-			retval[i] = byteArray[byteArray.length - i - 1];
+			@Override
+			public String run() {
+				return System.getProperty(ONE_SHOT_LIMIT_PROP);
+			}
+		});
 
-		return retval;
+		if(value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch(NumberFormatException e) {
+				LOGGER.warn("Invalid value of {}: {}", ONE_SHOT_LIMIT_PROP, value);
+			}
+		}
+		return DEFAULT_ONE_SHOT_LIMIT;
 	}
 
 	@Override
@@ -338,7 +563,7 @@ abstract class CSPSignature extends SignatureSpi {
 
 		return verifySignedHash(hash, hash.length,
 				messageDigestAlgorithm,
-				convertEndianArray(sigBytes), sigBytes.length, 
+				sigBytes, sigBytes.length,
 				publicKey.getHCryptProvider(),
 				publicKey.getHCryptKey());
 	}
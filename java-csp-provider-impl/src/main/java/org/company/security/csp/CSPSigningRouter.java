@@ -0,0 +1,379 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.UnrecoverableKeyException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Распределение подписей между несколькими равноценными контейнерами.
+ * <p>
+ * Токен подписывает последовательно, поэтому при нескольких контейнерах
+ * с эквивалентными сертификатами (например, несколько токенов одного
+ * юридического лица) подпись направляется в наименее загруженный контейнер:
+ * выбирается минимум произведения числа выполняющихся подписей на скользящее
+ * среднее время подписи контейнера.
+ * <p>
+ * Контейнер, на котором подпись завершилась ошибкой провайдера
+ * ({@link SignatureException} или {@link ProviderException}), исключается из выбора
+ * на время карантина, затем на него пропускается одна пробная подпись.
+ * Ошибки вызывающего (неизвестный алгоритм, неподходящий ключ, неверные
+ * аргументы) передаются сразу и на состояние контейнера не влияют.
+ * При повторной ошибке карантин удваивается, но не превышает {@link #MAX_QUARANTINE}.
+ */
+public class CSPSigningRouter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPSigningRouter.class);
+
+	public static final long DEFAULT_QUARANTINE = TimeUnit.SECONDS.toMillis(30);
+	public static final long MAX_QUARANTINE = TimeUnit.MINUTES.toMillis(10);
+
+	// вес последнего замера в скользящем среднем
+	private static final double EWMA_WEIGHT = 0.2;
+
+	/**
+	 * Снимок статистики одного контейнера
+	 */
+	public static final class ContainerStats {
+		private final String name;
+		private final int inFlight;
+		private final long completed;
+		private final long failed;
+		private final double averageMillis;
+		private final double throughput;
+		private final boolean quarantined;
+
+		ContainerStats(String name, int inFlight, long completed, long failed,
+				double averageMillis, double throughput, boolean quarantined) {
+			this.name = name;
+			this.inFlight = inFlight;
+			this.completed = completed;
+			this.failed = failed;
+			this.averageMillis = averageMillis;
+			this.throughput = throughput;
+			this.quarantined = quarantined;
+		}
+
+		/**
+		 * Имя ключа в хранилище или имя контейнера
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Число выполняющихся подписей
+		 */
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		public long getCompleted() {
+			return completed;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Скользящее среднее время подписи в миллисекундах
+		 */
+		public double getAverageMillis() {
+			return averageMillis;
+		}
+
+		/**
+		 * Средняя пропускная способность в подписях в секунду с момента создания маршрутизатора
+		 */
+		public double getThroughput() {
+			return throughput;
+		}
+
+		public boolean isQuarantined() {
+			return quarantined;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": completed=" + completed + ", failed=" + failed
+					+ ", inFlight=" + inFlight
+					+ ", avg=" + String.format("%.2f", averageMillis) + "ms"
+					+ ", throughput=" + String.format("%.1f", throughput) + "/s"
+					+ (quarantined ? ", quarantined" : "");
+		}
+	}
+
+	/**
+	 * Состояние контейнера
+	 */
+	private static final class Member {
+		private final String name;
+		private final PrivateKey key;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		// поля ниже меняются под блокировкой Member
+		private double averageNanos = 0;
+		private long quarantinedUntil = 0;
+		private long quarantine = 0;
+		private boolean probing = false;
+
+		Member(String name, PrivateKey key) {
+			this.name = name;
+			this.key = key;
+		}
+	}
+
+	private final List<Member> members;
+	private final long baseQuarantine;
+	private final long created = System.nanoTime();
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Маршрутизатор по ключам из хранилища
+	 * @param keyStore хранилище CSPProvider
+	 * @param aliases имена ключей с эквивалентными сертификатами
+	 * @param password пароль ключей
+	 */
+	public static CSPSigningRouter fromKeyStore(KeyStore keyStore, List<String> aliases, char[] password)
+			throws GeneralSecurityException {
+		Map<String, PrivateKey> keys = new LinkedHashMap<String, PrivateKey>();
+
+		for(String alias : aliases) {
+			Key key = keyStore.getKey(alias, password);
+
+			if(!(key instanceof PrivateKey))
+				throw new UnrecoverableKeyException("No private key for alias " + alias);
+			keys.put(alias, (PrivateKey) key);
+		}
+		return new CSPSigningRouter(keys, DEFAULT_QUARANTINE);
+	}
+
+	/**
+	 * @param keys закрытые ключи по именам
+	 * @param quarantine начальное время карантина контейнера после ошибки в миллисекундах
+	 */
+	public CSPSigningRouter(Map<String, ? extends PrivateKey> keys, long quarantine) {
+		if(keys.isEmpty())
+			throw new IllegalArgumentException("No keys to route");
+
+		List<Member> list = new ArrayList<Member>(keys.size());
+
+		for(Map.Entry<String, ? extends PrivateKey> entry : keys.entrySet())
+			list.add(new Member(entry.getKey(), entry.getValue()));
+
+		this.members = Collections.unmodifiableList(list);
+		this.baseQuarantine = quarantine;
+	}
+
+	/**
+	 * Подписать данные алгоритмом {@value CSPSigningService#DEFAULT_SIGNATURE}
+	 */
+	public byte[] sign(byte[] data) throws SignatureException {
+		return sign(CSPSigningService.DEFAULT_SIGNATURE, data);
+	}
+
+	/**
+	 * Подписать данные в выбранном контейнере. При ошибке провайдера контейнер
+	 * уходит в карантин, а подпись повторяется в следующем доступном.
+	 * @throws SignatureException ни один контейнер не смог подписать
+	 *         или ошибка вызывающего
+	 */
+	public byte[] sign(String algorithm, byte[] data) throws SignatureException {
+		SignatureException last = null;
+
+		for(int attempt = 0; attempt < members.size(); attempt++) {
+			Member member = select();
+
+			if(member == null)
+				break;
+
+			long start = System.nanoTime();
+			member.inFlight.incrementAndGet();
+			try {
+				byte[] result = doSign(algorithm, member.key, data);
+
+				succeeded(member, System.nanoTime() - start);
+				return result;
+			}
+			catch(SignatureException e) {
+				failed(member);
+				last = e;
+			}
+			catch(ProviderException e) {
+				failed(member);
+				last = new SignatureException(e);
+			}
+			catch(GeneralSecurityException e) {
+				// ошибка вызывающего повторится в любом контейнере
+				released(member);
+				throw new SignatureException(e);
+			}
+			catch(RuntimeException e) {
+				released(member);
+				throw e;
+			}
+			finally {
+				member.inFlight.decrementAndGet();
+			}
+		}
+
+		if(last == null)
+			throw new SignatureException("All containers are quarantined");
+		throw last;
+	}
+
+	/**
+	 * Статистика по контейнерам
+	 */
+	public List<ContainerStats> getStatistics() {
+		List<ContainerStats> result = new ArrayList<ContainerStats>(members.size());
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - created) / 1e9;
+
+		for(Member member : members) {
+			double average;
+			boolean quarantined;
+
+			synchronized (member) {
+				average = member.averageNanos / 1e6;
+				quarantined = member.quarantinedUntil != 0;
+			}
+			long completed = member.completed.get();
+
+			result.add(new ContainerStats(member.name, member.inFlight.get(),
+					completed, member.failed.get(), average, completed / seconds, quarantined));
+		}
+		return result;
+	}
+
+	/**
+	 * Суммарная пропускная способность всех контейнеров в подписях в секунду
+	 */
+	public double getThroughput() {
+		double throughput = 0;
+
+		for(ContainerStats stats : getStatistics())
+			throughput += stats.getThroughput();
+		return throughput;
+	}
+
+	/**
+	 * Подпись в выбранном контейнере
+	 */
+	protected byte[] doSign(String algorithm, PrivateKey key, byte[] data) throws GeneralSecurityException {
+		Signature signature = CSPSigningService.getSignature(algorithm);
+
+		signature.initSign(key);
+		signature.update(data);
+		return signature.sign();
+	}
+
+	/**
+	 * Выбрать контейнер с минимальной оценкой ожидания. Контейнер, у которого
+	 * истек карантин, получает одну пробную подпись вне очереди.
+	 * Обход начинается с разных контейнеров, чтобы равные оценки распределялись по кругу.
+	 * @return null, если все контейнеры в карантине
+	 */
+	private Member select() {
+		int size = members.size();
+		int offset = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		long now = System.nanoTime();
+		Member best = null;
+		double bestScore = Double.MAX_VALUE;
+
+		for(int i = 0; i < size; i++) {
+			Member member = members.get((offset + i) % size);
+			double score;
+
+			synchronized (member) {
+				if(member.quarantinedUntil != 0) {
+					if(member.probing || now - member.quarantinedUntil < 0)
+						continue;
+					member.probing = true;
+					return member;
+				}
+				score = (member.inFlight.get() + 1) * member.averageNanos;
+			}
+			if(best == null || score < bestScore) {
+				best = member;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private void succeeded(Member member, long nanos) {
+		member.completed.incrementAndGet();
+
+		synchronized (member) {
+			if(member.averageNanos == 0)
+				member.averageNanos = nanos;
+			else
+				member.averageNanos += EWMA_WEIGHT * (nanos - member.averageNanos);
+
+			if(member.quarantinedUntil != 0)
+				LOGGER.info("Container {} is back in service", member.name);
+
+			member.quarantinedUntil = 0;
+			member.quarantine = 0;
+			member.probing = false;
+		}
+	}
+
+	/**
+	 * Подпись не дошла до провайдера: состояние контейнера не меняется,
+	 * пробная подпись будет выполнена следующим вызовом
+	 */
+	private void released(Member member) {
+		synchronized (member) {
+			member.probing = false;
+		}
+	}
+
+	private void failed(Member member) {
+		member.failed.incrementAndGet();
+
+		synchronized (member) {
+			member.quarantine = member.quarantine == 0
+					? baseQuarantine : Math.min(member.quarantine * 2, MAX_QUARANTINE);
+
+			long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(member.quarantine);
+			// 0 означает отсутствие карантина
+			member.quarantinedUntil = until == 0 ? 1 : until;
+			member.probing = false;
+		}
+		LOGGER.warn("Container {} quarantined for {} ms", member.name, member.quarantine);
+	}
+}
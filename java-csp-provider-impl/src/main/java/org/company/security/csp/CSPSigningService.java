@@ -0,0 +1,523 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Асинхронная подпись и проверка подписи на отдельном ограниченном пуле потоков.
+ * <p>
+ * Блокирующие вызовы JNI выполняются в потоках сервиса, вызывающий поток
+ * получает {@link Future} и, при необходимости, {@link Callback}.
+ * <p>
+ * Задачи подписи одного контейнера ставятся в свою очередь и выполняются
+ * по одной: токен все равно обрабатывает подписи последовательно, а другие
+ * контейнеры при этом не ждут. Проверки подписи выполняются параллельно
+ * на всех потоках. Размер каждой очереди ограничен, при переполнении задача
+ * отклоняется или вызывающий поток ждет освобождения места ({@link OverflowPolicy}).
+ * Задача, не начатая до истечения срока, завершается с {@link TimeoutException}.
+ */
+public class CSPSigningService implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CSPSigningService.class);
+
+	public static final String DEFAULT_SIGNATURE = "GOST3411withGOST3410EL";
+
+	private static final String VERIFY_LANE = "verify";
+
+	/**
+	 * Поведение при переполнении очереди
+	 */
+	public enum OverflowPolicy {
+		/** отклонить задачу с {@link RejectedExecutionException} */
+		REJECT,
+		/** ждать освобождения места в очереди, но не дольше срока задачи */
+		BLOCK
+	}
+
+	/**
+	 * Уведомление о завершении задачи. Вызывается в потоке сервиса.
+	 */
+	public interface Callback<T> {
+
+		void completed(T result);
+
+		/**
+		 * @param error исключение операции, {@link TimeoutException} при истечении срока
+		 *        или {@link CancellationException} при отмене
+		 */
+		void failed(Throwable error);
+	}
+
+	private static final ThreadLocal<Map<String, Signature>> SIGNATURES = new ThreadLocal<Map<String, Signature>>() {
+
+		@Override
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
+
+	private final ThreadPoolExecutor executor;
+	private final int threads;
+	private final int queueCapacity;
+	private final OverflowPolicy overflowPolicy;
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+	// очереди ключей без контейнера удаляются вместе с ключом
+	private final Map<PrivateKey, Lane> keyLanes = new WeakHashMap<PrivateKey, Lane>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param threads число потоков
+	 * @param queueCapacity максимальное число ожидающих задач в очереди одного контейнера
+	 * @param overflowPolicy поведение при переполнении очереди
+	 */
+	public CSPSigningService(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		if(queueCapacity <= 0)
+			throw new IllegalArgumentException("queueCapacity must be positive");
+
+		this.threads = threads;
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		this.executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ServiceThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Подписать данные алгоритмом {@value #DEFAULT_SIGNATURE}
+	 */
+	public Future<byte[]> sign(PrivateKey key, byte[] data,
+			long timeout, TimeUnit unit, Callback<byte[]> callback) {
+		return sign(DEFAULT_SIGNATURE, key, data, timeout, unit, callback);
+	}
+
+	/**
+	 * Подписать данные
+	 * @param algorithm алгоритм подписи
+	 * @param key закрытый ключ
+	 * @param data подписываемые данные
+	 * @param timeout срок начала выполнения, 0 - без срока
+	 * @param unit единица срока
+	 * @param callback уведомление о завершении или null
+	 * @throws RejectedExecutionException очередь контейнера переполнена или сервис закрыт
+	 */
+	public Future<byte[]> sign(final String algorithm, final PrivateKey key, final byte[] data,
+			long timeout, TimeUnit unit, Callback<byte[]> callback) {
+
+		Task<byte[]> task = new Task<byte[]>(new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() throws Exception {
+				return doSign(algorithm, key, data);
+			}
+		}, deadline(timeout, unit), callback);
+
+		getSignLane(key).submit(task);
+		return task;
+	}
+
+	/**
+	 * Проверить подпись алгоритмом {@value #DEFAULT_SIGNATURE}
+	 */
+	public Future<Boolean> verify(PublicKey key, byte[] data, byte[] signature,
+			long timeout, TimeUnit unit, Callback<Boolean> callback) {
+		return verify(DEFAULT_SIGNATURE, key, data, signature, timeout, unit, callback);
+	}
+
+	/**
+	 * Проверить подпись
+	 * @param algorithm алгоритм подписи
+	 * @param key открытый ключ
+	 * @param data подписанные данные
+	 * @param signature подпись
+	 * @param timeout срок начала выполнения, 0 - без срока
+	 * @param unit единица срока
+	 * @param callback уведомление о завершении или null
+	 * @throws RejectedExecutionException очередь проверки переполнена или сервис закрыт
+	 */
+	public Future<Boolean> verify(final String algorithm, final PublicKey key,
+			final byte[] data, final byte[] signature,
+			long timeout, TimeUnit unit, Callback<Boolean> callback) {
+
+		Task<Boolean> task = new Task<Boolean>(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return doVerify(algorithm, key, data, signature);
+			}
+		}, deadline(timeout, unit), callback);
+
+		getLane(VERIFY_LANE, threads).submit(task);
+		return task;
+	}
+
+	/**
+	 * Число задач, ожидающих выполнения, во всех очередях
+	 */
+	public int getQueuedCount() {
+		int count = 0;
+
+		for(Lane lane : getLanes())
+			count += lane.size();
+		return count;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Закрыть сервис: новые задачи отклоняются, ожидающие в очередях отменяются,
+	 * выполняющиеся завершаются.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		for(Lane lane : getLanes())
+			lane.cancelAll();
+		executor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Подпись в потоке сервиса
+	 */
+	protected byte[] doSign(String algorithm, PrivateKey key, byte[] data) throws GeneralSecurityException {
+		Signature signature = getSignature(algorithm);
+
+		signature.initSign(key);
+		signature.update(data);
+		return signature.sign();
+	}
+
+	/**
+	 * Проверка подписи в потоке сервиса
+	 */
+	protected boolean doVerify(String algorithm, PublicKey key, byte[] data, byte[] sign) throws GeneralSecurityException {
+		Signature signature = getSignature(algorithm);
+
+		signature.initVerify(key);
+		signature.update(data);
+		return signature.verify(sign);
+	}
+
+	/**
+	 * Объекты подписи не разделяются между потоками и создаются один раз на поток.
+	 * Используется также {@link CSPSigningRouter}.
+	 */
+	static Signature getSignature(String algorithm) throws GeneralSecurityException {
+		Map<String, Signature> map = SIGNATURES.get();
+		Signature signature = map.get(algorithm);
+
+		if(signature == null) {
+			signature = Signature.getInstance(algorithm, CSPProvider.CSP_PROVIDER);
+			map.put(algorithm, signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Очередь контейнера ключа. Ключи без контейнера получают свою очередь,
+	 * которая живет, пока жив объект ключа: значения дескрипторов после
+	 * освобождения ключа переиспользуются и очередь по ним не ищется.
+	 */
+	private Lane getSignLane(PrivateKey key) {
+		if(key instanceof CSPKey) {
+			CSPKey cspKey = (CSPKey) key;
+
+			if(cspKey.getContainer() != null)
+				return getLane(cspKey.getProviderId() + ":" + cspKey.getContainer(), 1);
+		}
+
+		synchronized (keyLanes) {
+			Lane lane = keyLanes.get(key);
+
+			if(lane == null) {
+				lane = new Lane("key:" + System.identityHashCode(key), 1);
+				keyLanes.put(key, lane);
+			}
+			return lane;
+		}
+	}
+
+	private List<Lane> getLanes() {
+		List<Lane> result = new ArrayList<Lane>(lanes.values());
+
+		synchronized (keyLanes) {
+			result.addAll(keyLanes.values());
+		}
+		return result;
+	}
+
+	private Lane getLane(String name, int maxRunning) {
+		Lane lane = lanes.get(name);
+
+		if(lane == null) {
+			Lane created = new Lane(name, maxRunning);
+			lane = lanes.putIfAbsent(name, created);
+
+			if(lane == null)
+				lane = created;
+		}
+		return lane;
+	}
+
+	private static long deadline(long timeout, TimeUnit unit) {
+		if(timeout <= 0)
+			return 0;
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// 0 означает отсутствие срока
+		return deadline == 0 ? 1 : deadline;
+	}
+
+	/**
+	 * Задача с сроком выполнения и уведомлением о завершении
+	 */
+	private static final class Task<T> extends FutureTask<T> {
+		private final long deadline;
+		private final Callback<T> callback;
+		private volatile Lane lane;
+
+		Task(Callable<T> callable, long deadline, Callback<T> callback) {
+			super(callable);
+			this.deadline = deadline;
+			this.callback = callback;
+		}
+
+		boolean isExpired() {
+			return deadline != 0 && System.nanoTime() - deadline >= 0;
+		}
+
+		long remainingMillis() {
+			if(deadline == 0)
+				return 0;
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+		}
+
+		@Override
+		public void run() {
+			if(isExpired()) {
+				setException(new TimeoutException("Deadline expired before the task was started"));
+				return;
+			}
+			super.run();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			Lane lane = this.lane;
+
+			// место в очереди освобождается сразу
+			if(result && lane != null)
+				lane.remove(this);
+			return result;
+		}
+
+		@Override
+		protected void done() {
+			if(callback == null)
+				return;
+
+			try {
+				if(isCancelled()) {
+					callback.failed(new CancellationException());
+				}
+				else {
+					try {
+						callback.completed(get());
+					}
+					catch(ExecutionException e) {
+						callback.failed(e.getCause());
+					}
+				}
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch(RuntimeException e) {
+				LOGGER.error("Error in signing callback", e);
+			}
+		}
+	}
+
+	/**
+	 * Очередь задач с ограничением числа одновременно выполняемых
+	 */
+	private final class Lane implements Runnable {
+		private final String name;
+		private final int maxRunning;
+		private final Deque<Task<?>> queue = new ArrayDeque<Task<?>>();
+		private int running = 0;
+
+		Lane(String name, int maxRunning) {
+			this.name = name;
+			this.maxRunning = maxRunning;
+		}
+
+		void submit(Task<?> task) {
+			boolean schedule = false;
+
+			synchronized (this) {
+				while(queue.size() >= queueCapacity && !closed) {
+					if(overflowPolicy == OverflowPolicy.REJECT)
+						throw new RejectedExecutionException("Queue " + name + " is full");
+
+					if(task.isExpired())
+						throw new RejectedExecutionException("Deadline expired while waiting for queue " + name);
+					try {
+						wait(task.remainingMillis());
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted while waiting for queue " + name);
+					}
+				}
+				if(closed)
+					throw new RejectedExecutionException("Signing service is closed");
+
+				task.lane = this;
+				queue.addLast(task);
+
+				if(running < maxRunning) {
+					running++;
+					schedule = true;
+				}
+			}
+			if(schedule)
+				schedule();
+		}
+
+		/**
+		 * Выполнить одну задачу и, если очередь не пуста, поставить следующую в пул.
+		 * Задачи разных очередей чередуются в потоках пула.
+		 */
+		@Override
+		public void run() {
+			Task<?> task;
+
+			synchronized (this) {
+				task = queue.pollFirst();
+
+				if(task == null) {
+					running--;
+					return;
+				}
+				notifyAll();
+			}
+
+			try {
+				task.run();
+			}
+			finally {
+				boolean more;
+
+				synchronized (this) {
+					more = !queue.isEmpty();
+					if(!more)
+						running--;
+				}
+				if(more)
+					schedule();
+			}
+		}
+
+		private void schedule() {
+			try {
+				executor.execute(this);
+			}
+			catch(RejectedExecutionException e) {
+				synchronized (this) {
+					running--;
+				}
+				cancelAll();
+			}
+		}
+
+		synchronized void remove(Task<?> task) {
+			if(queue.remove(task))
+				notifyAll();
+		}
+
+		synchronized int size() {
+			return queue.size();
+		}
+
+		void cancelAll() {
+			List<Task<?>> tasks;
+
+			synchronized (this) {
+				tasks = new ArrayList<Task<?>>(queue);
+				queue.clear();
+				notifyAll();
+			}
+
+			for(Task<?> task : tasks)
+				task.cancel(false);
+		}
+	}
+
+	private static final class ServiceThreadFactory implements ThreadFactory {
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,
+					"CSP signing-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
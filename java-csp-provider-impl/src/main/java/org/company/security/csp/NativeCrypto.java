@@ -16,6 +16,7 @@
  */
 package org.company.security.csp;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
@@ -23,7 +24,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.ProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Collection;
 
 
 public class NativeCrypto {
@@ -42,19 +42,18 @@ public class NativeCrypto {
 	public static native X509Certificate[] loadCertificateChain(long hCryptProv, long hCertStore, byte[] calcHashPropId);
 
 	/**
-	 * Загрузить сетрификаты из хранилища.
+	 * Загрузить записи хранилища за один вызов без обращений к Java
+	 * на каждый сертификат. Формат результата разбирает {@link CSPKeyStoreReader}.
 	 * 
-	 * @param keyStore заполняемое хранилище
 	 * @param name название хранилища
-	 * @param entries заполняемый список ключей
 	 * @param system признак использования системного хранилища
 	 * @param providerId идентификатор провайдера
+	 * @param lazyKeys не открывать контейнеры закрытых ключей
+	 * @return упакованные записи
 	 * @throws KeyStoreException
 	 */
-	public static native void loadKeysOrCertificateChains(CSPKeyStore keyStore, String name,
-			Collection<CSPKeyStore.KeyEntry> entries, 
-			boolean system, int providerId) 
-					throws ProviderException, KeyStoreException;	
+	public static native byte[] loadKeyStoreEntries(String name, boolean system, int providerId, boolean lazyKeys)
+			throws ProviderException, KeyStoreException;
 
 	public static native void storeCertificate(String name, String alias,
 			byte[] encoding, int encodingLength, 
@@ -108,6 +107,27 @@ public class NativeCrypto {
 	public static native String getContainerName(long hCryptoProv)
 			throws KeyStoreException;
 
+	/**
+	 * Открыть контейнер закрытого ключа и получить его ключ.
+	 * Результат передается в {@link CSPContainerContext#initContext(long, long, int)}
+	 * @param context заполняемый контекст контейнера
+	 * @param providerId идентификатор провайдера
+	 * @param container название контейнера закрытого ключа
+	 */
+	public static native void containerAcquire(CSPContainerContext context, int providerId, String container)
+			throws ProviderException, InvalidKeyException;
+
+	/**
+	 * Открыть контейнер закрытого ключа и получить ключ заданного типа.
+	 * Результат передается в {@link CSPContainerContext#initContext(long, long, int)}
+	 * @param context заполняемый контекст контейнера
+	 * @param providerId идентификатор провайдера
+	 * @param container название контейнера закрытого ключа
+	 * @param keySpec AT_SIGNATURE или AT_KEYEXCHANGE
+	 */
+	public static native void containerAcquireKey(CSPContainerContext context, int providerId, String container,
+			int keySpec) throws ProviderException, InvalidKeyException;
+
 	public static native byte[] getPublicKeyEncode(long hCryptoProvider, long hCryptoKey);
 
 	//
@@ -128,24 +148,129 @@ public class NativeCrypto {
 			boolean doEncrypt, boolean doFinal, int paddingLength)
 					throws InvalidKeyException;
 
+	/**
+	 * шифровать/расшифровать данные буфера в массив вызывающего без выделения памяти
+	 * @param output массив результата
+	 * @param outputOffset смещение результата
+	 * @param outputSize доступный размер результата
+	 * @return размер результата
+	 */
+	public static native int encryptDecryptTo(byte[] data, int dataOffset, int dataSize, long hCryptoKey,
+			boolean doEncrypt, boolean doFinal, int paddingLength,
+			byte[] output, int outputOffset, int outputSize)
+					throws InvalidKeyException;
+
+	/**
+	 * Начать потоковую операцию шифрования на дубликате ключа
+	 * @param hCryptoProvider native HCRYPTPROV ключа, на него берется ссылка, 0 - без ссылки
+	 * @param hCryptoKey native HCRYPTKEY
+	 * @param mode режим шифрования KP_MODE, 0 - режим ключа
+	 * @param iv синхропосылка или null
+	 * @return native HCRYPTKEY операции, освобождается через {@link #keyDestroy(long, long)}
+	 */
+	public static native long cipherInit(long hCryptoProvider, long hCryptoKey, int mode, byte[] iv)
+			throws InvalidKeyException;
+
+	/**
+	 * Синхропосылка ключа операции
+	 */
+	public static native byte[] cipherGetIV(long hCryptoKey)
+			throws InvalidKeyException;
+
+	/**
+	 * Зашифровать/расшифровать часть данных потоковой операции.
+	 * Длина данных кратна размеру блока, кроме последней части при doFinal.
+	 * @return размер результата, равный размеру данных
+	 */
+	public static native int cipherUpdate(long hCryptoKey, boolean doEncrypt, boolean doFinal,
+			byte[] input, int inputOffset, int inputLength,
+			byte[] output, int outputOffset);
+
+	/**
+	 * Зашифровать/расшифровать часть данных потоковой операции из direct буфера в direct буфер
+	 */
+	public static native int cipherUpdateDirect(long hCryptoKey, boolean doEncrypt, boolean doFinal,
+			ByteBuffer input, int inputOffset, int inputLength,
+			ByteBuffer output, int outputOffset);
+
+	/**
+	 * Создать сессионный ключ
+	 * @param algorithm алгоритм ключа
+	 */
+	public static native CSPSecretKey secretKeyGenerate(String algorithm)
+			throws NoSuchAlgorithmException;
+
 	//
 	// Работа с подписями
 	//
 
 	/**
-	 * Подписать данные
+	 * Подписать данные на уже открытом контексте контейнера.
+	 * Контекст и ключ не закрываются.
 	 * @param noHashOID признак не использования хеш функции 
 	 * @param hash значение ранее расчитанной хеш функции
 	 * @param hashSize длина значения хеш функции
 	 * @param messageDigestAlgorithm название алгоритма хеш функции
-	 * @param signName название алгоритма подписи
 	 * @param hCryptProvider native HCRYPTPROV
 	 * @param hCryptKey native HCRYPTKEY
-	 * @return 
+	 * @param keySpec AT_SIGNATURE или AT_KEYEXCHANGE, 0 - определить по алгоритму ключа
+	 * @return подпись в big endian
 	 */
 	public static native byte[] signHash(CSPSignature cspSignature, boolean noHashOID, byte[] hash, int hashSize,
 			String messageDigestAlgorithm,
-			long hCryptoProvider, long hCryptoKey);
+			long hCryptoProvider, long hCryptoKey, int keySpec);
+
+	/**
+	 * Подписать данные на уже открытом контексте контейнера с записью подписи
+	 * в big endian в массив вызывающего
+	 * @return длина подписи
+	 */
+	public static native int signHashTo(CSPSignature cspSignature, boolean noHashOID, byte[] hash, int hashSize,
+			String messageDigestAlgorithm,
+			long hCryptoProvider, long hCryptoKey, int keySpec,
+			byte[] out, int outOffset, int outLength);
+
+	/**
+	 * Хешировать и подписать короткое сообщение одним вызовом.
+	 * Контекст и ключ не закрываются.
+	 * @param data сообщение
+	 * @param offset смещение сообщения
+	 * @param length длина сообщения
+	 * @param messageDigestAlgorithm название алгоритма хеш функции
+	 * @param hCryptProvider native HCRYPTPROV
+	 * @param hCryptKey native HCRYPTKEY
+	 * @param keySpec AT_SIGNATURE или AT_KEYEXCHANGE, 0 - определить по алгоритму ключа
+	 * @return подпись в big endian
+	 */
+	public static native byte[] hashAndSign(CSPSignature cspSignature, byte[] data, int offset, int length,
+			String messageDigestAlgorithm,
+			long hCryptoProvider, long hCryptoKey, int keySpec);
+
+	/**
+	 * Хешировать и подписать короткое сообщение с записью подписи
+	 * в big endian в массив вызывающего
+	 * @return длина подписи
+	 */
+	public static native int hashAndSignTo(CSPSignature cspSignature, byte[] data, int offset, int length,
+			String messageDigestAlgorithm,
+			long hCryptoProvider, long hCryptoKey, int keySpec,
+			byte[] out, int outOffset, int outLength);
+
+	/**
+	 * Подписать пакет значений хеш функции на одном открытом контексте.
+	 * Ошибка подписи элемента не прерывает обработку остальных.
+	 * @param hashes значения хеш функции
+	 * @param hashAlgorithm алгоритм хеш функции
+	 * @param hCryptoProvider native HCRYPTPROV
+	 * @param hCryptoKey native HCRYPTKEY
+	 * @param keySpec AT_SIGNATURE или AT_KEYEXCHANGE, 0 - определить по алгоритму ключа
+	 * @param signatures подписи в big endian, null для элементов с ошибкой
+	 * @param errors коды ошибок CryptoAPI, 0 - подпись сформирована
+	 */
+	public static native void signHashes(byte[][] hashes, String hashAlgorithm,
+			long hCryptoProvider, long hCryptoKey, int keySpec,
+			byte[][] signatures, int[] errors)
+					throws InvalidKeyException;
 
 	public static native byte[] sign(CSPSignature cspSignature, boolean noHashOID, byte[] hash, int hashSize,
 			String messageDigestAlgorithm, int providerId, String context);
@@ -156,7 +281,7 @@ public class NativeCrypto {
 	 * @param hashSize длина значения хеш функции
 	 * @param messageDigestAlgorithm название алгоритма хеш функции
 	 * @param signName название алгоритма подписи
-	 * @param signature значение подписи
+	 * @param signature значение подписи в big endian
 	 * @param signatureSize длина значения подписи
 	 * @param hCryptProvider native HCRYPTPROV
 	 * @param hCryptKey native HCRYPTKEY
@@ -168,20 +293,69 @@ public class NativeCrypto {
 			String messageDigestAlgorithm, byte[] signature,
 			int signatureSize, long hCryptoProvider, long hCryptoKey);
 
+	/**
+	 * Проверить пакет подписей одним вызовом. Для каждого элемента задаются
+	 * свои дескрипторы ключа, один ключ может использоваться многими элементами.
+	 * @param hashes значения хеш функции
+	 * @param hashAlgorithm алгоритм хеш функции
+	 * @param signatures подписи в big endian
+	 * @param hCryptoProviders native HCRYPTPROV для каждого элемента
+	 * @param hCryptoKeys native HCRYPTKEY для каждого элемента, 0 - элемент не проверяется
+	 * @param results результаты проверки
+	 */
+	public static native void verifyHashes(byte[][] hashes, String hashAlgorithm,
+			byte[][] signatures, long[] hCryptoProviders, long[] hCryptoKeys,
+			boolean[] results);
+
 	public static native void digestInit(CSPDigest cspDigest, String algorithm) 
 			throws DigestException, ProviderException, NoSuchAlgorithmException;
 
 	public static native void digestDestroy(long hCryptoProvider, long hCryptoHash);
 
+	/**
+	 * Создать новый хеш на уже открытом контексте провайдера
+	 * @param hCryptoProvider native HCRYPTPROV
+	 * @param algorithm алгоритм хеш функции
+	 * @return native HCRYPTHASH
+	 */
+	public static native long digestCreateHash(long hCryptoProvider, String algorithm)
+			throws DigestException;
+
+	/**
+	 * Копировать состояние хеша (CryptDuplicateHash). Счетчик ссылок
+	 * контекста провайдера увеличивается, копия освобождает его сама.
+	 * @param hCryptoProvider native HCRYPTPROV
+	 * @param hCryptoHash native HCRYPTHASH
+	 * @return native HCRYPTHASH копии
+	 */
+	public static native long digestDuplicate(long hCryptoProvider, long hCryptoHash)
+			throws DigestException;
+
 	public static native void digestEngineUpdateByte(long hCryptoHash, byte input)
 			throws DigestException;
 
 	public static native void digestEngineUpdateBytes(long hCryptoHash, byte[] input, int offset, int len)
 			throws DigestException;
 
+	/**
+	 * Хешировать данные direct буфера по адресу GetDirectBufferAddress без копирования
+	 * @param buffer direct буфер
+	 * @param offset смещение от начала буфера
+	 * @param len длина данных
+	 */
+	public static native void digestEngineUpdateDirect(long hCryptoHash, ByteBuffer buffer, int offset, int len)
+			throws DigestException;
+
 	public static native byte[] digestEngineDigest(long hCryptoHash)
 			throws DigestException;
 
+	/**
+	 * Получить значение хеша в массив вызывающего
+	 * @return размер значения хеша
+	 */
+	public static native int digestEngineDigestTo(long hCryptoHash, byte[] output, int offset, int len)
+			throws DigestException;
+
 	/**
 	 * Установить параметр для хеш функции. MS CryptoAPI функция CryptSetHashParam.
 	 * @param hCryptoHash
@@ -192,6 +366,37 @@ public class NativeCrypto {
 	 */
 	public static native void digestSetParameter(long hCryptoHash, int param, byte[] bytes, int offset, int len);
 
+	/**
+	 * Создать хеш на ключе для вычисления имитовставки (CryptCreateHash с hKey).
+	 * На контекст провайдера берется ссылка, она освобождается через
+	 * {@link #digestDestroy(long, long)} вместе с хешем.
+	 * @param hCryptoProvider native HCRYPTPROV ключа
+	 * @param hCryptoKey native HCRYPTKEY
+	 * @param algorithm MAC_GOST28147 или HMAC_GOSTR3411
+	 * @return native HCRYPTHASH
+	 */
+	public static native long macCreateHash(long hCryptoProvider, long hCryptoKey, String algorithm)
+			throws InvalidKeyException, NoSuchAlgorithmException;
+
+	/**
+	 * Копировать состояние хеша на ключе. Копия берет свою ссылку на контекст провайдера.
+	 * @param hCryptoProvider native HCRYPTPROV ключа
+	 * @param hCryptoHash native HCRYPTHASH
+	 * @return native HCRYPTHASH копии
+	 */
+	public static native long macDuplicate(long hCryptoProvider, long hCryptoHash)
+			throws DigestException;
+
+	/**
+	 * Копировать ключ (CryptDuplicateKey). Счетчик ссылок контекста
+	 * провайдера увеличивается, копия освобождает его сама через keyDestroy.
+	 * @param hCryptoProvider native HCRYPTPROV ключа
+	 * @param hCryptoKey native HCRYPTKEY
+	 * @return native HCRYPTKEY копии
+	 */
+	public static native long keyDuplicate(long hCryptoProvider, long hCryptoKey)
+			throws InvalidKeyException;
+
 	/**
 	 * Создать открытый ключ по идетификатору алгоритма и содержимому ключа
 	 * @param keyEncoded содержимое ключа
@@ -211,4 +416,11 @@ public class NativeCrypto {
 	 */
 	public static native CSPPublicKey generatePublic(byte[] keyEncoded, int length);
 
+	/**
+	 * Алгоритмы провайдеров и соответствующие им типы провайдеров.
+	 * Таблица заполняется один раз при первом обращении и используется
+	 * при выборе провайдера для хеширования и импорта открытых ключей.
+	 */
+	public static native CSPAlgorithmInfo[] getResolvedAlgorithms() throws ProviderException;
+
 }
@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
+
+/**
+ * Общие данные тестов без нативной библиотеки: сертификаты одного издателя,
+ * ключи и наследники классов провайдера с подмененными нативными вызовами
+ */
+@SuppressWarnings("deprecation")
+final class CSPTestFixtures {
+	static final X500Principal ISSUER = new X500Principal("CN=Test CA, O=Company");
+
+	private static KeyPair keyPair;
+
+	private CSPTestFixtures() {
+	}
+
+	/**
+	 * Пара ключей RSA, общая для всех сертификатов
+	 */
+	static synchronized KeyPair keyPair() throws GeneralSecurityException {
+		if(keyPair == null) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			keyPair = generator.generateKeyPair();
+		}
+		return keyPair;
+	}
+
+	/**
+	 * Сертификат издателя {@link #ISSUER} с субъектом "CN=Test serial"
+	 *
+	 * @param subjectKeyId добавить расширение SubjectKeyIdentifier
+	 */
+	static X509Certificate certificate(long serial, boolean subjectKeyId) throws Exception {
+		KeyPair keyPair = keyPair();
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+
+		generator.setSerialNumber(BigInteger.valueOf(serial));
+		generator.setIssuerDN(ISSUER);
+		generator.setSubjectDN(new X500Principal("CN=Test " + serial));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 60000));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000));
+		generator.setPublicKey(keyPair.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		if(subjectKeyId)
+			generator.addExtension(X509Extensions.SubjectKeyIdentifier, false,
+					new SubjectKeyIdentifierStructure(keyPair.getPublic()));
+		return generator.generate(keyPair.getPrivate());
+	}
+
+	/**
+	 * Запись хранилища из одних сертификатов
+	 */
+	static CSPKeyStoreReader.Record record(byte[]... certificates) {
+		return new CSPKeyStoreReader.Record(CSPKeyStoreReader.TYPE_CERTIFICATES,
+				0, 0, 0, 0, 0, null, null, certificates);
+	}
+
+	/**
+	 * Закрытый ключ без дескрипторов, различается по имени
+	 */
+	@SuppressWarnings("serial")
+	static class TestKey implements PrivateKey {
+		final String name;
+
+		TestKey(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return "GOST3410EL";
+		}
+
+		@Override
+		public String getFormat() {
+			return null;
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return null;
+		}
+	}
+
+	/**
+	 * Открытый ключ без нативных дескрипторов
+	 */
+	static class TestPublicKey extends CSPPublicKey {
+		private static final long serialVersionUID = 1L;
+		boolean destroyed = false;
+
+		TestPublicKey(long handle) {
+			// фиктивные дескрипторы не регистрируются для освобождения
+			super(0, 0, 512);
+			hCryptKey = handle;
+			hCryptProvider = handle;
+		}
+
+		@Override
+		public void destroy() {
+			destroyed = true;
+			hCryptKey = 0;
+			hCryptProvider = 0;
+		}
+	}
+
+	/**
+	 * Пул без нативных вызовов: контексты получают фиктивные дескрипторы
+	 */
+	static class TestPool extends CSPContainerPool {
+		private long handle = 0;
+		final List<CSPContainerContext> created = new ArrayList<CSPContainerContext>();
+		final List<CSPContainerContext> destroyed = new ArrayList<CSPContainerContext>();
+
+		TestPool(int maxIdle, long idleTimeout) {
+			super(maxIdle, idleTimeout);
+		}
+
+		@Override
+		protected CSPContainerContext createContext(int providerId, String container) {
+			CSPContainerContext context = new CSPContainerContext(providerId, container);
+
+			handle++;
+			context.initContext(handle, handle, 1);
+			created.add(context);
+			return context;
+		}
+
+		@Override
+		protected void destroyContext(CSPContainerContext context) {
+			destroyed.add(context);
+		}
+	}
+
+	/**
+	 * Кеш без нативных вызовов: ключи и их копии получают новые фиктивные дескрипторы
+	 */
+	static class TestCache extends CSPPublicKeyCache {
+		private long handle = 0;
+
+		TestCache(int maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		protected CSPPublicKey importPublicKey(byte[] encoded) {
+			return new TestPublicKey(++handle);
+		}
+
+		@Override
+		protected CSPPublicKey duplicatePublicKey(CSPPublicKey publicKey) {
+			return new TestPublicKey(++handle);
+		}
+	}
+
+	/**
+	 * Маршрутизатор без нативных вызовов: подпись возвращает имя ключа
+	 */
+	static class TestRouter extends CSPSigningRouter {
+		final Set<String> broken = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		TestRouter(Map<String, PrivateKey> keys, long quarantine) {
+			super(keys, quarantine);
+		}
+
+		@Override
+		protected byte[] doSign(String algorithm, PrivateKey key, byte[] data) throws GeneralSecurityException {
+			String name = ((TestKey) key).name;
+
+			if(!algorithm.equals(CSPSigningService.DEFAULT_SIGNATURE))
+				throw new NoSuchAlgorithmException(algorithm);
+			if(data == null)
+				throw new IllegalArgumentException("No data");
+
+			if(broken.contains(name))
+				throw new SignatureException("Token " + name + " removed");
+			return name.getBytes();
+		}
+	}
+
+	/**
+	 * Хранилище без нативных вызовов: записи меняются только в памяти
+	 */
+	static class TestKeyStore extends CSPKeyStore {
+
+		TestKeyStore() {
+			super("MY");
+		}
+
+		@Override
+		protected void storeCertificate(String name, String alias, byte[] encoding, int encodingLength,
+				long hCryptProvider, long hCryptKey) {
+		}
+
+		@Override
+		protected void removeCertificate(String name, String alias, byte[] encoding, int encodingLength) {
+		}
+	}
+
+	/**
+	 * Сервис без нативных вызовов: подпись ждет разрешения теста
+	 */
+	static class TestService extends CSPSigningService {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		TestService(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+			super(threads, queueCapacity, overflowPolicy);
+		}
+
+		@Override
+		protected byte[] doSign(String algorithm, PrivateKey key, byte[] data) {
+			int current = running.incrementAndGet();
+
+			synchronized (maxRunning) {
+				if(current > maxRunning.get())
+					maxRunning.set(current);
+			}
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				running.decrementAndGet();
+			}
+			return data;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.company.security.csp.CSPTestFixtures.ISSUER;
+import static org.company.security.csp.CSPTestFixtures.certificate;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestCSPCertificateIndex {
+
+	@Test
+	public void testLookup() throws Exception {
+		CSPCertificateIndex index = new CSPCertificateIndex();
+		X509Certificate first = certificate(1, true);
+		X509Certificate second = certificate(2, false);
+
+		index.add("first", first);
+		index.add("second", second);
+
+		assertEquals("first", index.getAlias(first));
+		assertEquals("second", index.getAlias(second));
+		assertEquals("first", index.getAlias(ISSUER, BigInteger.ONE));
+		assertEquals("second", index.getAlias(ISSUER, BigInteger.valueOf(2)));
+		assertNull(index.getAlias(ISSUER, BigInteger.valueOf(3)));
+
+		byte[] subjectKeyId = CSPCertificateIndex.subjectKeyId(first).array();
+		assertEquals("first", index.getAliasBySubjectKeyId(subjectKeyId));
+		assertNull(CSPCertificateIndex.subjectKeyId(second));
+		assertNull(index.getAlias(certificate(3, false)));
+	}
+
+	@Test
+	public void testFirstEntryWins() throws Exception {
+		CSPCertificateIndex index = new CSPCertificateIndex();
+		X509Certificate certificate = certificate(1, true);
+
+		index.add("first", certificate);
+		index.add("copy", certificate);
+		assertEquals(1, index.size());
+		assertEquals("first", index.getAlias(certificate));
+
+		// после удаления первой записи на ее место встает копия
+		index.remove("first");
+		assertNull(index.getAlias(certificate));
+		index.add("copy", certificate);
+		assertEquals("copy", index.getAlias(certificate));
+		assertEquals("copy", index.getAlias(ISSUER, BigInteger.ONE));
+	}
+
+	@Test
+	public void testRemoveAndClear() throws Exception {
+		CSPCertificateIndex index = new CSPCertificateIndex();
+		X509Certificate first = certificate(1, true);
+		X509Certificate second = certificate(2, true);
+
+		index.add("first", first);
+		index.add("second", second);
+		index.remove("second");
+
+		assertNull(index.getAlias(second));
+		assertNull(index.getAlias(ISSUER, BigInteger.valueOf(2)));
+		assertEquals("first", index.getAlias(first));
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertNull(index.getAlias(first));
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		CSPCertificateIndex index = new CSPCertificateIndex();
+		X509Certificate first = certificate(1, true);
+		X509Certificate second = certificate(2, true);
+
+		index.add("first", first);
+
+		CSPCertificateIndex copy = new CSPCertificateIndex(index);
+		copy.add("second", second);
+		copy.remove("first");
+
+		// исходный индекс не меняется
+		assertEquals("first", index.getAlias(first));
+		assertNull(index.getAlias(second));
+		assertNull(copy.getAlias(first));
+		assertEquals("second", copy.getAlias(second));
+	}
+
+	@Test
+	public void testConcurrentSha1() throws Exception {
+		final byte[] data = new byte[64 * 1024];
+		final byte[] expected = MessageDigest.getInstance("SHA-1").digest(data);
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for(int j = 0; j < 200; j++) {
+						if(!Arrays.equals(expected, CSPCertificateIndex.sha1(data)))
+							failures.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+
+		assertEquals(0, failures.get());
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.company.security.csp.CSPTestFixtures.certificate;
+import static org.company.security.csp.CSPTestFixtures.record;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCSPCertificateParser {
+	private static final int RECORDS = 200;
+
+	private static List<CSPKeyStoreReader.Record> records;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		records = new ArrayList<CSPKeyStoreReader.Record>();
+
+		for (int i = 0; i < RECORDS; i++) {
+			byte[] encoded = certificate(i + 1, false).getEncoded();
+
+			// у каждой десятой записи второй сертификат поврежден
+			byte[][] certificates = i % 10 == 0
+					? new byte[][] { encoded, new byte[] { 0x30, 0x03, 0x02, 0x01 } }
+					: new byte[][] { encoded };
+
+			records.add(record(certificates));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(CSPCertificateParser.THREADS_PROP);
+	}
+
+	@Test
+	public void testParallelOrder() throws Exception {
+		System.setProperty(CSPCertificateParser.THREADS_PROP, "4");
+		assertChains(CSPCertificateParser.parseChains(records));
+	}
+
+	@Test
+	public void testSerial() throws Exception {
+		System.setProperty(CSPCertificateParser.THREADS_PROP, "1");
+		assertChains(CSPCertificateParser.parseChains(records));
+	}
+
+	@Test
+	public void testSmallStore() throws Exception {
+		System.setProperty(CSPCertificateParser.THREADS_PROP, "4");
+		assertChains(CSPCertificateParser.parseChains(records.subList(0, 10)));
+	}
+
+	private static void assertChains(X509Certificate[][] chains) {
+		for (int i = 0; i < chains.length; i++) {
+			assertEquals(1, chains[i].length);
+			assertEquals(BigInteger.valueOf(i + 1), chains[i][0].getSerialNumber());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.company.security.csp.CSPTestFixtures.ISSUER;
+import static org.company.security.csp.CSPTestFixtures.certificate;
+import static org.company.security.csp.CSPTestFixtures.record;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCSPCertificateSlab {
+	private static X509Certificate[] certificates;
+	private static List<CSPKeyStoreReader.Record> records;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		certificates = new X509Certificate[3];
+
+		for (int i = 0; i < certificates.length; i++) {
+			certificates[i] = certificate(i + 1, i == 0);
+		}
+
+		// цепочка из двух сертификатов и одиночный сертификат
+		records = new ArrayList<CSPKeyStoreReader.Record>();
+		records.add(record(certificates[0].getEncoded(), certificates[1].getEncoded()));
+		records.add(record(certificates[2].getEncoded()));
+	}
+
+	@Test
+	public void testEncodings() throws Exception {
+		CSPCertificateSlab slab = new CSPCertificateSlab(records);
+
+		assertEquals(3, slab.size());
+
+		for (int i = 0; i < certificates.length; i++) {
+			assertArrayEquals(certificates[i].getEncoded(), slab.getEncoded(i));
+			assertEquals(CSPCertificateIndex.fingerprint(certificates[i]), slab.getFingerprint(i));
+		}
+	}
+
+	@Test
+	public void testLazyChain() throws Exception {
+		CSPCertificateSlab slab = new CSPCertificateSlab(records);
+		CSPCertificateSlab.Chain chain = slab.chain(0, 2);
+
+		// сведения для индексов берутся без разбора цепочки
+		assertFalse(chain.isMaterialized());
+		assertEquals(ISSUER, chain.issuer);
+		assertEquals(BigInteger.ONE, chain.serialNumber);
+		assertEquals(CSPCertificateIndex.subjectKeyId(certificates[0]), chain.subjectKeyId);
+		assertNull(slab.chain(2, 1).subjectKeyId);
+		assertFalse(chain.isMaterialized());
+
+		X509Certificate[] parsed = chain.getCertificates();
+
+		assertTrue(chain.isMaterialized());
+		assertEquals(Arrays.asList(certificates[0], certificates[1]), Arrays.asList(parsed));
+		assertSame(parsed, chain.getCertificates());
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		CSPCertificateSlab slab = new CSPCertificateSlab(records);
+		CSPCertificateIndex index = new CSPCertificateIndex();
+
+		index.add("first", slab.chain(0, 2));
+		index.add("second", slab.chain(2, 1));
+		// повторное добавление того же сертификата не меняет индекс
+		index.add("copy", certificates[0]);
+
+		assertEquals(2, index.size());
+		assertEquals("first", index.getAlias(certificates[0]));
+		assertEquals("second", index.getAlias(certificates[2]));
+		assertEquals("first", index.getAlias(ISSUER, BigInteger.ONE));
+		assertEquals("second", index.getAlias(ISSUER, BigInteger.valueOf(3)));
+		assertEquals("first", index.getAliasBySubjectKeyId(
+				CSPCertificateIndex.subjectKeyId(certificates[0]).array()));
+		assertNull(index.getAlias(certificates[1]));
+	}
+
+	@Test
+	public void testEntryId() throws Exception {
+		CSPCertificateSlab slab = new CSPCertificateSlab(records);
+		ByteBuffer fingerprint = slab.getFingerprint(2);
+
+		assertEquals(CSPKeyStoreChanges.entryId(CSPCertificateIndex.fingerprint(certificates[2]), true),
+				CSPKeyStoreChanges.entryId(fingerprint, true));
+		// отпечаток в общем массиве не меняется
+		assertEquals(slab.getFingerprint(2), fingerprint);
+	}
+
+	@Test(expected = CertificateException.class)
+	public void testMalformedLeaf() throws Exception {
+		List<CSPKeyStoreReader.Record> malformed = new ArrayList<CSPKeyStoreReader.Record>();
+
+		malformed.add(record(new byte[] { 0x30, 0x03, 0x02, 0x01, 0x01 }));
+		new CSPCertificateSlab(malformed).chain(0, 1);
+	}
+}
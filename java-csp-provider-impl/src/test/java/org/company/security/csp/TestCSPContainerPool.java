@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import org.company.security.csp.CSPTestFixtures.TestPool;
+import org.junit.Test;
+
+public class TestCSPContainerPool {
+
+	@Test
+	public void test_01_reuse() throws Exception {
+		TestPool pool = new TestPool(2, 60000);
+
+		CSPContainerContext first = pool.borrow(75, "key1");
+		pool.release(first);
+		CSPContainerContext second = pool.borrow(75, "key1");
+
+		assertSame("Контекст должен браться из пула", first, second);
+		assertEquals("Контейнер должен открываться один раз", 1, pool.created.size());
+		pool.release(second);
+	}
+
+	@Test
+	public void test_02_separate_containers() throws Exception {
+		TestPool pool = new TestPool(2, 60000);
+
+		CSPContainerContext key1 = pool.borrow(75, "key1");
+		pool.release(key1);
+		CSPContainerContext key2 = pool.borrow(75, "key2");
+		CSPContainerContext other = pool.borrow(80, "key1");
+
+		assertNotSame(key1, key2);
+		assertNotSame(key1, other);
+		assertEquals(3, pool.created.size());
+	}
+
+	@Test
+	public void test_03_max_idle() throws Exception {
+		TestPool pool = new TestPool(2, 60000);
+
+		CSPContainerContext c1 = pool.borrow(75, "key1");
+		CSPContainerContext c2 = pool.borrow(75, "key1");
+		CSPContainerContext c3 = pool.borrow(75, "key1");
+		pool.release(c1);
+		pool.release(c2);
+		pool.release(c3);
+
+		assertEquals("В пуле не больше maxIdle контекстов", 2, pool.getIdleCount());
+		assertEquals("Лишний контекст должен быть закрыт", 1, pool.destroyed.size());
+		assertSame("Закрывается самый старый контекст", c1, pool.destroyed.get(0));
+	}
+
+	@Test
+	public void test_04_invalidate_and_close() throws Exception {
+		TestPool pool = new TestPool(2, 60000);
+
+		CSPContainerContext failed = pool.borrow(75, "key1");
+		pool.invalidate(failed);
+		assertEquals(0, pool.getIdleCount());
+		assertTrue(pool.destroyed.contains(failed));
+
+		CSPContainerContext idle = pool.borrow(75, "key1");
+		CSPContainerContext borrowed = pool.borrow(75, "key1");
+		pool.release(idle);
+		pool.close();
+
+		assertTrue(pool.isClosed());
+		assertTrue("Простаивающий контекст закрывается сразу", pool.destroyed.contains(idle));
+		pool.release(borrowed);
+		assertTrue("Выданный контекст закрывается при возврате", pool.destroyed.contains(borrowed));
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void test_05_idle_timeout() throws Exception {
+		TestPool pool = new TestPool(2, 0);
+
+		CSPContainerContext context = pool.borrow(75, "key1");
+		pool.release(context);
+		Thread.sleep(5);
+
+		assertEquals(1, pool.evictIdle());
+		assertEquals(0, pool.getIdleCount());
+		assertTrue(pool.destroyed.contains(context));
+	}
+}
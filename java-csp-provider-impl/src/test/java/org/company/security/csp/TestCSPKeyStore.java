@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.company.security.csp.CSPTestFixtures.ISSUER;
+import static org.company.security.csp.CSPTestFixtures.certificate;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+
+import org.company.security.csp.CSPTestFixtures.TestKeyStore;
+import org.junit.Test;
+
+public class TestCSPKeyStore {
+
+	@Test
+	public void testDeleteSharedSubjectKeyId() throws Exception {
+		TestKeyStore keyStore = new TestKeyStore();
+		X509Certificate older = certificate(1, true);
+		X509Certificate renewed = certificate(2, true);
+		byte[] subjectKeyId = CSPCertificateIndex.subjectKeyId(older).array();
+
+		// продленный сертификат выпущен на тот же ключ
+		assertArrayEquals(subjectKeyId, CSPCertificateIndex.subjectKeyId(renewed).array());
+
+		keyStore.engineSetCertificateEntry("older", older);
+		keyStore.engineSetCertificateEntry("renewed", renewed);
+		assertEquals("older", keyStore.getCertificateAliasBySubjectKeyId(subjectKeyId));
+
+		keyStore.engineDeleteEntry("older");
+		assertEquals("Удаление не должно терять идентификатор другого сертификата",
+				"renewed", keyStore.getCertificateAliasBySubjectKeyId(subjectKeyId));
+		assertEquals("renewed", keyStore.getCertificateAlias(ISSUER, BigInteger.valueOf(2)));
+		assertNull(keyStore.getCertificateAlias(ISSUER, BigInteger.ONE));
+	}
+
+	@Test
+	public void testReplaceSharedCertificate() throws Exception {
+		TestKeyStore keyStore = new TestKeyStore();
+		X509Certificate older = certificate(1, true);
+		X509Certificate renewed = certificate(2, true);
+		byte[] subjectKeyId = CSPCertificateIndex.subjectKeyId(older).array();
+
+		keyStore.engineSetCertificateEntry("older", older);
+		keyStore.engineSetCertificateEntry("renewed", renewed);
+		keyStore.engineSetCertificateEntry("copy", older);
+
+		// замена сертификата оставляет копию и продленный сертификат в индексах
+		keyStore.engineSetCertificateEntry("older", certificate(3, false));
+		assertEquals("Замена не должна терять идентификатор другого сертификата",
+				"renewed", keyStore.getCertificateAliasBySubjectKeyId(subjectKeyId));
+		assertEquals("copy", keyStore.getCertificateAlias(ISSUER, BigInteger.ONE));
+		assertEquals("older", keyStore.getCertificateAlias(ISSUER, BigInteger.valueOf(3)));
+	}
+}
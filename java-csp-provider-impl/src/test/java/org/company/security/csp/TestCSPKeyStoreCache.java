@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCSPKeyStoreCache {
+	private File store;
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		store = File.createTempFile("csp-store", ".sst");
+		write(store, new byte[] { 1, 2, 3 });
+		System.setProperty(CSPKeyStoreCache.CACHE_PROP, "true");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		System.clearProperty(CSPKeyStoreCache.CACHE_PROP);
+		System.clearProperty(CSPKeyStoreCache.CACHE_DIR_PROP);
+		new File(store.getPath() + CSPKeyStoreCache.CACHE_SUFFIX).delete();
+		store.delete();
+
+		if (dir != null) {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private static void write(File file, byte[] data) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+
+	private static List<CSPKeyStoreReader.Record> records() {
+		return Arrays.asList(
+				new CSPKeyStoreReader.Record(CSPKeyStoreReader.TYPE_CERTIFICATES,
+						0, 0, 0, 0, 0, "ca", null, new byte[][] { { 1, 2, 3 } }),
+				new CSPKeyStoreReader.Record(CSPKeyStoreReader.TYPE_KEY,
+						75, 1, 512, 0x1234L, 0x5678L, "key", "container", new byte[][] { { 4 }, { 5, 6 } }));
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		CSPKeyStoreCache cache = CSPKeyStoreCache.forStore(store.getPath());
+
+		assertNull(cache.read());
+		cache.write(records());
+
+		List<CSPKeyStoreReader.Record> cached = CSPKeyStoreCache.forStore(store.getPath()).read();
+
+		assertNotNull(cached);
+		assertEquals(2, cached.size());
+		assertEquals("ca", cached.get(0).alias);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cached.get(0).certificates[0]);
+
+		// дескрипторы не сохраняются, ключ открывается при обращении
+		CSPKeyStoreReader.Record key = cached.get(1);
+		assertEquals(CSPKeyStoreReader.TYPE_LAZY_KEY, key.type);
+		assertEquals(0, key.hCryptProvider);
+		assertEquals(0, key.hCryptKey);
+		assertEquals("container", key.container);
+		assertEquals(75, key.providerId);
+		assertEquals(1, key.keySpec);
+		assertEquals(512, key.keyLength);
+		assertArrayEquals(new byte[] { 5, 6 }, key.certificates[1]);
+	}
+
+	@Test
+	public void testStale() throws Exception {
+		CSPKeyStoreCache.forStore(store.getPath()).write(records());
+
+		write(store, new byte[] { 1, 2, 3, 4 });
+		assertNull(CSPKeyStoreCache.forStore(store.getPath()).read());
+
+		// новый кеш заменяет устаревший
+		CSPKeyStoreCache.forStore(store.getPath()).write(records());
+		assertNotNull(CSPKeyStoreCache.forStore(store.getPath()).read());
+	}
+
+	@Test
+	public void testCorrupted() throws Exception {
+		CSPKeyStoreCache cache = CSPKeyStoreCache.forStore(store.getPath());
+		cache.write(records());
+
+		RandomAccessFile file = new RandomAccessFile(cache.getFile(), "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		assertNull(CSPKeyStoreCache.forStore(store.getPath()).read());
+	}
+
+	@Test
+	public void testDirectory() throws Exception {
+		dir = new File(store.getPath() + ".dir");
+		System.setProperty(CSPKeyStoreCache.CACHE_DIR_PROP, dir.getPath());
+
+		CSPKeyStoreCache cache = CSPKeyStoreCache.forStore(store.getPath());
+		cache.write(records());
+
+		assertEquals(dir.getAbsoluteFile(), cache.getFile().getAbsoluteFile().getParentFile());
+		assertNotNull(CSPKeyStoreCache.forStore(store.getPath()).read());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		System.clearProperty(CSPKeyStoreCache.CACHE_PROP);
+		assertNull(CSPKeyStoreCache.forStore(store.getPath()));
+		System.setProperty(CSPKeyStoreCache.CACHE_PROP, "true");
+		assertNull(CSPKeyStoreCache.forStore(store.getPath() + ".missing"));
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestCSPKeyStoreChanges {
+
+	private static ByteBuffer id(int certificate, boolean privateKey) {
+		return CSPKeyStoreChanges.entryId(ByteBuffer.wrap(new byte[] {(byte) certificate}), privateKey);
+	}
+
+	private static List<ByteBuffer> ids(ByteBuffer... ids) {
+		return Arrays.asList(ids);
+	}
+
+	private static CSPKeyStoreReader.Record lazyKey(byte[] certificate) {
+		return new CSPKeyStoreReader.Record(CSPKeyStoreReader.TYPE_LAZY_KEY,
+				75, 2, 512, 0, 0, null, "container", new byte[][] {certificate});
+	}
+
+	@Test
+	public void testUnchanged() {
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(
+				ids(id(1, true), id(2, false)), ids(id(2, false), id(1, true)));
+
+		// порядок перечисления не считается изменением
+		assertTrue(changes.isEmpty());
+		assertEquals(1, changes.getMatch(0));
+		assertEquals(0, changes.getMatch(1));
+	}
+
+	@Test
+	public void testAddedAndRemoved() {
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(
+				ids(id(1, true), id(2, false), id(3, false)), ids(id(1, true), id(4, true), id(3, false)));
+
+		assertFalse(changes.isEmpty());
+		assertEquals(1, changes.getAdded());
+		assertEquals(1, changes.getRemoved());
+		assertEquals(0, changes.getMatch(0));
+		assertTrue(changes.isNew(1));
+		assertEquals(-1, changes.getMatch(1));
+		assertEquals(2, changes.getMatch(2));
+	}
+
+	@Test
+	public void testPrivateKeyAdded() {
+		// к сертификату добавили контейнер ключа
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(ids(id(1, false)), ids(id(1, true)));
+
+		assertTrue(changes.isNew(0));
+		assertEquals(1, changes.getAdded());
+		assertEquals(1, changes.getRemoved());
+	}
+
+	@Test
+	public void testDuplicates() {
+		// несколько цепочек одного сертификата сопоставляются по порядку
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(
+				ids(id(1, true), id(1, true)), ids(id(1, true), id(1, true), id(1, true)));
+
+		assertEquals(0, changes.getMatch(0));
+		assertEquals(1, changes.getMatch(1));
+		assertTrue(changes.isNew(2));
+		assertEquals(1, changes.getAdded());
+		assertEquals(0, changes.getRemoved());
+	}
+
+	@Test
+	public void testUnknownId() {
+		// запись без отпечатка всегда заменяется
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(ids((ByteBuffer) null), ids((ByteBuffer) null));
+
+		assertTrue(changes.isNew(0));
+		assertEquals(1, changes.getAdded());
+		assertEquals(1, changes.getRemoved());
+	}
+
+	@Test
+	public void testEagerKeyFlags() {
+		byte[] failed = new byte[] {1};
+		byte[] opened = new byte[] {2};
+		byte[] added = new byte[] {3};
+		// перечисление без открытия контейнеров: у всех сертификатов есть сведения о ключе
+		List<CSPKeyStoreReader.Record> records = Arrays.asList(lazyKey(failed), lazyKey(opened), lazyKey(added));
+		CSPCertificateSlab slab = new CSPCertificateSlab(records);
+		// при загрузке с открытием контейнер первого сертификата не открылся
+		List<ByteBuffer> current = ids(
+				CSPKeyStoreChanges.entryId(slab.getFingerprint(0), false),
+				CSPKeyStoreChanges.entryId(slab.getFingerprint(1), true));
+		Map<ByteBuffer, Boolean> keys = new HashMap<ByteBuffer, Boolean>();
+
+		keys.put(slab.getFingerprint(0), false);
+		keys.put(slab.getFingerprint(1), true);
+
+		CSPKeyStoreChanges changes = CSPKeyStoreChanges.compare(current,
+				CSPKeyStoreChanges.recordIds(records, slab, keys));
+
+		assertEquals(0, changes.getMatch(0));
+		assertEquals(1, changes.getMatch(1));
+		assertTrue(changes.isNew(2));
+		assertEquals(1, changes.getAdded());
+		assertEquals(0, changes.getRemoved());
+
+		// без признаков загрузки запись сертификата считается замененной записью ключа
+		changes = CSPKeyStoreChanges.compare(current, CSPKeyStoreChanges.recordIds(records, slab, null));
+
+		assertTrue(changes.isNew(0));
+		assertEquals(2, changes.getAdded());
+		assertEquals(1, changes.getRemoved());
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestCSPKeyStoreReader {
+
+	/**
+	 * Упаковка записей так же, как в loadKeyStoreEntries
+	 */
+	private static final class Packer {
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+		private int count = 0;
+
+		Packer() {
+			buffer.putInt(0);
+		}
+
+		Packer add(int type, int providerId, int keySpec, int keyLength, long hProv, long hKey,
+				String alias, String container, byte[]... certificates) throws Exception {
+			buffer.putInt(type).putInt(providerId).putInt(keySpec).putInt(keyLength);
+			buffer.putLong(hProv).putLong(hKey);
+			putString(alias);
+			putString(container);
+			buffer.putInt(certificates.length);
+			for (byte[] certificate : certificates) {
+				buffer.putInt(certificate.length).put(certificate);
+			}
+			count++;
+			return this;
+		}
+
+		private void putString(String value) throws Exception {
+			if (value == null) {
+				buffer.putInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes("UTF-8");
+			buffer.putInt(bytes.length).put(bytes);
+		}
+
+		byte[] toByteArray() {
+			buffer.putInt(0, count);
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		byte[] first = { 1, 2, 3 };
+		byte[] second = { 4, 5 };
+		byte[] data = new Packer()
+				.add(CSPKeyStoreReader.TYPE_CERTIFICATES, 0, 0, 0, 0, 0, null, null, first)
+				.add(CSPKeyStoreReader.TYPE_KEY, 75, 2, 512, 0x1122334455L, 0x66778899AAL,
+						"Ключ", "\\\\.\\HDIMAGE\\key", first, second)
+				.add(CSPKeyStoreReader.TYPE_LAZY_KEY, 75, 1, 256, 0, 0, "lazy", "container")
+				.toByteArray();
+
+		List<CSPKeyStoreReader.Record> records = CSPKeyStoreReader.read(data);
+
+		assertEquals(3, records.size());
+
+		CSPKeyStoreReader.Record record = records.get(0);
+		assertEquals(CSPKeyStoreReader.TYPE_CERTIFICATES, record.type);
+		assertNull(record.alias);
+		assertNull(record.container);
+		assertEquals(1, record.certificates.length);
+		assertArrayEquals(first, record.certificates[0]);
+
+		record = records.get(1);
+		assertEquals(CSPKeyStoreReader.TYPE_KEY, record.type);
+		assertEquals(75, record.providerId);
+		assertEquals(2, record.keySpec);
+		assertEquals(512, record.keyLength);
+		assertEquals(0x1122334455L, record.hCryptProvider);
+		assertEquals(0x66778899AAL, record.hCryptKey);
+		assertEquals("Ключ", record.alias);
+		assertEquals("\\\\.\\HDIMAGE\\key", record.container);
+		assertArrayEquals(second, record.certificates[1]);
+
+		record = records.get(2);
+		assertEquals(CSPKeyStoreReader.TYPE_LAZY_KEY, record.type);
+		assertEquals("container", record.container);
+		assertEquals(0, record.certificates.length);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		assertTrue(CSPKeyStoreReader.read(new Packer().toByteArray()).isEmpty());
+	}
+
+	@Test(expected = KeyStoreException.class)
+	public void testTruncated() throws Exception {
+		byte[] data = new Packer()
+				.add(CSPKeyStoreReader.TYPE_CERTIFICATES, 0, 0, 0, 0, 0, "alias", null, new byte[100])
+				.toByteArray();
+
+		CSPKeyStoreReader.read(Arrays.copyOf(data, data.length - 10));
+	}
+
+	@Test(expected = KeyStoreException.class)
+	public void testUnknownType() throws Exception {
+		CSPKeyStoreReader.read(new Packer().add(7, 0, 0, 0, 0, 0, null, null).toByteArray());
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStore.LoadStoreParameter;
+import java.security.KeyStoreSpi;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestCSPKeyStoreWatcher {
+
+	/**
+	 * Хранилище, которое только считает обновления
+	 */
+	private static class RefreshCounter extends KeyStoreSpi {
+		final AtomicInteger refreshes = new AtomicInteger();
+		final CountDownLatch latch;
+		final boolean fail;
+
+		RefreshCounter(int count, boolean fail) {
+			this.latch = new CountDownLatch(count);
+			this.fail = fail;
+		}
+
+		@Override
+		public void engineLoad(LoadStoreParameter param) {
+			assertTrue(param instanceof CSPKeyStore.RefreshParameter);
+			refreshes.incrementAndGet();
+			latch.countDown();
+
+			if (fail) {
+				throw new IllegalStateException("Refresh failed");
+			}
+		}
+
+		@Override
+		public void engineLoad(InputStream stream, char[] password) {
+		}
+
+		@Override
+		public Key engineGetKey(String alias, char[] password) {
+			return null;
+		}
+
+		@Override
+		public Certificate[] engineGetCertificateChain(String alias) {
+			return null;
+		}
+
+		@Override
+		public Certificate engineGetCertificate(String alias) {
+			return null;
+		}
+
+		@Override
+		public Date engineGetCreationDate(String alias) {
+			return null;
+		}
+
+		@Override
+		public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+		}
+
+		@Override
+		public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+		}
+
+		@Override
+		public void engineSetCertificateEntry(String alias, Certificate cert) {
+		}
+
+		@Override
+		public void engineDeleteEntry(String alias) {
+		}
+
+		@Override
+		public Enumeration<String> engineAliases() {
+			return Collections.enumeration(Collections.<String>emptyList());
+		}
+
+		@Override
+		public boolean engineContainsAlias(String alias) {
+			return false;
+		}
+
+		@Override
+		public int engineSize() {
+			return 0;
+		}
+
+		@Override
+		public boolean engineIsKeyEntry(String alias) {
+			return false;
+		}
+
+		@Override
+		public boolean engineIsCertificateEntry(String alias) {
+			return false;
+		}
+
+		@Override
+		public String engineGetCertificateAlias(Certificate cert) {
+			return null;
+		}
+
+		@Override
+		public void engineStore(OutputStream stream, char[] password) {
+		}
+	}
+
+	private static KeyStore keyStore(KeyStoreSpi spi) {
+		return new KeyStore(spi, null, "Test") {
+		};
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(CSPKeyStoreWatcher.INTERVAL_PROP);
+	}
+
+	@Test
+	public void testPeriodicRefresh() throws Exception {
+		RefreshCounter counter = new RefreshCounter(3, false);
+		CSPKeyStoreWatcher watcher = new CSPKeyStoreWatcher(keyStore(counter), 10);
+
+		try {
+			assertTrue(counter.latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			watcher.close();
+		}
+
+		// после закрытия обновлений нет
+		Thread.sleep(50);
+		int refreshes = counter.refreshes.get();
+		Thread.sleep(100);
+		assertEquals(refreshes, counter.refreshes.get());
+	}
+
+	@Test
+	public void testRefreshErrorKeepsWatching() throws Exception {
+		RefreshCounter counter = new RefreshCounter(3, true);
+		CSPKeyStoreWatcher watcher = new CSPKeyStoreWatcher(keyStore(counter), 10);
+
+		try {
+			assertTrue(counter.latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	public void testInterval() {
+		assertEquals(CSPKeyStoreWatcher.DEFAULT_INTERVAL, CSPKeyStoreWatcher.getInterval());
+
+		System.setProperty(CSPKeyStoreWatcher.INTERVAL_PROP, "5000");
+		assertEquals(5000L, CSPKeyStoreWatcher.getInterval());
+
+		System.setProperty(CSPKeyStoreWatcher.INTERVAL_PROP, "-1");
+		assertEquals(CSPKeyStoreWatcher.DEFAULT_INTERVAL, CSPKeyStoreWatcher.getInterval());
+
+		System.setProperty(CSPKeyStoreWatcher.INTERVAL_PROP, "often");
+		assertEquals(CSPKeyStoreWatcher.DEFAULT_INTERVAL, CSPKeyStoreWatcher.getInterval());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidInterval() {
+		new CSPKeyStoreWatcher(keyStore(new RefreshCounter(1, false)), 0);
+	}
+}
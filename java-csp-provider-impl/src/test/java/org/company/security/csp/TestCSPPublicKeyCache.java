@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import org.company.security.csp.CSPTestFixtures.TestCache;
+import org.company.security.csp.CSPTestFixtures.TestPublicKey;
+import org.junit.Test;
+
+public class TestCSPPublicKeyCache {
+
+	@Test
+	public void test_01_hit() throws Exception {
+		TestCache cache = new TestCache(2);
+
+		CSPPublicKey first = cache.acquire(new byte[]{ 1, 2, 3 });
+		CSPPublicKey second = cache.acquire(new byte[]{ 1, 2, 3 });
+
+		assertSame("Ключ должен браться из кеша", first, second);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void test_02_lru_eviction() throws Exception {
+		TestCache cache = new TestCache(2);
+
+		TestPublicKey key1 = (TestPublicKey) cache.acquire(new byte[]{ 1 });
+		TestPublicKey key2 = (TestPublicKey) cache.acquire(new byte[]{ 2 });
+		key1.release();
+		key2.release();
+
+		// ключ 1 использован позже ключа 2
+		cache.acquire(new byte[]{ 1 }).release();
+		TestPublicKey key3 = (TestPublicKey) cache.acquire(new byte[]{ 3 });
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue("Вытесняется давно не используемый ключ", key2.destroyed);
+		assertFalse(key1.destroyed);
+		assertFalse(key3.destroyed);
+	}
+
+	@Test
+	public void test_03_evicted_in_use() throws Exception {
+		TestCache cache = new TestCache(1);
+
+		TestPublicKey key1 = (TestPublicKey) cache.acquire(new byte[]{ 1 });
+		cache.acquire(new byte[]{ 2 });
+
+		assertFalse("Используемый ключ не освобождается при вытеснении", key1.destroyed);
+		key1.release();
+		assertTrue("Ключ освобождается при возврате последней ссылки", key1.destroyed);
+	}
+
+	@Test
+	public void test_04_destroyed_key() throws Exception {
+		TestCache cache = new TestCache(2);
+
+		CSPPublicKey key1 = cache.acquire(new byte[]{ 1 });
+		key1.destroy();
+		CSPPublicKey key2 = cache.acquire(new byte[]{ 1 });
+
+		assertNotSame("Освобожденный ключ импортируется заново", key1, key2);
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void test_05_disabled() throws Exception {
+		TestCache cache = new TestCache(0);
+
+		TestPublicKey key = (TestPublicKey) cache.acquire(new byte[]{ 1 });
+		assertEquals(0, cache.size());
+		key.release();
+		assertTrue(key.destroyed);
+	}
+
+	@Test
+	public void test_06_copy_destroy() throws Exception {
+		TestCache cache = new TestCache(2);
+
+		TestPublicKey shared = (TestPublicKey) cache.acquire(new byte[]{ 1 });
+		TestPublicKey copy = (TestPublicKey) cache.acquireCopy(new byte[]{ 1 });
+
+		assertNotSame("Вызывающий получает свою копию ключа", shared, copy);
+		copy.destroy();
+		assertTrue(copy.destroyed);
+		assertFalse("destroy() копии не освобождает ключ в кеше", shared.destroyed);
+		assertSame(shared, cache.acquire(new byte[]{ 1 }));
+	}
+}
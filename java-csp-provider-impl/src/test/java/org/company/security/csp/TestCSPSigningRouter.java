@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.company.security.csp.CSPTestFixtures.TestKey;
+import org.company.security.csp.CSPTestFixtures.TestRouter;
+import org.junit.Test;
+
+public class TestCSPSigningRouter {
+
+	private static Map<String, PrivateKey> keys(String... names) {
+		Map<String, PrivateKey> keys = new LinkedHashMap<String, PrivateKey>();
+
+		for(String name : names)
+			keys.put(name, new TestKey(name));
+		return keys;
+	}
+
+	private static CSPSigningRouter.ContainerStats stats(CSPSigningRouter router, String name) {
+		for(CSPSigningRouter.ContainerStats stats : router.getStatistics())
+			if(stats.getName().equals(name))
+				return stats;
+		throw new AssertionError(name);
+	}
+
+	@Test
+	public void test_01_spread() throws Exception {
+		TestRouter router = new TestRouter(keys("a", "b", "c"), 60000);
+
+		for(int i = 0; i < 30; i++)
+			router.sign(new byte[1]);
+
+		List<CSPSigningRouter.ContainerStats> statistics = router.getStatistics();
+		assertEquals(3, statistics.size());
+		for(CSPSigningRouter.ContainerStats stats : statistics)
+			assertTrue("Подписи должны распределяться по всем контейнерам: " + stats,
+					stats.getCompleted() > 0);
+		assertTrue(router.getThroughput() > 0);
+	}
+
+	@Test
+	public void test_02_failover() throws Exception {
+		TestRouter router = new TestRouter(keys("a", "b"), 60000);
+		router.broken.add("a");
+
+		for(int i = 0; i < 10; i++)
+			assertEquals("b", new String(router.sign(new byte[1])));
+
+		CSPSigningRouter.ContainerStats a = stats(router, "a");
+		assertTrue(a.isQuarantined());
+		assertEquals("Контейнер в карантине не выбирается", 1, a.getFailed());
+		assertEquals(10, stats(router, "b").getCompleted());
+	}
+
+	@Test
+	public void test_03_all_failed() throws Exception {
+		TestRouter router = new TestRouter(keys("a", "b"), 60000);
+		router.broken.add("a");
+		router.broken.add("b");
+
+		try {
+			router.sign(new byte[1]);
+			fail();
+		}
+		catch(SignatureException e) {
+		}
+		try {
+			router.sign(new byte[1]);
+			fail();
+		}
+		catch(SignatureException e) {
+			assertEquals("All containers are quarantined", e.getMessage());
+		}
+	}
+
+	@Test
+	public void test_04_probe() throws Exception {
+		TestRouter router = new TestRouter(keys("a", "b"), 50);
+		router.broken.add("a");
+
+		for(int i = 0; i < 4; i++)
+			router.sign(new byte[1]);
+		assertTrue(stats(router, "a").isQuarantined());
+
+		router.broken.remove("a");
+		Thread.sleep(100);
+
+		assertEquals("После карантина контейнер получает пробную подпись",
+				"a", new String(router.sign(new byte[1])));
+		assertFalse(stats(router, "a").isQuarantined());
+	}
+
+	@Test
+	public void test_05_caller_error() throws Exception {
+		TestRouter router = new TestRouter(keys("a", "b"), 60000);
+
+		try {
+			router.sign("UNKNOWNwithGOST3410EL", new byte[1]);
+			fail();
+		}
+		catch(SignatureException e) {
+			assertTrue(e.getCause() instanceof NoSuchAlgorithmException);
+		}
+		try {
+			router.sign(null);
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+
+		for(CSPSigningRouter.ContainerStats stats : router.getStatistics()) {
+			assertFalse("Ошибка вызывающего не отправляет контейнер в карантин", stats.isQuarantined());
+			assertEquals(0, stats.getFailed());
+		}
+		router.sign(new byte[1]);
+	}
+}
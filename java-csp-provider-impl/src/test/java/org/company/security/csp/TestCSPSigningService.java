@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.company.security.csp;
+
+import static org.junit.Assert.*;
+
+import java.security.PrivateKey;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.company.security.csp.CSPTestFixtures.TestKey;
+import org.company.security.csp.CSPTestFixtures.TestService;
+import org.junit.Test;
+
+public class TestCSPSigningService {
+
+	@Test
+	public void test_01_container_serialized() throws Exception {
+		TestService service = new TestService(4, 8, CSPSigningService.OverflowPolicy.REJECT);
+		PrivateKey key = new TestKey("key");
+		Future<?>[] futures = new Future<?>[4];
+
+		for(int i = 0; i < futures.length; i++)
+			futures[i] = service.sign(key, new byte[] { (byte) i }, 0, TimeUnit.MILLISECONDS, null);
+
+		Thread.sleep(100);
+		service.release.countDown();
+
+		for(int i = 0; i < futures.length; i++)
+			assertArrayEquals(new byte[] { (byte) i }, (byte[]) futures[i].get(10, TimeUnit.SECONDS));
+		assertEquals("Подписи одного контейнера выполняются по одной", 1, service.maxRunning.get());
+		service.close();
+	}
+
+	@Test
+	public void test_02_containers_parallel() throws Exception {
+		TestService service = new TestService(4, 8, CSPSigningService.OverflowPolicy.REJECT);
+		Future<byte[]> first = service.sign(new TestKey("key"), new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		Future<byte[]> second = service.sign(new TestKey("key"), new byte[1], 0, TimeUnit.MILLISECONDS, null);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while(service.running.get() < 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals("Разные контейнеры не ждут друг друга", 2, service.running.get());
+		service.release.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		second.get(10, TimeUnit.SECONDS);
+		service.close();
+	}
+
+	@Test
+	public void test_03_reject() throws Exception {
+		TestService service = new TestService(1, 2, CSPSigningService.OverflowPolicy.REJECT);
+		PrivateKey key = new TestKey("key");
+
+		// первая задача выполняется, две ждут в очереди
+		service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		while(service.running.get() == 0)
+			Thread.sleep(10);
+		service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+
+		try {
+			service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+			fail("Переполненная очередь должна отклонять задачи");
+		}
+		catch(RejectedExecutionException e) {
+		}
+		assertEquals(2, service.getQueuedCount());
+		service.release.countDown();
+		service.close();
+	}
+
+	@Test
+	public void test_04_deadline() throws Exception {
+		TestService service = new TestService(1, 4, CSPSigningService.OverflowPolicy.BLOCK);
+		PrivateKey key = new TestKey("key");
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch notified = new CountDownLatch(1);
+
+		Future<byte[]> first = service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		Future<byte[]> late = service.sign(key, new byte[1], 50, TimeUnit.MILLISECONDS,
+				new CSPSigningService.Callback<byte[]>() {
+
+					@Override
+					public void completed(byte[] result) {
+						notified.countDown();
+					}
+
+					@Override
+					public void failed(Throwable error) {
+						failure.set(error);
+						notified.countDown();
+					}
+				});
+
+		Thread.sleep(150);
+		service.release.countDown();
+		first.get(10, TimeUnit.SECONDS);
+
+		try {
+			late.get(10, TimeUnit.SECONDS);
+			fail("Задача с истекшим сроком не должна выполняться");
+		}
+		catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertTrue(notified.await(10, TimeUnit.SECONDS));
+		assertTrue(failure.get() instanceof TimeoutException);
+		service.close();
+	}
+
+	@Test
+	public void test_05_cancel() throws Exception {
+		TestService service = new TestService(1, 1, CSPSigningService.OverflowPolicy.REJECT);
+		PrivateKey key = new TestKey("key");
+
+		Future<byte[]> first = service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		while(service.running.get() == 0)
+			Thread.sleep(10);
+		Future<byte[]> queued = service.sign(key, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+
+		assertTrue(queued.cancel(false));
+		assertEquals("Отмененная задача освобождает место в очереди", 0, service.getQueuedCount());
+
+		Future<byte[]> next = service.sign(key, new byte[] { 7 }, 0, TimeUnit.MILLISECONDS, null);
+		service.release.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		assertArrayEquals(new byte[] { 7 }, next.get(10, TimeUnit.SECONDS));
+
+		try {
+			queued.get();
+			fail();
+		}
+		catch(CancellationException e) {
+		}
+		service.close();
+	}
+
+	@Test
+	public void test_06_reused_handle() throws Exception {
+		TestService service = new TestService(4, 8, CSPSigningService.OverflowPolicy.REJECT);
+		CSPPrivateKey released = new CSPPrivateKey(0, 0, 512);
+		CSPPrivateKey reused = new CSPPrivateKey(0, 0, 512);
+
+		// новый ключ получил значение дескриптора освобожденного
+		released.hCryptKey = 1;
+		reused.hCryptKey = 1;
+
+		Future<byte[]> first = service.sign(released, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+		Future<byte[]> second = service.sign(reused, new byte[1], 0, TimeUnit.MILLISECONDS, null);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while(service.running.get() < 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals("Очередь ключа не определяется значением дескриптора", 2, service.running.get());
+		service.release.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		second.get(10, TimeUnit.SECONDS);
+		service.close();
+	}
+}
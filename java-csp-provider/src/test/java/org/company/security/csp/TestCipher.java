@@ -2,14 +2,23 @@ package org.company.security.csp;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.Certificate;
 import java.util.Enumeration;
+import java.util.Random;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -75,4 +84,76 @@ public class TestCipher {
 //		fail("Not yet implemented");
 	}
 
+	private static Cipher getCipher(String transformation) throws Exception {
+		try {
+			return Cipher.getInstance(transformation, CSP_PROVIDER);
+		}
+		catch(SecurityException e) {
+			System.err.println("Надо использовать OpenJDK. " + e.getMessage());
+			return null;
+		}
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		Cipher encryptor = getCipher(CIPHER_NAME + "/CFB/NoPadding");
+		Cipher decryptor = getCipher(CIPHER_NAME + "/CFB/NoPadding");
+
+		if(encryptor == null || decryptor == null)
+			return;
+
+		SecretKey key = KeyGenerator.getInstance(CIPHER_NAME, CSP_PROVIDER).generateKey();
+		byte[] input = new byte[1024 * 1024 + 13];
+		Random random = new Random(1);
+
+		random.nextBytes(input);
+
+		// частями произвольной длины, неполные блоки переносятся между вызовами
+		encryptor.init(Cipher.ENCRYPT_MODE, key);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		int offset = 0;
+
+		while(offset < input.length) {
+			int length = Math.min(random.nextInt(100000) + 1, input.length - offset);
+			byte[] part = encryptor.update(input, offset, length);
+
+			if(part != null)
+				encrypted.write(part);
+			offset += length;
+		}
+		encrypted.write(encryptor.doFinal());
+		assertEquals(input.length, encrypted.size());
+
+		// один вызов дает тот же результат
+		encryptor.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(encryptor.getIV()));
+		assertArrayEquals(encrypted.toByteArray(), encryptor.doFinal(input));
+
+		decryptor.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encryptor.getIV()));
+		InputStream in = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), decryptor);
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4099];
+		int n;
+
+		while((n = in.read(buffer)) >= 0)
+			decrypted.write(buffer, 0, n);
+		in.close();
+		assertArrayEquals(input, decrypted.toByteArray());
+
+		// direct буферы
+		ByteBuffer directInput = ByteBuffer.allocateDirect(input.length);
+		ByteBuffer directOutput = ByteBuffer.allocateDirect(input.length);
+
+		directInput.put(encrypted.toByteArray()).flip();
+		decryptor.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encryptor.getIV()));
+		directInput.limit(1001);
+		decryptor.update(directInput, directOutput);
+		directInput.limit(input.length);
+		decryptor.doFinal(directInput, directOutput);
+		directOutput.flip();
+
+		byte[] result = new byte[directOutput.remaining()];
+		directOutput.get(result);
+		assertArrayEquals(input, result);
+	}
+
 }
@@ -1,7 +1,11 @@
 package org.company.security.csp;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.Security;
 
@@ -42,4 +46,82 @@ public class TestDigest {
 		assertNotEquals("MessageDigest error", digestCSP, digestBC);
 	}
 
+	@Test
+	public void testResolvedAlgorithms() throws Exception {
+		MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(new byte[]{ 1, 2, 3 });
+		boolean found = false;
+
+		for(CSPAlgorithmInfo algorithm : CSPProvider.getResolvedAlgorithms()) {
+			// CALG_GR3411
+			if(algorithm.getAlgId() == 0x801e)
+				found = true;
+		}
+		assertTrue("GOST3411 is not resolved", found);
+	}
+
+	@Test
+	public void testResetAndClone() throws Exception {
+		byte[] prefix = new byte[]{ 1, 2, 3 };
+		byte[] suffix = new byte[]{ 4, 5 };
+
+		MessageDigest messageDigestBC = MessageDigest.getInstance(BC_DIGEST, BC_PROVIDER);
+		messageDigestBC.update(prefix);
+		byte[] digestBC = messageDigestBC.digest(suffix);
+
+		MessageDigest messageDigestCSP = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER);
+		messageDigestCSP.update(new byte[]{ 9, 9, 9 });
+		messageDigestCSP.reset();
+		messageDigestCSP.update(prefix);
+
+		MessageDigest forked = (MessageDigest) messageDigestCSP.clone();
+		assertArrayEquals("Clone digest error", digestBC, forked.digest(suffix));
+		assertArrayEquals("MessageDigest error after reset", digestBC, messageDigestCSP.digest(suffix));
+
+		// после digest хеш готов к повторному использованию
+		messageDigestCSP.update(prefix);
+		assertArrayEquals("MessageDigest error after digest", digestBC, messageDigestCSP.digest(suffix));
+	}
+
+	@Test
+	public void testDirectByteBuffer() throws Exception {
+		byte[] input = new byte[100000];
+		for(int i = 0; i < input.length; i++)
+			input[i] = (byte) i;
+
+		MessageDigest messageDigestBC = MessageDigest.getInstance(BC_DIGEST, BC_PROVIDER);
+		byte[] digestBC = messageDigestBC.digest(input);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(input.length + 10);
+		buffer.position(10);
+		buffer.put(input);
+		buffer.position(10);
+
+		MessageDigest messageDigestCSP = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER);
+		messageDigestCSP.update(buffer);
+
+		assertEquals("Buffer is not consumed", buffer.limit(), buffer.position());
+		assertArrayEquals("Direct buffer digest error", digestBC, messageDigestCSP.digest());
+	}
+
+	@Test
+	public void testDigestToArray() throws Exception {
+		byte[] input = new byte[10000];
+		for(int i = 0; i < input.length; i++)
+			input[i] = (byte) i;
+
+		MessageDigest messageDigestBC = MessageDigest.getInstance(BC_DIGEST, BC_PROVIDER);
+		byte[] digestBC = messageDigestBC.digest(input);
+
+		MessageDigest messageDigestCSP = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER);
+		assertEquals(digestBC.length, messageDigestCSP.getDigestLength());
+
+		byte[] output = new byte[digestBC.length + 4];
+		messageDigestCSP.update(input);
+		int n = messageDigestCSP.digest(output, 4, digestBC.length);
+
+		assertEquals(digestBC.length, n);
+		for(int i = 0; i < n; i++)
+			assertEquals("Digest to array error", digestBC[i], output[i + 4]);
+	}
+
 }
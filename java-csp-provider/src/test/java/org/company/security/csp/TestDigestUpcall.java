@@ -0,0 +1,73 @@
+package org.company.security.csp;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Вызовы из нативного кода в Java (digestInit -> initDigest) идут по классам
+ * и методам, закешированным в JNI_OnLoad. Кеш общий для всех потоков.
+ */
+public class TestDigestUpcall {
+	private static final String CSP_PROVIDER = "CSPProvider";
+	private static final String CSP_DIGEST = "GOST3411";
+
+	private static final int THREADS = 4;
+	private static final int ITERATIONS = 200;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoadNative.loadProvider();
+	}
+
+	@Test
+	public void testDigestInit() throws Exception {
+		final byte[] input = new byte[]{ 1, 2, 3 };
+		final byte[] expected = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(input);
+
+		// каждый новый объект открывает провайдер через digestInit с вызовом initDigest
+		for(int i = 0; i < ITERATIONS; i++) {
+			assertArrayEquals(expected, MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(input));
+		}
+	}
+
+	@Test
+	public void testDigestInitConcurrent() throws Exception {
+		final byte[] input = new byte[]{ 1, 2, 3 };
+		final byte[] expected = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(input);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+			for(int t = 0; t < THREADS; t++) {
+				results.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for(int i = 0; i < ITERATIONS; i++) {
+							assertArrayEquals(expected,
+									MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(input));
+						}
+						return null;
+					}
+				}));
+			}
+
+			for(Future<Void> result : results)
+				result.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -1,9 +1,22 @@
 package org.company.security.csp;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.security.KeyStore;
 import java.security.Security;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -47,4 +60,91 @@ public class TestLoadKeyStore {
 					});
 		}
 	}
+
+	/**
+	 * Загрузка без открытия контейнеров дает те же записи,
+	 * ключ открывается при первом getKey. Сертификат, контейнер которого
+	 * не открывается, без открытия считается записью ключа.
+	 */
+	@Test
+	public void testLazyKeys() throws Exception {
+		CSPKeyStore eager = new CSPKeyStore.MY();
+		CSPKeyStore lazy = new CSPKeyStore.MY();
+
+		lazy.setLazyKeys(true);
+
+		eager.engineLoad(null, null);
+		lazy.engineLoad(null, null);
+
+		List<String> aliases = Collections.list(eager.engineAliases());
+
+		assertEquals(aliases, Collections.list(lazy.engineAliases()));
+
+		for(String alias : aliases) {
+			if(eager.engineIsKeyEntry(alias)) {
+				assertTrue(lazy.engineIsKeyEntry(alias));
+				assertNotNull(lazy.engineGetKey(alias, null));
+				// повторное обращение возвращает запомненный ключ
+				assertEquals(lazy.engineGetKey(alias, null), lazy.engineGetKey(alias, null));
+			}
+			else if(lazy.engineIsKeyEntry(alias)) {
+				// контейнер удален или токен извлечен
+				try {
+					lazy.engineGetKey(alias, null);
+					fail("Key container of " + alias + " must not be acquired");
+				}
+				catch(UnrecoverableKeyException e) {
+				}
+				assertNull(eager.engineGetKey(alias, null));
+			}
+		}
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		KeyStore keyStore = java.security.KeyStore.getInstance(STORE_NAME, PROVIDER_NAME);
+		keyStore.load(null, null);
+
+		List<String> aliases = Collections.list(keyStore.aliases());
+		List<Object> keys = new ArrayList<Object>();
+
+		for(String alias : aliases)
+			keys.add(keyStore.isKeyEntry(alias) ? keyStore.getKey(alias, null) : null);
+
+		CSPKeyStore spi = new CSPKeyStore.MY();
+		spi.engineLoad(null, null);
+		// хранилище не менялось
+		assertFalse(spi.refresh());
+
+		keyStore.load(new CSPKeyStore.RefreshParameter());
+
+		// неизменные записи сохраняют открытые ключи
+		assertEquals(aliases, Collections.list(keyStore.aliases()));
+		for(int i = 0; i < aliases.size(); i++) {
+			if(keys.get(i) != null)
+				assertSame(keys.get(i), keyStore.getKey(aliases.get(i), null));
+		}
+	}
+
+	@Test
+	public void testCompactCertificates() throws Exception {
+		CSPKeyStore parsed = new CSPKeyStore.ROOT();
+		CSPKeyStore compact = new CSPKeyStore.ROOT();
+
+		compact.setCompactCertificates(true);
+
+		parsed.engineLoad(null, null);
+		compact.engineLoad(null, null);
+
+		List<String> aliases = Collections.list(parsed.engineAliases());
+
+		assertEquals(aliases, Collections.list(compact.engineAliases()));
+
+		for(String alias : aliases) {
+			Certificate certificate = parsed.engineGetCertificate(alias);
+
+			assertEquals(certificate, compact.engineGetCertificate(alias));
+			assertEquals(parsed.engineGetCertificateAlias(certificate), compact.engineGetCertificateAlias(certificate));
+		}
+	}
 }
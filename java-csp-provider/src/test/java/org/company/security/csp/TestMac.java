@@ -0,0 +1,139 @@
+package org.company.security.csp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Имитовставка провайдера: значения на копиях хеша-образца, после сброса и клонирования
+ */
+public class TestMac {
+	private static final String CSP_PROVIDER = "CSPProvider";
+	private static final String CSP_KEY = "GOST28147";
+	private static final String CSP_MAC = "MAC_GOST28147";
+	private static final String CSP_HMAC = "HMAC_GOSTR3411";
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoadNative.loadProvider();
+
+		if(Security.getProvider(CSP_PROVIDER) == null)
+			Security.addProvider(new CSPProvider());
+	}
+
+	private static Mac getMac(String algorithm, String provider) throws Exception {
+		try {
+			return Mac.getInstance(algorithm, provider);
+		}
+		catch(SecurityException e) {
+			System.err.println("Надо использовать OpenJDK. " + e.getMessage());
+			return null;
+		}
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		testStream(CSP_MAC, 4);
+		testStream(CSP_HMAC, 32);
+	}
+
+	private void testStream(String algorithm, int length) throws Exception {
+		Mac mac = getMac(algorithm, CSP_PROVIDER);
+
+		if(mac == null)
+			return;
+
+		SecretKey key = KeyGenerator.getInstance(CSP_KEY, CSP_PROVIDER).generateKey();
+		byte[] input = new byte[100000];
+		new Random(1).nextBytes(input);
+
+		mac.init(key);
+		assertEquals(length, mac.getMacLength());
+		byte[] expected = mac.doFinal(input);
+		assertEquals(length, expected.length);
+
+		// после doFinal считается новое сообщение на том же ключе
+		assertArrayEquals(expected, mac.doFinal(input));
+
+		// частями
+		mac.update(input[0]);
+		mac.update(input, 1, 999);
+		mac.update(input, 1000, input.length - 1000);
+		assertArrayEquals(expected, mac.doFinal());
+
+		// сброс недосчитанного сообщения
+		mac.update(input, 0, 10);
+		mac.reset();
+		assertArrayEquals(expected, mac.doFinal(input));
+
+		// direct буфер
+		ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+		direct.put(input).flip();
+		mac.update(direct);
+		assertEquals(input.length, direct.position());
+		assertArrayEquals(expected, mac.doFinal());
+
+		// копия состояния
+		mac.update(input, 0, 5000);
+		Mac copy = (Mac) mac.clone();
+		mac.update(input, 5000, input.length - 5000);
+		copy.update(input, 5000, input.length - 5000);
+		assertArrayEquals(expected, mac.doFinal());
+		assertArrayEquals(expected, copy.doFinal());
+	}
+
+	@Test
+	public void testTemplate() throws Exception {
+		testTemplate(CSP_MAC);
+		testTemplate(CSP_HMAC);
+	}
+
+	/**
+	 * Значения на копиях хеша-образца совпадают со значениями хеша,
+	 * созданного на ключе заново для каждого сообщения
+	 */
+	private void testTemplate(String algorithm) throws Exception {
+		Mac mac = getMac(algorithm, CSP_PROVIDER);
+
+		if(mac == null)
+			return;
+
+		SecretKey key = KeyGenerator.getInstance(CSP_KEY, CSP_PROVIDER).generateKey();
+		Random random = new Random(2);
+
+		mac.init(key);
+		for(int length : new int[] { 0, 1, 8, 1000, 65536 }) {
+			byte[] input = new byte[length];
+			random.nextBytes(input);
+
+			byte[] expected = computeOnce(algorithm, key, input);
+
+			assertArrayEquals("MAC of " + length + " bytes", expected, mac.doFinal(input));
+
+			mac.update(input);
+			mac.reset();
+			assertArrayEquals("MAC of " + length + " bytes after reset", expected, mac.doFinal(input));
+
+			Mac copy = (Mac) mac.clone();
+			assertArrayEquals("MAC of " + length + " bytes on clone", expected, copy.doFinal(input));
+			assertArrayEquals(expected, mac.doFinal(input));
+		}
+	}
+
+	private static byte[] computeOnce(String algorithm, SecretKey key, byte[] input) throws Exception {
+		Mac mac = Mac.getInstance(algorithm, CSP_PROVIDER);
+
+		mac.init(key);
+		return mac.doFinal(input);
+	}
+}
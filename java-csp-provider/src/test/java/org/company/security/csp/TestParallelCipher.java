@@ -0,0 +1,106 @@
+package org.company.security.csp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Шифрование ГОСТ 28147-89 в режиме гаммирования одним потоком и по сегментам
+ * на нескольких потоках. Результаты должны совпадать побайтно.
+ */
+public class TestParallelCipher {
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+	private static final int SEGMENTS = 8;
+	private static final int DATA_SIZE = SEGMENTS * SEGMENT_SIZE + 13;
+	private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoadNative.loadProvider();
+	}
+
+	@Test
+	public void testArray() throws Exception {
+		CSPSecretKey key = NativeCrypto.secretKeyGenerate(CSPSecretKey.GOST28147);
+		byte[] iv = new byte[8];
+		byte[] input = new byte[DATA_SIZE];
+		Random random = new Random(1);
+
+		random.nextBytes(iv);
+		random.nextBytes(input);
+
+		CSPParallelCipher serial = new CSPParallelCipher(1, SEGMENT_SIZE);
+		CSPParallelCipher parallel = new CSPParallelCipher(THREADS, SEGMENT_SIZE);
+
+		try {
+			byte[] expected = serial.process(key, iv, input);
+
+			assertEquals(0, serial.getParallelSegmentCount());
+			assertArrayEquals(expected, parallel.process(key, iv, input));
+			assertEquals("Данные должны шифроваться по сегментам",
+					SEGMENTS + 1, parallel.getParallelSegmentCount());
+			assertArrayEquals(input, parallel.process(key, iv, expected));
+		}
+		finally {
+			serial.close();
+			parallel.close();
+		}
+	}
+
+	@Test
+	public void testFile() throws Exception {
+		CSPSecretKey key = NativeCrypto.secretKeyGenerate(CSPSecretKey.GOST28147);
+		byte[] iv = new byte[8];
+		byte[] input = new byte[DATA_SIZE];
+		Random random = new Random(2);
+
+		random.nextBytes(iv);
+		random.nextBytes(input);
+
+		File plain = File.createTempFile("csp-parallel", ".bin");
+		File serialFile = File.createTempFile("csp-parallel", ".serial");
+		File parallelFile = File.createTempFile("csp-parallel", ".parallel");
+		CSPParallelCipher serial = new CSPParallelCipher(1, SEGMENT_SIZE);
+		CSPParallelCipher parallel = new CSPParallelCipher(THREADS, SEGMENT_SIZE);
+
+		try {
+			FileOutputStream out = new FileOutputStream(plain);
+			out.write(input);
+			out.close();
+
+			serial.process(key, iv, plain, serialFile);
+			parallel.process(key, iv, plain, parallelFile);
+			assertEquals("Файл должен шифроваться по сегментам",
+					SEGMENTS + 1, parallel.getParallelSegmentCount());
+			assertArrayEquals(serial.process(key, iv, input), readFile(serialFile));
+			assertArrayEquals(readFile(serialFile), readFile(parallelFile));
+		}
+		finally {
+			serial.close();
+			parallel.close();
+			plain.delete();
+			serialFile.delete();
+			parallelFile.delete();
+		}
+	}
+
+	private static byte[] readFile(File file) throws Exception {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -1,12 +1,21 @@
 package org.company.security.csp;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.KeyStore;
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.Security;
 import java.security.Signature;
+import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.BitSet;
 import java.util.Enumeration;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -22,6 +31,7 @@ public class TestSignature {
 	private static final String CSP_PROVIDER = "CSPProvider";
 	private static final String CSP_DIGEST = "GOST3411";
 	private static final String CSP_SIGNATURE = "GOST3411withGOST3410EL";
+	private static final String CSP_RAW_SIGNATURE = "NONEwithGOST3410EL";
 	
 	private static final String BC_PROVIDER = "BC";
 	private static final String BC_SIGNATURE = "GOST3411withECGOST3410";
@@ -98,4 +108,168 @@ public class TestSignature {
 		//fail("Not yet implemented");
 	}
 
+	@Test
+	public void testBatchSign() throws Exception {
+		Signature bcSignatureVerify = Signature.getInstance(BC_SIGNATURE, BC_PROVIDER);
+
+		KeyStore keyStore = java.security.KeyStore.getInstance(STORE_NAME, CSP_PROVIDER);
+		keyStore.load(null, null);
+
+		for(Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+			String alias = aliases.nextElement();
+			Key key = keyStore.getKey(alias, null);
+
+			if(key != null && ALG_OID_GOST.equals(key.getAlgorithm())) {
+				X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
+				byte[][] inputs = new byte[16][];
+				byte[][] hashes = new byte[inputs.length][];
+
+				for(int i = 0; i < inputs.length; i++) {
+					inputs[i] = (alias + i).getBytes();
+					hashes[i] = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(inputs[i]);
+				}
+
+				CSPBatchSignature.SignResult result = CSPBatchSignature.sign((PrivateKey) key, hashes);
+				assertEquals(inputs.length, result.size());
+				assertEquals(0, result.getFailedCount());
+
+				for(int i = 0; i < inputs.length; i++) {
+					bcSignatureVerify.initVerify(certificate);
+					bcSignatureVerify.update(inputs[i]);
+					assertTrue("Batch signature is not valid", bcSignatureVerify.verify(result.getSignature(i)));
+				}
+
+				byte[][] signatures = new byte[inputs.length][];
+				PublicKey[] keys = new PublicKey[inputs.length];
+
+				for(int i = 0; i < inputs.length; i++) {
+					signatures[i] = result.getSignature(i).clone();
+					keys[i] = certificate.getPublicKey();
+				}
+				// испорченная подпись
+				signatures[3][0] ^= 1;
+				// ключ без кодировки не прерывает проверку пакета
+				keys[5] = new PublicKey() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public String getAlgorithm() {
+						return ALG_OID_GOST;
+					}
+
+					@Override
+					public String getFormat() {
+						return null;
+					}
+
+					@Override
+					public byte[] getEncoded() {
+						return null;
+					}
+				};
+
+				BitSet verified = CSPBatchSignature.verify(hashes, signatures, keys);
+				assertEquals("Only the broken signature and key must fail", inputs.length - 2, verified.cardinality());
+				assertFalse(verified.get(3));
+				assertFalse(verified.get(5));
+			}
+		}
+	}
+
+	@Test
+	public void testOneShotSign() throws Exception {
+		Signature cspSignatureSign = Signature.getInstance(CSP_SIGNATURE, CSP_PROVIDER);
+		Signature bcSignatureVerify = Signature.getInstance(BC_SIGNATURE, BC_PROVIDER);
+
+		KeyStore keyStore = java.security.KeyStore.getInstance(STORE_NAME, CSP_PROVIDER);
+		keyStore.load(null, null);
+
+		for(Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+			String alias = aliases.nextElement();
+			Key key = keyStore.getKey(alias, null);
+
+			if(key != null && ALG_OID_GOST.equals(key.getAlgorithm())) {
+				X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
+
+				cspSignatureSign.initSign((PrivateKey) key);
+
+				// короткое сообщение подписывается одним вызовом, длинное - по частям
+				for(int length : new int[] { 0, 1, 300, 4096, 4097, 20000, 300 }) {
+					byte[] input = new byte[length];
+
+					for(int i = 0; i < length; i++)
+						input[i] = (byte) i;
+
+					for(int i = 0; i < length; i += 1000)
+						cspSignatureSign.update(input, i, Math.min(1000, length - i));
+					byte[] sign = cspSignatureSign.sign();
+
+					bcSignatureVerify.initVerify(certificate);
+					bcSignatureVerify.update(input);
+					assertTrue("Signature of " + length + " bytes is not valid", bcSignatureVerify.verify(sign));
+
+					// подпись в массив вызывающего
+					byte[] out = new byte[sign.length + 8];
+					cspSignatureSign.update(input);
+					int signLength = cspSignatureSign.sign(out, 3, out.length - 3);
+					assertEquals(sign.length, signLength);
+
+					bcSignatureVerify.initVerify(certificate);
+					bcSignatureVerify.update(input);
+					assertTrue(bcSignatureVerify.verify(out, 3, signLength));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRawSign() throws Exception {
+		Signature cspRawSign = Signature.getInstance(CSP_RAW_SIGNATURE, CSP_PROVIDER);
+		Signature cspSignatureVerify = Signature.getInstance(CSP_SIGNATURE, CSP_PROVIDER);
+
+		KeyStore keyStore = java.security.KeyStore.getInstance(STORE_NAME, CSP_PROVIDER);
+		keyStore.load(null, null);
+
+		for(Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+			String alias = aliases.nextElement();
+			Key key = keyStore.getKey(alias, null);
+
+			if(key != null && ALG_OID_GOST.equals(key.getAlgorithm())) {
+				X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
+				byte[] input = alias.getBytes();
+				byte[] hash = MessageDigest.getInstance(CSP_DIGEST, CSP_PROVIDER).digest(input);
+
+				// подписывается готовый хеш, а не пустой буфер накопления
+				cspRawSign.initSign((PrivateKey) key);
+				cspRawSign.update(hash);
+				byte[] sign = cspRawSign.sign();
+
+				cspSignatureVerify.initVerify(certificate);
+				cspSignatureVerify.update(input);
+				assertTrue("Raw signature is not valid", cspSignatureVerify.verify(sign));
+
+				// подпись готового хеша в массив вызывающего
+				byte[] out = new byte[sign.length + 8];
+				cspRawSign.update(hash);
+				int signLength = cspRawSign.sign(out, 3, out.length - 3);
+				assertEquals(sign.length, signLength);
+
+				cspSignatureVerify.initVerify(certificate);
+				cspSignatureVerify.update(input);
+				assertTrue("Raw signature in buffer is not valid", cspSignatureVerify.verify(out, 3, signLength));
+
+				// короткий буфер не закрывает контекст контейнера в пуле
+				int idle = CSPContainerPool.getDefault().getIdleCount();
+				cspRawSign.update(hash);
+				try {
+					cspRawSign.sign(out, 0, signLength - 1);
+					fail("Short signature buffer");
+				}
+				catch(SignatureException e) {
+				}
+				assertEquals(idle, CSPContainerPool.getDefault().getIdleCount());
+			}
+		}
+	}
+
 }